@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+
+/**
+ * Reads whole 2D fields from NetCDF files by splitting them into latitude
+ * bands which are read concurrently. Each band is read through its own
+ * {@link NetcdfDataset}, so the decompression of the chunks in different bands
+ * happens in parallel rather than serially on a single thread.
+ * 
+ * Open {@link NetcdfDataset}s are pooled per file, so that reading several
+ * fields from the same file doesn't re-open it for every band. Only the
+ * handles for a small number of recently-used files are kept.
+ * 
+ * @author Guy Griffiths
+ */
+public class BandedFieldReader {
+    /** Fields smaller than this (in cells) are read in a single band */
+    private static final int MIN_BANDED_SIZE = 1024 * 1024;
+    /** The minimum number of rows in each band */
+    private static final int MIN_BAND_ROWS = 64;
+    /** The number of files to keep pooled handles for */
+    private static final int MAX_POOLED_FILES = 2;
+
+    /** Idle handles for each file, in least-recently-used order of file */
+    private final LinkedHashMap<String, Deque<NetcdfDataset>> idleHandles = new LinkedHashMap<>(
+            16, 0.75f, true);
+
+    /**
+     * Reads a whole field
+     * 
+     * @param path
+     *            The path of the file to read from
+     * @param varId
+     *            The ID of the variable to read
+     * @param timeIndex
+     *            The index of the time to read within the file. Ignored if the
+     *            variable has no time dimension
+     * @param ySize
+     *            The y size of the variable
+     * @param xSize
+     *            The x size of the variable
+     * @param rowsNeeded
+     *            Which rows of the field are needed, or <code>null</code> if
+     *            all are. Bands containing none of the needed rows are not
+     *            read, and are left as NaN
+     * @return The values of the field. Since the datasets are enhanced, missing
+     *         values will be NaN
+     */
+    public FloatArray2D read(final String path, final String varId, final int timeIndex,
+            int ySize, final int xSize, final boolean[] rowsNeeded) throws IOException,
+            InvalidRangeException, VariableNotFoundException {
+        final FloatArray2D values = new FloatArray2D(ySize, xSize);
+
+        int bandRows;
+        NetcdfDataset dataset = acquire(path);
+        try {
+            Variable variable = dataset.findVariable(varId);
+            if (variable == null) {
+                throw new VariableNotFoundException(varId);
+            }
+            if ((long) xSize * ySize < MIN_BANDED_SIZE) {
+                /*
+                 * Not worth splitting - just read it with the handle we have
+                 */
+                copyRows(readRows(variable, timeIndex, 0, ySize, xSize), values, 0, xSize);
+                return values;
+            }
+            bandRows = getBandRows(variable, ySize);
+        } finally {
+            release(path, dataset);
+        }
+
+        final int nBands = (ySize + bandRows - 1) / bandRows;
+        final int finalBandRows = bandRows;
+        final int finalYSize = ySize;
+        final Exception[] error = new Exception[1];
+        ParallelUtils.forEachRange(nBands, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int band = from; band < to; band++) {
+                    int firstRow = band * finalBandRows;
+                    int rows = Math.min(finalBandRows, finalYSize - firstRow);
+                    if (!anyNeeded(rowsNeeded, firstRow, rows)) {
+                        continue;
+                    }
+                    try {
+                        NetcdfDataset bandDataset = acquire(path);
+                        try {
+                            Variable variable = bandDataset.findVariable(varId);
+                            copyRows(readRows(variable, timeIndex, firstRow, rows, xSize),
+                                    values, firstRow, xSize);
+                        } finally {
+                            release(path, bandDataset);
+                        }
+                    } catch (IOException | InvalidRangeException e) {
+                        synchronized (error) {
+                            if (error[0] == null) {
+                                error[0] = e;
+                            }
+                        }
+                    }
+                }
+            }
+        });
+        if (error[0] instanceof IOException) {
+            throw (IOException) error[0];
+        } else if (error[0] instanceof InvalidRangeException) {
+            throw (InvalidRangeException) error[0];
+        }
+        return values;
+    }
+
+    /**
+     * Chooses the number of rows in each band. We want enough bands to keep
+     * all threads busy, but each band should cover whole chunks so that no
+     * chunk gets decompressed by more than one band.
+     */
+    private static int getBandRows(Variable variable, int ySize) {
+        int rows = Math.max(MIN_BAND_ROWS, (ySize + ParallelUtils.getParallelism() - 1)
+                / ParallelUtils.getParallelism());
+        Attribute chunkSizes = variable.findAttribute("_ChunkSizes");
+        if (chunkSizes != null && chunkSizes.getLength() == variable.getRank()) {
+            int chunkRows = chunkSizes.getNumericValue(variable.getRank() - 2).intValue();
+            if (chunkRows > 0) {
+                rows = ((rows + chunkRows - 1) / chunkRows) * chunkRows;
+            }
+        }
+        return Math.min(rows, ySize);
+    }
+
+    /**
+     * @return Whether any of the given rows are needed
+     */
+    static boolean anyNeeded(boolean[] rowsNeeded, int firstRow, int rows) {
+        if (rowsNeeded == null) {
+            return true;
+        }
+        for (int row = firstRow; row < firstRow + rows; row++) {
+            if (rowsNeeded[row]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Array readRows(Variable variable, int timeIndex, int firstRow, int rows,
+            int xSize) throws IOException, InvalidRangeException {
+        if (variable.getRank() == 3) {
+            return variable.read(new int[] { timeIndex, firstRow, 0 }, new int[] { 1, rows,
+                    xSize });
+        } else {
+            return variable.read(new int[] { firstRow, 0 }, new int[] { rows, xSize });
+        }
+    }
+
+    private static void copyRows(Array band, FloatArray2D values, int firstRow, int xSize) {
+        int offset = firstRow * xSize;
+        int size = (int) band.getSize();
+        for (int i = 0; i < size; i++) {
+            values.setFloat(band.getFloat(i), offset + i);
+        }
+    }
+
+    private NetcdfDataset acquire(String path) throws IOException {
+        synchronized (idleHandles) {
+            Deque<NetcdfDataset> idle = idleHandles.get(path);
+            if (idle != null && !idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+        return NetcdfDataset.openDataset(path);
+    }
+
+    private void release(String path, NetcdfDataset dataset) {
+        synchronized (idleHandles) {
+            Deque<NetcdfDataset> idle = idleHandles.get(path);
+            if (idle == null) {
+                idle = new ArrayDeque<>();
+                idleHandles.put(path, idle);
+                Iterator<Entry<String, Deque<NetcdfDataset>>> iterator = idleHandles.entrySet()
+                        .iterator();
+                while (idleHandles.size() > MAX_POOLED_FILES) {
+                    for (NetcdfDataset eldest : iterator.next().getValue()) {
+                        closeQuietly(eldest);
+                    }
+                    iterator.remove();
+                }
+            }
+            idle.push(dataset);
+        }
+    }
+
+    private static void closeQuietly(NetcdfDataset dataset) {
+        try {
+            dataset.close();
+        } catch (IOException e) {
+            /*
+             * We're finished with this dataset anyway
+             */
+        }
+    }
+
+    /**
+     * Closes all pooled handles
+     */
+    public void close() {
+        synchronized (idleHandles) {
+            for (Deque<NetcdfDataset> idle : idleHandles.values()) {
+                for (NetcdfDataset dataset : idle) {
+                    closeQuietly(dataset);
+                }
+            }
+            idleHandles.clear();
+        }
+    }
+}
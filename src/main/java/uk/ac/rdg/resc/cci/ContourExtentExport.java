@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Extracts the northern and southern extents of a set of SST contours at each
+ * longitude, for every timestep of the data, and writes them to file. This
+ * uses the same logic as {@link MaxContourExtentPlotter} (i.e. a
+ * {@link ContourExtentKernel}), but does no image generation.
+ * 
+ * The binary output format is (all values big-endian):
+ * 
+ * <pre>
+ * int     magic number (0x43455854, "CEXT")
+ * int     format version (1)
+ * int     number of timesteps (T)
+ * int     number of contours (C)
+ * int     number of longitudes (X)
+ * float[C] contour values
+ * float[X] longitudes
+ * then, for each timestep:
+ *   long         time, in milliseconds since 1970-01-01T00:00Z
+ *   float[C][X]  northern extent latitudes
+ *   float[C][X]  southern extent latitudes
+ * </pre>
+ * 
+ * Extents which are not defined (i.e. the contour is not visible at that
+ * longitude) are NaN.
+ * 
+ * @author Guy Griffiths
+ */
+public class ContourExtentExport {
+    private static final Logger log = LoggerFactory.getLogger(ContourExtentExport.class);
+
+    public static final int MAGIC = 0x43455854;
+    public static final int VERSION = 1;
+
+    public static void main(String[] args) throws IOException, EdalException {
+        /*
+         * Load a properties file to determine what to extract.
+         */
+        Properties properties = new Properties();
+        File propertiesFile = new File("contour_extents.properties");
+        if (propertiesFile.exists()) {
+            properties.load(new FileReader(propertiesFile));
+        } else {
+            properties.load(ContourExtentExport.class
+                    .getResourceAsStream("/contour_extents.properties"));
+        }
+        /*
+         * Merge any properties specified on the command line
+         */
+        properties.putAll(System.getProperties());
+
+        String outputPath = properties.getProperty("outputPath");
+        String dataPath = properties.getProperty("dataPath");
+
+        if (outputPath == null || dataPath == null) {
+            log.error("You must provide at least the output path and the path to the SST data");
+            System.exit(1);
+        }
+
+        String sstVar = properties.getProperty("sstVar", "analysed_sst");
+        String contoursStr = properties.getProperty("contours", "275,280,285,290,295");
+        String widthStr = properties.getProperty("longitudes");
+        String heightStr = properties.getProperty("latitudes");
+        String startStr = properties.getProperty("startData");
+        String endStr = properties.getProperty("endData");
+        String format = properties.getProperty("format", "binary");
+        boolean cumulative = Boolean.parseBoolean(properties.getProperty("cumulative", "false"));
+        String overviewPath = properties.getProperty("overviewPath");
+
+        List<Double> contourList = new ArrayList<>();
+        for (String contourStr : contoursStr.split(",")) {
+            try {
+                contourList.add(Double.parseDouble(contourStr.trim()));
+            } catch (NumberFormatException e) {
+                /*
+                 * Ignore unparseable contour values
+                 */
+            }
+        }
+        double[] contours = new double[contourList.size()];
+        for (int c = 0; c < contours.length; c++) {
+            contours[c] = contourList.get(c);
+        }
+
+        /*
+         * Determine the size of the grid to extract extents on
+         */
+        int width = 1440;
+        int height = 720;
+        if (widthStr != null) {
+            try {
+                width = Integer.parseInt(widthStr);
+            } catch (NumberFormatException e) {
+                /* Ignore - use default value if property isn't an integer */
+            }
+        }
+        if (heightStr != null) {
+            try {
+                height = Integer.parseInt(heightStr);
+            } catch (NumberFormatException e) {
+                /* Ignore - use default value if property isn't an integer */
+            }
+        }
+        RegularGrid grid = new RegularGridImpl(-180, -90, 180, 90, DefaultGeographicCRS.WGS84,
+                width, height);
+
+        IndexedFeatureCatalogue catalogue = new IndexedFeatureCatalogue(dataPath);
+        if (overviewPath != null) {
+            catalogue.setOverviewStore(OverviewStore.open(overviewPath));
+        }
+        TimeAxis timeAxis = catalogue.getTimeAxis();
+
+        int firstFrame = 0;
+        int lastFrame = timeAxis.size() - 1;
+        if (startStr != null) {
+            firstFrame = RenderUtils.parseTimeIndex(startStr, timeAxis, firstFrame);
+        }
+        if (endStr != null) {
+            lastFrame = RenderUtils.parseTimeIndex(endStr, timeAxis, lastFrame);
+        }
+
+        ContourExtentKernel kernel = new ContourExtentKernel(width, height, contours);
+        ExtentWriter writer;
+        if ("csv".equalsIgnoreCase(format)) {
+            writer = new CsvExtentWriter(new File(outputPath));
+        } else {
+            writer = new BinaryExtentWriter(new File(outputPath));
+        }
+
+        try {
+            writer.writeHeader(lastFrame - firstFrame + 1, contours, grid.getXAxis());
+            for (DateTime time : timeAxis.getCoordinateValues().subList(firstFrame,
+                    lastFrame + 1)) {
+                log.info("Extracting contour extents for time " + time);
+                FloatArray2D values = catalogue.readField(sstVar, time, grid);
+                if (!cumulative) {
+                    /*
+                     * We want the extents on this day, not the furthest extent
+                     * reached so far
+                     */
+                    kernel.reset();
+                }
+                kernel.evolve(values);
+                writer.writeExtents(time, kernel, grid.getYAxis());
+            }
+        } finally {
+            writer.close();
+        }
+        log.info("Finished writing contour extents to " + outputPath);
+    }
+
+    /**
+     * Converts the extent of a contour to latitude, or NaN if it is not
+     * visible
+     */
+    private static float getExtentLatitude(ContourExtentKernel kernel, RegularAxis yAxis,
+            int contour, boolean north, int column) {
+        if (!kernel.isVisible(contour, north, column)) {
+            return Float.NaN;
+        }
+        return yAxis.getCoordinateValue(kernel.getExtent(contour, north, column)).floatValue();
+    }
+
+    private interface ExtentWriter {
+        public void writeHeader(int nTimes, double[] contours, RegularAxis xAxis)
+                throws IOException;
+
+        public void writeExtents(DateTime time, ContourExtentKernel kernel, RegularAxis yAxis)
+                throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    private static class BinaryExtentWriter implements ExtentWriter {
+        private final DataOutputStream out;
+
+        public BinaryExtentWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    1 << 16));
+        }
+
+        @Override
+        public void writeHeader(int nTimes, double[] contours, RegularAxis xAxis)
+                throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nTimes);
+            out.writeInt(contours.length);
+            out.writeInt(xAxis.size());
+            for (double contour : contours) {
+                out.writeFloat((float) contour);
+            }
+            for (int x = 0; x < xAxis.size(); x++) {
+                out.writeFloat(xAxis.getCoordinateValue(x).floatValue());
+            }
+        }
+
+        @Override
+        public void writeExtents(DateTime time, ContourExtentKernel kernel, RegularAxis yAxis)
+                throws IOException {
+            out.writeLong(time.getMillis());
+            for (boolean north : new boolean[] { true, false }) {
+                for (int c = 0; c < kernel.getNumContours(); c++) {
+                    for (int x = 0; x < kernel.getXSize(); x++) {
+                        out.writeFloat(getExtentLatitude(kernel, yAxis, c, north, x));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class CsvExtentWriter implements ExtentWriter {
+        private final BufferedWriter out;
+        private double[] contours;
+        private float[] longitudes;
+
+        public CsvExtentWriter(File file) throws IOException {
+            out = new BufferedWriter(new FileWriter(file), 1 << 16);
+        }
+
+        @Override
+        public void writeHeader(int nTimes, double[] contours, RegularAxis xAxis)
+                throws IOException {
+            this.contours = contours;
+            longitudes = new float[xAxis.size()];
+            for (int x = 0; x < xAxis.size(); x++) {
+                longitudes[x] = xAxis.getCoordinateValue(x).floatValue();
+            }
+            out.write("time,longitude,contour,north,south");
+            out.newLine();
+        }
+
+        @Override
+        public void writeExtents(DateTime time, ContourExtentKernel kernel, RegularAxis yAxis)
+                throws IOException {
+            String timeStr = TimeUtils.dateTimeToISO8601(time);
+            for (int x = 0; x < kernel.getXSize(); x++) {
+                for (int c = 0; c < kernel.getNumContours(); c++) {
+                    float north = getExtentLatitude(kernel, yAxis, c, true, x);
+                    float south = getExtentLatitude(kernel, yAxis, c, false, x);
+                    out.write(timeStr + "," + longitudes[x] + "," + contours[c] + ","
+                            + (Float.isNaN(north) ? "" : north) + ","
+                            + (Float.isNaN(south) ? "" : south));
+                    out.newLine();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
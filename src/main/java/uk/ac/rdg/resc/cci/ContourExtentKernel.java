@@ -0,0 +1,270 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.util.Arrays;
+
+/**
+ * Tracks the maximum northern and southern extent of a set of contours in each
+ * column of a grid.
+ * 
+ * For each contour value and each column there are two markers, one moving
+ * north (increasing y-index) and one moving south (decreasing y-index). Both
+ * start in the middle row. Each time {@link #evolve(FloatArray2D)} is called,
+ * every marker moves away from the middle of the grid until it reaches a cell
+ * whose value is less than or equal to its contour value, or the edge of the
+ * grid. Markers never move back towards the middle, so they record the
+ * furthest extent the contour has reached.
+ * 
+ * A marker is visible if the cell it passed through before stopping had a
+ * value. Missing values (NaN) are always passed over.
+ * 
+ * Each column is handled in a single scan which moves all of the markers
+ * together, and columns are processed in parallel.
+ * 
+ * @author Guy Griffiths
+ */
+public class ContourExtentKernel {
+    /*
+     * States of the value which a marker last passed through
+     */
+    private static final byte UNSET = 0;
+    private static final byte MISSING = 1;
+    private static final byte VALID = 2;
+
+    /** The number of columns to process in a single parallel task */
+    private static final int COLUMN_CHUNK_SIZE = 64;
+
+    private final int xSize;
+    private final int ySize;
+    private final int startRow;
+    private final float[] contours;
+    /*
+     * The y-index of each marker and the state of the last value it passed
+     * through, indexed by contour * xSize + column
+     */
+    private final int[] northIndices;
+    private final int[] southIndices;
+    private final byte[] northLast;
+    private final byte[] southLast;
+
+    /**
+     * Create a new {@link ContourExtentKernel}
+     * 
+     * @param xSize
+     *            The number of columns in the grids which will be processed
+     * @param ySize
+     *            The number of rows in the grids which will be processed
+     * @param contours
+     *            The contour values to track
+     */
+    public ContourExtentKernel(int xSize, int ySize, double[] contours) {
+        this.xSize = xSize;
+        this.ySize = ySize;
+        this.startRow = ySize / 2;
+        this.contours = new float[contours.length];
+        for (int c = 0; c < contours.length; c++) {
+            this.contours[c] = (float) contours[c];
+        }
+        northIndices = new int[contours.length * xSize];
+        southIndices = new int[contours.length * xSize];
+        northLast = new byte[contours.length * xSize];
+        southLast = new byte[contours.length * xSize];
+        reset();
+    }
+
+    /**
+     * Moves all markers back to the middle row, forgetting any extents
+     * reached so far
+     */
+    public void reset() {
+        Arrays.fill(northIndices, startRow);
+        Arrays.fill(southIndices, startRow);
+        Arrays.fill(northLast, UNSET);
+        Arrays.fill(southLast, UNSET);
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    public int getNumContours() {
+        return contours.length;
+    }
+
+    /**
+     * @param contour
+     *            The index of the contour value
+     * @param north
+     *            <code>true</code> for the northern (increasing y) extent,
+     *            <code>false</code> for the southern
+     * @param column
+     *            The column
+     * @return The y-index of the extent of the contour in the given column
+     */
+    public int getExtent(int contour, boolean north, int column) {
+        return north ? northIndices[contour * xSize + column] : southIndices[contour * xSize
+                + column];
+    }
+
+    /**
+     * @return Whether the marker for the given contour, direction and column
+     *         should be drawn
+     */
+    public boolean isVisible(int contour, boolean north, int column) {
+        return (north ? northLast[contour * xSize + column]
+                : southLast[contour * xSize + column]) == VALID;
+    }
+
+    /**
+     * Moves all markers using the given values
+     * 
+     * @param values
+     *            The values of the field. This must have the same size as this
+     *            kernel
+     */
+    public void evolve(final FloatArray2D values) {
+        if (values.getXSize() != xSize || values.getYSize() != ySize) {
+            throw new IllegalArgumentException("Expected a " + xSize + "x" + ySize
+                    + " grid, but got " + values.getXSize() + "x" + values.getYSize());
+        }
+        ParallelUtils.forEachRange(xSize, COLUMN_CHUNK_SIZE, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                int[] order = new int[contours.length];
+                boolean[] moving = new boolean[contours.length];
+                for (int column = from; column < to; column++) {
+                    scanColumn(values, column, 1, northIndices, northLast, order, moving);
+                    scanColumn(values, column, -1, southIndices, southLast, order, moving);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves all of the markers in a single column in a single direction
+     * 
+     * @param values
+     *            The field values
+     * @param column
+     *            The column to process
+     * @param dir
+     *            +1 to move north, -1 to move south
+     * @param indices
+     *            The marker y-indices for this direction
+     * @param last
+     *            The marker last-value states for this direction
+     * @param order
+     *            Workspace, of length equal to the number of contours
+     * @param moving
+     *            Workspace, of length equal to the number of contours
+     */
+    private void scanColumn(FloatArray2D values, int column, int dir, int[] indices,
+            byte[] last, int[] order, boolean[] moving) {
+        int nContours = contours.length;
+        /*
+         * Sort the markers by how far they have already travelled, so that we
+         * can pick each one up as the scan reaches it
+         */
+        for (int c = 0; c < nContours; c++) {
+            int pos = c;
+            int start = indices[c * xSize + column] * dir;
+            while (pos > 0 && indices[order[pos - 1] * xSize + column] * dir > start) {
+                order[pos] = order[pos - 1];
+                pos--;
+            }
+            order[pos] = c;
+        }
+
+        int boundary = dir > 0 ? ySize - 1 : 0;
+        /*
+         * Which markers are currently moving
+         */
+        Arrays.fill(moving, false);
+        int nMoving = 0;
+        int next = 0;
+        int y = indices[order[0] * xSize + column];
+        while (true) {
+            /*
+             * Pick up any markers which start at this row
+             */
+            float value = values.getFloat(y, column);
+            while (next < nContours && indices[order[next] * xSize + column] == y) {
+                int m = order[next] * xSize + column;
+                if (last[m] == UNSET) {
+                    last[m] = Float.isNaN(value) ? MISSING : VALID;
+                }
+                moving[order[next]] = true;
+                nMoving++;
+                next++;
+            }
+
+            if (nMoving > 0) {
+                boolean atBoundary = y == boundary;
+                for (int c = 0; c < nContours; c++) {
+                    if (!moving[c]) {
+                        continue;
+                    }
+                    boolean stop = !Float.isNaN(value) && value <= contours[c];
+                    if (stop || atBoundary) {
+                        int m = c * xSize + column;
+                        if (indices[m] != y) {
+                            /*
+                             * The marker moved, so the last value it passed
+                             * through was in the previous row
+                             */
+                            last[m] = Float.isNaN(values.getFloat(y - dir, column)) ? MISSING
+                                    : VALID;
+                            indices[m] = y;
+                        }
+                        moving[c] = false;
+                        nMoving--;
+                    }
+                }
+            }
+
+            if (nMoving == 0) {
+                if (next == nContours) {
+                    break;
+                }
+                /*
+                 * Nothing moving - skip straight to the next marker
+                 */
+                y = indices[order[next] * xSize + column];
+            } else {
+                y += dir;
+            }
+        }
+    }
+}
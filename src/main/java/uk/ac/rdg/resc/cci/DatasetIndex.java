@@ -0,0 +1,740 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.nc2.dataset.CoordinateAxis;
+import ucar.nc2.dataset.CoordinateAxis1D;
+import ucar.nc2.dt.GridCoordSystem;
+import ucar.nc2.dt.GridDatatype;
+import ucar.nc2.dt.grid.GridDataset;
+import ucar.nc2.time.CalendarDate;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+
+/**
+ * An index of a dataset made up of many NetCDF files (e.g. one per day), all
+ * on the same regular lat-lon grid. For each file this holds its size,
+ * modification time, and the times it contains. It also holds the grid and
+ * variables common to all files.
+ * 
+ * The index is stored in the directory at the root of the glob expression
+ * used to specify the dataset. When it is opened again, only files which have
+ * been added or modified since it was written are scanned, so we don't need
+ * to open every file in the dataset just to find out what is in it.
+ * 
+ * {@link OceanMask}s derived from the data can be stored alongside the index
+ * with {@link #writeMask(String, OceanMask)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class DatasetIndex {
+    private static final Logger log = LoggerFactory.getLogger(DatasetIndex.class);
+
+    private static final int MAGIC = 0x43434958;
+    private static final int VERSION = 1;
+    private static final int MASK_MAGIC = 0x43434d4b;
+    private static final int MASK_VERSION = 1;
+    /** Matches a yyyyMMdd date in a filename, not part of a longer number */
+    private static final Pattern FILENAME_DATE_PATTERN = Pattern
+            .compile("(?<![0-9])([0-9]{4})([0-9]{2})([0-9]{2})(?:[0-9]{6})?(?![0-9])");
+
+    /** The glob expression this index was built from */
+    private final String location;
+    /** The directory containing all files in the dataset */
+    private final File root;
+
+    /*
+     * Grid metadata, common to all files
+     */
+    private List<String> variables;
+    private double xFirst;
+    private double xSpacing;
+    private int xSize;
+    private double yFirst;
+    private double ySpacing;
+    private int ySize;
+
+    /**
+     * All indexed files, including those excluded by the {@link TimeFilter}.
+     * This is what gets written to disk.
+     */
+    private final List<FileEntry> allFiles = new ArrayList<>();
+    /** The files in use, in time order */
+    private final List<FileEntry> files = new ArrayList<>();
+    /** The times which are in use, or <code>null</code> if all are */
+    private final TimeFilter timeFilter;
+
+    /*
+     * For every time in the dataset, in order, the file it's in, and its
+     * index within that file
+     */
+    private long[] times;
+    private int[] timeFiles;
+    private int[] timeIndices;
+
+    /**
+     * Details of a single file in the dataset
+     */
+    public static class FileEntry {
+        private final String path;
+        private final long lastModified;
+        private final long length;
+        private final long[] times;
+
+        private FileEntry(String path, long lastModified, long length, long[] times) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.times = times;
+        }
+
+        /**
+         * @return The path of this file, relative to the dataset root
+         */
+        public String getPath() {
+            return path;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The times in this file, in milliseconds since the epoch
+         */
+        public long[] getTimes() {
+            return times;
+        }
+    }
+
+    /**
+     * Selects which times of a dataset are needed
+     */
+    public interface TimeFilter {
+        /**
+         * @param start
+         *            The start of a time range, in milliseconds since the
+         *            epoch
+         * @param end
+         *            The end of a time range (inclusive), in milliseconds since
+         *            the epoch
+         * @return Whether any time within the given range is needed
+         */
+        public boolean accept(long start, long end);
+    }
+
+    /**
+     * Opens the index for a dataset, creating or updating it as required.
+     * 
+     * @param location
+     *            The location of the data. Glob expressions like
+     *            /data/cci/**&#47;*.nc are allowed.
+     * @return The {@link DatasetIndex}
+     * @throws IOException
+     *             If there is a problem reading any of the data files
+     */
+    public static DatasetIndex open(String location) throws IOException {
+        return open(location, null);
+    }
+
+    /**
+     * Opens the index for a dataset, creating or updating it as required,
+     * using only the times which are needed.
+     * 
+     * Files which are not already indexed (or have been modified) but whose
+     * names contain a date (e.g. 19920101120000-ESACCI-...nc) are only opened
+     * if that day is accepted by the filter. Other files must be opened to
+     * find out which times they contain.
+     * 
+     * @param location
+     *            The location of the data. Glob expressions like
+     *            /data/cci/**&#47;*.nc are allowed.
+     * @param timeFilter
+     *            The {@link TimeFilter} selecting which times are needed, or
+     *            <code>null</code> if all times are needed
+     * @return The {@link DatasetIndex}
+     * @throws IOException
+     *             If there is a problem reading any of the data files
+     */
+    public static DatasetIndex open(String location, TimeFilter timeFilter) throws IOException {
+        DatasetIndex index = new DatasetIndex(location, timeFilter);
+        File indexFile = index.getIndexFile();
+        Map<String, FileEntry> previousEntries = index.read(indexFile);
+        boolean changed = index.scan(previousEntries);
+        if (changed) {
+            try {
+                index.write(indexFile);
+            } catch (IOException e) {
+                /*
+                 * Not being able to write the index isn't fatal, it'll just
+                 * be slower next time
+                 */
+                log.warn("Could not write dataset index to " + indexFile, e);
+            }
+        }
+        return index;
+    }
+
+    private DatasetIndex(String location, TimeFilter timeFilter) {
+        this.location = new File(location).getAbsolutePath();
+        this.timeFilter = timeFilter;
+        this.root = getRoot(this.location);
+    }
+
+    /**
+     * Gets the deepest directory which contains all files matching a glob
+     * expression
+     */
+    private static File getRoot(String location) {
+        int firstWildcard = location.length();
+        for (char wildcard : new char[] { '*', '?', '[', '{' }) {
+            int index = location.indexOf(wildcard);
+            if (index >= 0) {
+                firstWildcard = Math.min(firstWildcard, index);
+            }
+        }
+        if (firstWildcard == location.length()) {
+            /*
+             * A single file
+             */
+            return new File(location).getParentFile();
+        }
+        return new File(location.substring(0, location.lastIndexOf(File.separatorChar,
+                firstWildcard)));
+    }
+
+    private File getIndexFile() {
+        return new File(root, ".dataset-index-" + Integer.toHexString(location.hashCode()));
+    }
+
+    /**
+     * Reads a previously-written index
+     * 
+     * @return A {@link Map} of relative file path to {@link FileEntry} for
+     *         all previously-indexed files. This is empty if there is no
+     *         usable index.
+     */
+    private Map<String, FileEntry> read(File indexFile) {
+        Map<String, FileEntry> entries = new HashMap<>();
+        if (!indexFile.isFile()) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !location.equals(in.readUTF())) {
+                return entries;
+            }
+            List<String> vars = new ArrayList<>();
+            int nVars = in.readInt();
+            for (int v = 0; v < nVars; v++) {
+                vars.add(in.readUTF());
+            }
+            variables = vars;
+            xFirst = in.readDouble();
+            xSpacing = in.readDouble();
+            xSize = in.readInt();
+            yFirst = in.readDouble();
+            ySpacing = in.readDouble();
+            ySize = in.readInt();
+
+            int nFiles = in.readInt();
+            for (int f = 0; f < nFiles; f++) {
+                String path = in.readUTF();
+                long lastModified = in.readLong();
+                long length = in.readLong();
+                long[] fileTimes = new long[in.readInt()];
+                for (int t = 0; t < fileTimes.length; t++) {
+                    fileTimes[t] = in.readLong();
+                }
+                entries.put(path, new FileEntry(path, lastModified, length, fileTimes));
+            }
+        } catch (EOFException e) {
+            /*
+             * Truncated index. Rebuild from scratch
+             */
+            variables = null;
+            entries.clear();
+        } catch (IOException e) {
+            log.warn("Problem reading dataset index " + indexFile + ".  Rebuilding", e);
+            variables = null;
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void write(File indexFile) throws IOException {
+        File tempFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(location);
+            out.writeInt(variables.size());
+            for (String var : variables) {
+                out.writeUTF(var);
+            }
+            out.writeDouble(xFirst);
+            out.writeDouble(xSpacing);
+            out.writeInt(xSize);
+            out.writeDouble(yFirst);
+            out.writeDouble(ySpacing);
+            out.writeInt(ySize);
+
+            out.writeInt(allFiles.size());
+            for (FileEntry entry : allFiles) {
+                out.writeUTF(entry.path);
+                out.writeLong(entry.lastModified);
+                out.writeLong(entry.length);
+                out.writeInt(entry.times.length);
+                for (long time : entry.times) {
+                    out.writeLong(time);
+                }
+            }
+        }
+        Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Finds all files matching the location, and scans any which are not in
+     * the previous index (or have changed since it was written)
+     * 
+     * @return Whether the index has changed
+     */
+    private boolean scan(Map<String, FileEntry> previousEntries) throws IOException {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + location);
+        final List<Path> paths = new ArrayList<>();
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && matcher.matches(file)) {
+                    paths.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(paths);
+
+        Path rootPath = root.toPath();
+        boolean changed = false;
+        /* The number of entries from the previous index which are still valid */
+        int nKept = 0;
+        int nScanned = 0;
+        int nSkipped = 0;
+        for (Path path : paths) {
+            String relativePath = rootPath.relativize(path).toString();
+            File file = path.toFile();
+            FileEntry entry = previousEntries.get(relativePath);
+            if (entry == null || entry.lastModified != file.lastModified()
+                    || entry.length != file.length()) {
+                if (timeFilter != null && !mayBeNeeded(file.getName())) {
+                    /*
+                     * We don't need this file. Keep any old entry so that
+                     * the index still knows about it, but don't open it. It
+                     * will get rescanned when it is needed. Files which have
+                     * never been indexed don't change the index
+                     */
+                    if (entry != null) {
+                        allFiles.add(entry);
+                        nKept++;
+                    }
+                    nSkipped++;
+                    continue;
+                }
+                FileEntry scanned = scanFile(file, relativePath);
+                if (scanned == null) {
+                    /*
+                     * Record unusable files with no times, so that they don't
+                     * get opened again until they change
+                     */
+                    scanned = new FileEntry(relativePath, file.lastModified(), file.length(),
+                            new long[0]);
+                }
+                entry = scanned;
+                changed = true;
+                nScanned++;
+            } else {
+                nKept++;
+            }
+            allFiles.add(entry);
+            if (entry.times.length > 0 && (timeFilter == null || isNeeded(entry))) {
+                files.add(entry);
+            }
+        }
+        if (nKept != previousEntries.size()) {
+            /*
+             * Some files have been removed (or replaced by new entries)
+             */
+            changed = true;
+        }
+        if (nScanned > 0) {
+            log.info("Scanned " + nScanned + " new or modified files for dataset " + location);
+        }
+        if (nSkipped > 0) {
+            log.info("Skipped " + nSkipped + " unindexed files outside the required times");
+        }
+        if (files.isEmpty()) {
+            throw new IOException("No usable data files found at " + location);
+        }
+        buildTimeLookup();
+        return changed;
+    }
+
+    /**
+     * Reads the metadata of a single file
+     * 
+     * @return The {@link FileEntry} for the file, or <code>null</code> if it
+     *         cannot be used in this dataset
+     */
+    private FileEntry scanFile(File file, String relativePath) throws IOException {
+        GridDataset gridDataset = GridDataset.open(file.getAbsolutePath());
+        try {
+            List<String> fileVars = new ArrayList<>();
+            GridCoordSystem coordSys = null;
+            for (GridDatatype grid : gridDataset.getGrids()) {
+                fileVars.add(grid.getName());
+                if (coordSys == null) {
+                    coordSys = grid.getCoordinateSystem();
+                }
+            }
+            if (coordSys == null) {
+                log.warn("No gridded variables in " + file + ".  Ignoring");
+                return null;
+            }
+            CoordinateAxis xAxis = coordSys.getXHorizAxis();
+            CoordinateAxis yAxis = coordSys.getYHorizAxis();
+            if (!(xAxis instanceof CoordinateAxis1D) || !(yAxis instanceof CoordinateAxis1D)
+                    || !((CoordinateAxis1D) xAxis).isRegular()
+                    || !((CoordinateAxis1D) yAxis).isRegular()) {
+                log.warn("Grid in " + file + " is not regular.  Ignoring");
+                return null;
+            }
+            CoordinateAxis1D x = (CoordinateAxis1D) xAxis;
+            CoordinateAxis1D y = (CoordinateAxis1D) yAxis;
+            if (variables == null) {
+                /*
+                 * This is the first file we've seen. It defines the grid
+                 */
+                variables = fileVars;
+                xFirst = x.getStart();
+                xSpacing = x.getIncrement();
+                xSize = (int) x.getSize();
+                yFirst = y.getStart();
+                ySpacing = y.getIncrement();
+                ySize = (int) y.getSize();
+            } else if (xSize != x.getSize() || ySize != y.getSize()
+                    || Math.abs(xFirst - x.getStart()) > 1e-6 * Math.abs(xSpacing)
+                    || Math.abs(yFirst - y.getStart()) > 1e-6 * Math.abs(ySpacing)) {
+                log.warn("Grid in " + file + " does not match the rest of the dataset.  Ignoring");
+                return null;
+            }
+
+            long[] fileTimes;
+            if (coordSys.hasTimeAxis1D()) {
+                List<CalendarDate> dates = coordSys.getTimeAxis1D().getCalendarDates();
+                fileTimes = new long[dates.size()];
+                for (int t = 0; t < fileTimes.length; t++) {
+                    fileTimes[t] = dates.get(t).getMillis();
+                }
+            } else {
+                log.warn("No time axis in " + file + ".  Ignoring");
+                return null;
+            }
+            return new FileEntry(relativePath, file.lastModified(), file.length(), fileTimes);
+        } finally {
+            gridDataset.close();
+        }
+    }
+
+    /**
+     * Determines whether a file may contain needed times, using the date in
+     * its filename.
+     * 
+     * @return <code>false</code> if the filename contains a date (as
+     *         yyyyMMdd) and no time on that day is needed, <code>true</code>
+     *         otherwise
+     */
+    private boolean mayBeNeeded(String filename) {
+        Matcher matcher = FILENAME_DATE_PATTERN.matcher(filename);
+        if (!matcher.find()) {
+            return true;
+        }
+        int year = Integer.parseInt(matcher.group(1));
+        int month = Integer.parseInt(matcher.group(2));
+        int day = Integer.parseInt(matcher.group(3));
+        if (month < 1 || month > 12 || day < 1 || day > 31) {
+            return true;
+        }
+        try {
+            DateTime dayStart = new DateTime(year, month, day, 0, 0,
+                    ISOChronology.getInstanceUTC());
+            return timeFilter.accept(dayStart.getMillis(), dayStart.plusDays(1).getMillis() - 1);
+        } catch (IllegalArgumentException e) {
+            /*
+             * Not a valid date (e.g. 30th Feb)
+             */
+            return true;
+        }
+    }
+
+    /**
+     * @return Whether any of the times in the file are needed
+     */
+    private boolean isNeeded(FileEntry entry) {
+        for (long time : entry.times) {
+            if (timeFilter.accept(time, time)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sorts the files into time order, and builds the lookup from time to
+     * file
+     */
+    private void buildTimeLookup() {
+        Collections.sort(files, new Comparator<FileEntry>() {
+            @Override
+            public int compare(FileEntry f1, FileEntry f2) {
+                long t1 = f1.times.length > 0 ? f1.times[0] : Long.MIN_VALUE;
+                long t2 = f2.times.length > 0 ? f2.times[0] : Long.MIN_VALUE;
+                return Long.compare(t1, t2);
+            }
+        });
+        int nTimes = 0;
+        for (FileEntry entry : files) {
+            nTimes += entry.times.length;
+        }
+        times = new long[nTimes];
+        timeFiles = new int[nTimes];
+        timeIndices = new int[nTimes];
+        int i = 0;
+        for (int f = 0; f < files.size(); f++) {
+            long[] fileTimes = files.get(f).times;
+            for (int t = 0; t < fileTimes.length; t++) {
+                if (timeFilter != null && !timeFilter.accept(fileTimes[t], fileTimes[t])) {
+                    continue;
+                }
+                times[i] = fileTimes[t];
+                timeFiles[i] = f;
+                timeIndices[i] = t;
+                i++;
+            }
+        }
+        nTimes = i;
+        times = Arrays.copyOf(times, nTimes);
+        /*
+         * Files may overlap in time, so sort the lookup too
+         */
+        Integer[] order = new Integer[nTimes];
+        for (int t = 0; t < nTimes; t++) {
+            order[t] = t;
+        }
+        final long[] unsortedTimes = times;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer t1, Integer t2) {
+                return Long.compare(unsortedTimes[t1], unsortedTimes[t2]);
+            }
+        });
+        long[] sortedTimes = new long[nTimes];
+        int[] sortedFiles = new int[nTimes];
+        int[] sortedIndices = new int[nTimes];
+        for (int t = 0; t < nTimes; t++) {
+            sortedTimes[t] = times[order[t]];
+            sortedFiles[t] = timeFiles[order[t]];
+            sortedIndices[t] = timeIndices[order[t]];
+        }
+        times = sortedTimes;
+        timeFiles = sortedFiles;
+        timeIndices = sortedIndices;
+    }
+
+    /**
+     * @return The names of the gridded variables in this dataset
+     */
+    public List<String> getVariables() {
+        return Collections.unmodifiableList(variables);
+    }
+
+    /**
+     * @return The native grid of the data. The y-axis may be in either
+     *         direction, matching the order of the data in the files.
+     */
+    public RegularGrid getGrid() {
+        return new RegularGridImpl(new RegularAxisImpl("longitude", xFirst, xSpacing, xSize,
+                true), new RegularAxisImpl("latitude", yFirst, ySpacing, ySize, false),
+                DefaultGeographicCRS.WGS84);
+    }
+
+    /**
+     * @return A {@link TimeAxis} containing all times in the dataset
+     */
+    public TimeAxis getTimeAxis() {
+        List<DateTime> dateTimes = new ArrayList<>(times.length);
+        for (long time : times) {
+            DateTime dateTime = new DateTime(time, ISOChronology.getInstanceUTC());
+            if (dateTimes.isEmpty() || !dateTimes.get(dateTimes.size() - 1).equals(dateTime)) {
+                dateTimes.add(dateTime);
+            }
+        }
+        return new TimeAxisImpl("time", dateTimes);
+    }
+
+    /**
+     * @return The files in this dataset, in time order
+     */
+    public List<FileEntry> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * Gets the absolute path of a file in this dataset
+     */
+    public File getFile(FileEntry entry) {
+        return new File(root, entry.path);
+    }
+
+    /**
+     * Finds the position of the given time in this dataset
+     * 
+     * @param time
+     *            The time to find, in milliseconds since the epoch
+     * @return The index of the time in the lookup, or -1 if the time is not
+     *         in this dataset. Use {@link #getFileEntry(int)} and
+     *         {@link #getIndexInFile(int)} with this value to find where the
+     *         data for the time is stored
+     */
+    public int findTime(long time) {
+        int index = Arrays.binarySearch(times, time);
+        return index >= 0 ? index : -1;
+    }
+
+    public FileEntry getFileEntry(int timeIndex) {
+        return files.get(timeFiles[timeIndex]);
+    }
+
+    public int getIndexInFile(int timeIndex) {
+        return timeIndices[timeIndex];
+    }
+
+    private File getMaskFile(String key) {
+        return new File(root, getIndexFile().getName() + "-mask-"
+                + Integer.toHexString(key.hashCode()));
+    }
+
+    /**
+     * Reads an {@link OceanMask} which was stored with this index
+     * 
+     * @param key
+     *            The key the mask was stored with. This should identify both
+     *            the variable and the grid the mask applies to
+     * @return The {@link OceanMask}, or <code>null</code> if no mask has been
+     *         stored with the given key
+     */
+    public OceanMask readMask(String key) {
+        File maskFile = getMaskFile(key);
+        if (!maskFile.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(maskFile), 1 << 16))) {
+            if (in.readInt() != MASK_MAGIC || in.readInt() != MASK_VERSION
+                    || !key.equals(in.readUTF())) {
+                return null;
+            }
+            return OceanMask.read(in);
+        } catch (IOException e) {
+            log.warn("Problem reading ocean mask " + maskFile + ".  Ignoring", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an {@link OceanMask} with this index
+     * 
+     * @param key
+     *            The key to store the mask with. This should identify both the
+     *            variable and the grid the mask applies to
+     * @param mask
+     *            The {@link OceanMask} to store
+     * @throws IOException
+     *             If the mask cannot be written
+     */
+    public void writeMask(String key, OceanMask mask) throws IOException {
+        File maskFile = getMaskFile(key);
+        File tempFile = new File(maskFile.getParentFile(), maskFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MASK_MAGIC);
+            out.writeInt(MASK_VERSION);
+            out.writeUTF(key);
+            mask.write(out);
+        }
+        Files.move(tempFile.toPath(), maskFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.IOException;
+
+import ucar.ma2.Array;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Reads fields at a reduced resolution which is matched to a target grid.
+ * 
+ * Rather than reading the full-resolution field and then picking the nearest
+ * value for each target cell, blocks of native cells are averaged (ignoring
+ * NaNs) to produce a field on a decimated grid. This has roughly the same
+ * resolution as the target grid (but is never coarser), so nearest-neighbour
+ * resampling from it doesn't lose information, and reduces aliasing where the
+ * field changes sharply (e.g. at coastlines and ice edges).
+ * 
+ * Only the rows covering the latitude range of the target grid are read, and
+ * they are read in bands so that the full-resolution field is never held in
+ * memory.
+ * 
+ * Decimation is only done for target grids in WGS84 - for other CRSs the
+ * factors are both 1, and {@link #isDecimated()} returns <code>false</code>.
+ * 
+ * @author Guy Griffiths
+ */
+public class DecimatedFieldReader {
+    /** The minimum number of native rows to read at once */
+    private static final int MIN_BAND_ROWS = 512;
+
+    private final int nativeXSize;
+    private final int xFactor;
+    private final int yFactor;
+    /** The first native row which is read */
+    private final int rowStart;
+    /** The number of native rows which are read */
+    private final int nRows;
+    private final RegularGrid grid;
+    private final boolean decimated;
+
+    /**
+     * @param nativeGrid
+     *            The {@link RegularGrid} the data is stored on
+     * @param targetGrid
+     *            The {@link RegularGrid} the data will be resampled onto
+     */
+    public DecimatedFieldReader(RegularGrid nativeGrid, RegularGrid targetGrid) {
+        RegularAxis nativeX = nativeGrid.getXAxis();
+        RegularAxis nativeY = nativeGrid.getYAxis();
+        nativeXSize = nativeX.size();
+        int nativeYSize = nativeY.size();
+
+        if (!GISUtils.isWgs84LonLat(targetGrid.getCoordinateReferenceSystem())) {
+            xFactor = 1;
+            yFactor = 1;
+            rowStart = 0;
+            nRows = nativeYSize;
+            grid = nativeGrid;
+            decimated = false;
+            return;
+        }
+
+        /*
+         * Choose the largest factors which still give at least the target
+         * resolution. In the x-direction, this must divide the number of
+         * columns exactly, so that a global grid still wraps
+         */
+        double nativeXSpacing = Math.abs(nativeX.getCoordinateSpacing());
+        double nativeYSpacing = Math.abs(nativeY.getCoordinateSpacing());
+        int maxXFactor = (int) Math.floor(Math.abs(targetGrid.getXAxis()
+                .getCoordinateSpacing()) / nativeXSpacing + 1e-6);
+        int maxYFactor = (int) Math.floor(Math.abs(targetGrid.getYAxis()
+                .getCoordinateSpacing()) / nativeYSpacing + 1e-6);
+        int factor = Math.max(1, Math.min(maxXFactor, nativeXSize));
+        while (nativeXSize % factor != 0) {
+            factor--;
+        }
+        xFactor = factor;
+        yFactor = Math.max(1, Math.min(maxYFactor, nativeYSize));
+
+        /*
+         * Find the native rows covering the target latitudes, with a block
+         * to spare at each end
+         */
+        double targetMinY = targetGrid.getBoundingBox().getMinY();
+        double targetMaxY = targetGrid.getBoundingBox().getMaxY();
+        double nativeFirstY = nativeY.getCoordinateValue(0);
+        double nativeYStep = nativeY.getCoordinateSpacing();
+        int row1 = (int) Math.floor((targetMinY - nativeFirstY) / nativeYStep);
+        int row2 = (int) Math.floor((targetMaxY - nativeFirstY) / nativeYStep);
+        int firstRow = Math.max(0, Math.min(row1, row2) - yFactor);
+        int lastRow = Math.min(nativeYSize - 1, Math.max(row1, row2) + yFactor);
+        if (lastRow < firstRow) {
+            /*
+             * Target grid is entirely outside the data. Just read the first
+             * block
+             */
+            firstRow = 0;
+            lastRow = Math.min(nativeYSize, yFactor) - 1;
+        }
+        rowStart = firstRow;
+        nRows = lastRow - firstRow + 1;
+
+        decimated = xFactor != 1 || yFactor != 1 || nRows != nativeYSize;
+        if (!decimated) {
+            grid = nativeGrid;
+        } else {
+            /*
+             * The decimated grid has its cell centres in the middle of each
+             * block of native cells
+             */
+            double nativeFirstX = nativeX.getCoordinateValue(0);
+            double nativeXStep = nativeX.getCoordinateSpacing();
+            RegularAxis xAxis = new RegularAxisImpl(nativeX.getName(), nativeFirstX
+                    + nativeXStep * (xFactor - 1) / 2.0, nativeXStep * xFactor, nativeXSize
+                    / xFactor, true);
+            RegularAxis yAxis = new RegularAxisImpl(nativeY.getName(), nativeFirstY
+                    + nativeYStep * (rowStart + (yFactor - 1) / 2.0), nativeYStep * yFactor,
+                    (nRows + yFactor - 1) / yFactor, false);
+            grid = new RegularGridImpl(xAxis, yAxis, nativeGrid.getCoordinateReferenceSystem());
+        }
+    }
+
+    /**
+     * @return <code>true</code> if this reader reads anything other than the
+     *         full native grid
+     */
+    public boolean isDecimated() {
+        return decimated;
+    }
+
+    /**
+     * @return The {@link RegularGrid} of the fields returned by
+     *         {@link #read(Variable, int)}
+     */
+    public RegularGrid getGrid() {
+        return grid;
+    }
+
+    public int getXFactor() {
+        return xFactor;
+    }
+
+    public int getYFactor() {
+        return yFactor;
+    }
+
+    /**
+     * Reads a decimated field from a variable. This is not thread-safe with
+     * respect to the underlying file - callers must ensure that no other
+     * thread is reading from the same file.
+     * 
+     * @param variable
+     *            The {@link Variable} to read. This should be either 2D
+     *            (lat, lon) or 3D (time, lat, lon), and should be from an
+     *            enhanced dataset so that missing values are NaN
+     * @param timeIndex
+     *            The time index to read (ignored for 2D variables)
+     * @return The averaged values on the grid returned by {@link #getGrid()}
+     */
+    public FloatArray2D read(Variable variable, int timeIndex) throws IOException,
+            InvalidRangeException {
+        return read(variable, timeIndex, null);
+    }
+
+    /**
+     * Reads a decimated field from a variable, skipping the parts of it which
+     * are not needed. This is not thread-safe with respect to the underlying
+     * file - callers must ensure that no other thread is reading from the same
+     * file.
+     * 
+     * @param variable
+     *            The {@link Variable} to read. This should be either 2D
+     *            (lat, lon) or 3D (time, lat, lon), and should be from an
+     *            enhanced dataset so that missing values are NaN
+     * @param timeIndex
+     *            The time index to read (ignored for 2D variables)
+     * @param nativeRowsNeeded
+     *            Which rows of the native grid are needed, or
+     *            <code>null</code> if all are. Bands which contain none of the
+     *            needed rows are not read, and are left as NaN
+     * @return The averaged values on the grid returned by {@link #getGrid()}
+     */
+    public FloatArray2D read(Variable variable, int timeIndex, boolean[] nativeRowsNeeded)
+            throws IOException, InvalidRangeException {
+        int outXSize = grid.getXSize();
+        int outYSize = grid.getYSize();
+        FloatArray2D values = new FloatArray2D(outYSize, outXSize);
+        float[] sums = new float[outXSize];
+        int[] counts = new int[outXSize];
+
+        int bandRows = getBandRows(variable);
+        for (int bandStart = 0; bandStart < nRows; bandStart += bandRows) {
+            int bandSize = Math.min(bandRows, nRows - bandStart);
+            if (!BandedFieldReader.anyNeeded(nativeRowsNeeded, rowStart + bandStart, bandSize)) {
+                continue;
+            }
+            Array band = readRows(variable, timeIndex, rowStart + bandStart, bandSize);
+            /*
+             * Each band holds a whole number of blocks, apart from possibly
+             * the last
+             */
+            for (int blockStart = 0; blockStart < bandSize; blockStart += yFactor) {
+                int blockSize = Math.min(yFactor, bandSize - blockStart);
+                for (int x = 0; x < outXSize; x++) {
+                    sums[x] = 0f;
+                    counts[x] = 0;
+                }
+                for (int row = blockStart; row < blockStart + blockSize; row++) {
+                    int rowOffset = row * nativeXSize;
+                    for (int i = 0; i < nativeXSize; i++) {
+                        float value = band.getFloat(rowOffset + i);
+                        if (!Float.isNaN(value)) {
+                            int x = i / xFactor;
+                            sums[x] += value;
+                            counts[x]++;
+                        }
+                    }
+                }
+                int outY = (bandStart + blockStart) / yFactor;
+                for (int x = 0; x < outXSize; x++) {
+                    if (counts[x] > 0) {
+                        values.setFloat(sums[x] / counts[x], outY, x);
+                    }
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Chooses how many rows to read at once. Reading whole chunks avoids
+     * decompressing the same chunk several times, and each band must contain
+     * a whole number of blocks
+     */
+    private int getBandRows(Variable variable) {
+        int rows = MIN_BAND_ROWS;
+        Attribute chunkSizes = variable.findAttribute("_ChunkSizes");
+        if (chunkSizes != null && chunkSizes.getLength() == variable.getRank()) {
+            int chunkRows = chunkSizes.getNumericValue(variable.getRank() - 2).intValue();
+            if (chunkRows > 0) {
+                rows = ((rows + chunkRows - 1) / chunkRows) * chunkRows;
+            }
+        }
+        rows = ((rows + yFactor - 1) / yFactor) * yFactor;
+        return Math.min(rows, ((nRows + yFactor - 1) / yFactor) * yFactor);
+    }
+
+    private Array readRows(Variable variable, int timeIndex, int firstRow, int rows)
+            throws IOException, InvalidRangeException {
+        if (variable.getRank() == 3) {
+            return variable.read(new int[] { timeIndex, firstRow, 0 }, new int[] { 1, rows,
+                    nativeXSize });
+        } else {
+            return variable.read(new int[] { firstRow, 0 }, new int[] { rows, nativeXSize });
+        }
+    }
+}
@@ -28,198 +28,524 @@
 
 package uk.ac.rdg.resc.cci;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
-import uk.ac.rdg.resc.edal.grid.GridCell2D;
-import uk.ac.rdg.resc.edal.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
 public class EvolvingWindPlotter {
+    /**
+     * The ways in which wind line trails can be drawn
+     */
+    public enum TrailMode {
+        /**
+         * Each frame, the full history of every wind line is drawn, fading out
+         * along its length. The cost of plotting increases with the trail
+         * length.
+         */
+        HISTORY,
+        /**
+         * Trails are kept in a persistent image. Each frame, the image is
+         * faded by a constant factor and only the newest segment of each wind
+         * line is drawn. The cost of plotting is independent of the trail
+         * length.
+         */
+        ACCUMULATION
+    }
+
+    /**
+     * The maximum number of live wind lines allowed to pass through a single
+     * cell of the position grid in one timestep
+     */
+    private static final int MAX_LINES_PER_CELL = 4;
+    /** The number of wind lines to advect in a single parallel task */
+    private static final int LINE_CHUNK_SIZE = 2048;
+
     private final double weight;
     private List<EvolvingWindLine> windLines = new ArrayList<>();
+    /** Wind lines which have completely faded out, ready to be re-used */
+    private Deque<EvolvingWindLine> freeLines = new ArrayDeque<>();
     private RegularGrid imageGrid;
     private RegularGrid positionGrid;
 
+    /*
+     * The co-ordinates of the centres of the position grid cells, and the
+     * number of wind lines in each cell. These are indexed by y * xSize + x
+     * and re-used on every call to evolve()
+     */
+    private final double[] seedXs;
+    private final double[] seedYs;
+    private final int[] densityCounts;
+    /** Per-cell counts used when the density limit is applied concurrently */
+    private final AtomicIntegerArray sharedCounts;
+    /** The density cell of each line in the current timestep, or -1 */
+    private int[] lineCells = new int[0];
+    private boolean deterministic = false;
+
+    /*
+     * Statistics from the most recent call to evolve()
+     */
+    private int particleCount = 0;
+    private int births = 0;
+    private int deaths = 0;
+
     private Color baseColour;
     private int length;
+    private final TrailMode trailMode;
+    /** The factor to fade the image by each frame in ACCUMULATION mode */
+    private final float decay;
+
+    private final TrailRasteriser rasteriser;
+    /**
+     * The premultiplied colour of each segment of a wind line, where index 0
+     * is the segment at the head of the line
+     */
+    private final int[] alphaRamp;
+    /** Maps wind line positions onto the image */
+    private final PixelMapper pixelMapper;
+    /*
+     * Buffers of wind line positions and their pixel co-ordinates, re-used
+     * each time we plot
+     */
+    private double[] plotXs = new double[0];
+    private double[] plotYs = new double[0];
+    private int[] pixelXs = new int[0];
+    private int[] pixelYs = new int[0];
 
     public EvolvingWindPlotter(RegularGrid imageGrid, double weight, int gridSpace,
             Color baseColour, int length) {
+        this(imageGrid, weight, gridSpace, baseColour, length, TrailMode.HISTORY);
+    }
+
+    /**
+     * Create a new {@link EvolvingWindPlotter}
+     * 
+     * @param imageGrid
+     *            The {@link RegularGrid} of the image to plot onto
+     * @param weight
+     *            The distance to move a wind line per unit of wind
+     * @param gridSpace
+     *            The spacing, in pixels, of the grid used to seed wind lines
+     *            and limit their density
+     * @param baseColour
+     *            The colour of the head of each wind line
+     * @param length
+     *            The length of the wind line trails, in timesteps
+     * @param trailMode
+     *            How to draw the trails
+     */
+    public EvolvingWindPlotter(RegularGrid imageGrid, double weight, int gridSpace,
+            Color baseColour, int length, TrailMode trailMode) {
         this.imageGrid = imageGrid;
         this.weight = weight;
+        this.baseColour = baseColour;
+        this.trailMode = trailMode;
+        /*
+         * When accumulating, the trail is kept in the image, so the lines only
+         * need to store their latest segment. The decay is chosen so that a
+         * trail has faded by the same amount halfway along its length as it
+         * does with the cubic fade used in HISTORY mode.
+         */
+        this.length = trailMode == TrailMode.ACCUMULATION ? 2 : length;
+        this.decay = (float) Math.pow(0.125, 2.0 / Math.max(1, length - 1));
+
+        rasteriser = new TrailRasteriser(imageGrid.getXSize(), imageGrid.getYSize());
+        alphaRamp = new int[this.length];
+        for (int i = 0; i < this.length; i++) {
+            float alpha = this.length > 1 ? ((float) (this.length - 1 - i)) / (this.length - 1)
+                    : 1f;
+            /*
+             * Using alpha^3 gives a nicer fadeout
+             */
+            alphaRamp[i] = TrailRasteriser.premultiply(baseColour,
+                    (int) (255 * alpha * alpha * alpha));
+        }
+
         this.positionGrid = new RegularGridImpl(imageGrid.getBoundingBox(), imageGrid.getXSize()
                 / gridSpace, imageGrid.getYSize() / gridSpace);
 
-        Iterator<GridCell2D> iterator = positionGrid.getDomainObjects().iterator();
-        while (iterator.hasNext()) {
-            windLines.add(new EvolvingWindLine(iterator.next().getCentre(), weight, length));
+        int xSize = positionGrid.getXSize();
+        int ySize = positionGrid.getYSize();
+        seedXs = new double[xSize * ySize];
+        seedYs = new double[xSize * ySize];
+        densityCounts = new int[xSize * ySize];
+        sharedCounts = new AtomicIntegerArray(xSize * ySize);
+        for (int j = 0; j < ySize; j++) {
+            double y = positionGrid.getYAxis().getCoordinateValue(j);
+            for (int i = 0; i < xSize; i++) {
+                seedXs[j * xSize + i] = positionGrid.getXAxis().getCoordinateValue(i);
+                seedYs[j * xSize + i] = y;
+            }
         }
 
-        this.baseColour = baseColour;
-        this.length = length;
+        for (int cell = 0; cell < seedXs.length; cell++) {
+            windLines.add(new EvolvingWindLine(new HorizontalPosition(seedXs[cell], seedYs[cell],
+                    positionGrid.getCoordinateReferenceSystem()), weight, this.length));
+        }
+        particleCount = windLines.size();
+        pixelMapper = new PixelMapper(positionGrid.getCoordinateReferenceSystem(), imageGrid);
     }
 
     public void addWindLine(HorizontalPosition position) {
-        windLines.add(new EvolvingWindLine(position, weight, length));
+        /*
+         * All lines are kept in the same CRS so that they can be mapped onto
+         * the image together
+         */
+        CoordinateReferenceSystem crs = positionGrid.getCoordinateReferenceSystem();
+        if (!GISUtils.crsMatch(position.getCoordinateReferenceSystem(), crs)) {
+            position = GISUtils.transformPosition(position, crs);
+        }
+        windLines.add(newWindLine(position.getX(), position.getY(), crs));
+        particleCount++;
+    }
+
+    /**
+     * @return The number of live (i.e. not expired) wind lines after the most
+     *         recent call to {@link #evolve(WindField)}
+     */
+    public int getParticleCount() {
+        return particleCount;
     }
 
+    /**
+     * @return The number of wind lines seeded in the most recent call to
+     *         {@link #evolve(WindField)}
+     */
+    public int getBirths() {
+        return births;
+    }
+
+    /**
+     * @return The number of wind lines which expired in the most recent call
+     *         to {@link #evolve(WindField)}
+     */
+    public int getDeaths() {
+        return deaths;
+    }
+
+    /**
+     * Plots the current state of all wind lines.
+     * 
+     * @return An image containing the wind lines. Note that the same image
+     *         object is re-used (and overwritten) on every call to this method.
+     */
     public BufferedImage plot() {
-        BufferedImage image = new BufferedImage(imageGrid.getXSize(), imageGrid.getYSize(),
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = image.createGraphics();
+        if (trailMode == TrailMode.ACCUMULATION) {
+            return plotNewestSegments();
+        }
 
-        RegularAxis xAxis = imageGrid.getXAxis();
-        RegularAxis yAxis = imageGrid.getYAxis();
+        /*
+         * Convert every position of every wind line to image grid pixel
+         * co-ordinates in one go
+         */
+        int nPoints = mapPositions(length);
 
+        rasteriser.reset();
         /*
          * Plot each wind line
          */
-        for (EvolvingWindLine line : windLines) {
-            List<HorizontalPosition> positions = line.getPositions();
-            CoordinateReferenceSystem crs = line.getCrs();
-            for (int i = 0; i < positions.size() - 1; i++) {
+        for (int p = 0; p < nPoints; p += length) {
+            for (int i = 0; i < length - 1; i++) {
                 /*
                  * p1 is the position closest to the head of the line p2 is the
                  * next one along
                  */
-                HorizontalPosition p1 = positions.get(i);
-                HorizontalPosition p2 = positions.get(i + 1);
-
-                if (p1 != null) {
-                    /*
-                     * Convert p1 to image grid co-ordinate space
-                     */
-                    if (!GISUtils.crsMatch(crs, imageGrid.getCoordinateReferenceSystem())) {
-                        p1 = GISUtils.transformPosition(p1,
-                                imageGrid.getCoordinateReferenceSystem());
-                    }
-                    int x1 = xAxis.findIndexOfUnconstrained(p1.getX());
-                    int y1 = imageGrid.getYSize() - 1 - yAxis.findIndexOfUnconstrained(p1.getY());
-
+                int p1 = p + i;
+                int p2 = p1 + 1;
+                if (pixelXs[p1] != PixelMapper.INVALID) {
                     /*
-                     * Set the transparency based on proximity to the head of
+                     * The transparency is based on proximity to the head of
                      * the line
                      */
-                    float alpha = ((float) (line.length - 1 - i)) / (line.length - 1);
-                    /*
-                     * Using alpha^3 gives a nicer fadeout
-                     */
-                    alpha = 255 * (alpha * alpha * alpha * (baseColour.getAlpha() / 255f));
-                    Color c = new Color(baseColour.getRed(), baseColour.getGreen(),
-                            baseColour.getBlue(), (int) alpha);
-                    g.setColor(c);
-                    g.setStroke(new BasicStroke(2));
-
-                    if (p2 == null) {
+                    int colour = alphaRamp[i];
+                    if (pixelXs[p2] == PixelMapper.INVALID) {
                         /*
                          * We only have one point - plot it as a pixel
                          */
-                        image.setRGB(x1, y1, c.getRGB());
-                    } else {
+                        rasteriser.addPoint(pixelXs[p1], pixelYs[p1], colour, 1);
+                    } else if (Math.abs(pixelXs[p1] - pixelXs[p2]) < imageGrid.getXSize() / 2) {
                         /*
                          * We have a line segment - plot it.
+                         * 
+                         * Simple check for date line crossing.
+                         * 
+                         * Far from ideal, but if the winds are so strong that
+                         * a particle covers more than half the image grid,
+                         * something funny is probably going on anyway...
                          */
-                        if (!GISUtils.crsMatch(crs, imageGrid.getCoordinateReferenceSystem())) {
-                            p2 = GISUtils.transformPosition(p2,
-                                    imageGrid.getCoordinateReferenceSystem());
-                        }
-
-                        int x2 = xAxis.findIndexOfUnconstrained(p2.getX());
-                        int y2 = imageGrid.getYSize() - 1
-                                - yAxis.findIndexOfUnconstrained(p2.getY());
-
-                        if (Math.abs(x1 - x2) < imageGrid.getXSize() / 2) {
-                            /*
-                             * Simple check for date line crossing.
-                             * 
-                             * Far from ideal, but if the winds are so strong
-                             * that a particle covers more than half the image
-                             * grid, something funny is probably going on
-                             * anyway...
-                             */
-                            g.drawLine(x1, y1, x2, y2);
-                        }
+                        rasteriser.addSegment(pixelXs[p1], pixelYs[p1], pixelXs[p2],
+                                pixelYs[p2], colour, 2);
                     }
                 }
             }
         }
 
-        return image;
+        return rasteriser.render();
     }
 
-    public void evolve(Array2D<Number> xComps, Array2D<Number> yComps) {
-        Map<GridCoordinates2D, Integer> counts = new HashMap<>();
-        for (int i = 0; i < positionGrid.getXSize(); i++) {
-            for (int j = 0; j < positionGrid.getYSize(); j++) {
-                counts.put(new GridCoordinates2D(i, j), 0);
+    /**
+     * Fades the existing trails and draws the newest segment of each wind line
+     * on top of them
+     */
+    private BufferedImage plotNewestSegments() {
+        int nPoints = mapPositions(2);
+        int colour = alphaRamp[0];
+
+        rasteriser.reset();
+        rasteriser.fade(decay);
+        for (int p1 = 0; p1 < nPoints; p1 += 2) {
+            int p2 = p1 + 1;
+            if (pixelXs[p1] == PixelMapper.INVALID) {
+                continue;
+            }
+            if (pixelXs[p2] == PixelMapper.INVALID) {
+                rasteriser.addPoint(pixelXs[p1], pixelYs[p1], colour, 1);
+            } else if (Math.abs(pixelXs[p1] - pixelXs[p2]) < imageGrid.getXSize() / 2) {
+                /*
+                 * Same date line check as in plot()
+                 */
+                rasteriser.addSegment(pixelXs[p1], pixelYs[p1], pixelXs[p2], pixelYs[p2],
+                        colour, 2);
             }
         }
+        return rasteriser.render(false);
+    }
 
+    /**
+     * Maps the most recent positions of every wind line onto image pixels.
+     * The pixel co-ordinates of position i of line l are stored at index l *
+     * nPositions + i of {@link #pixelXs} and {@link #pixelYs}
+     * 
+     * @param nPositions
+     *            The number of positions of each line to map, starting at the
+     *            head
+     * @return The total number of positions mapped
+     */
+    private int mapPositions(int nPositions) {
+        int nPoints = windLines.size() * nPositions;
+        if (plotXs.length < nPoints) {
+            int newLength = Math.max(nPoints, 2 * plotXs.length);
+            plotXs = new double[newLength];
+            plotYs = new double[newLength];
+            pixelXs = new int[newLength];
+            pixelYs = new int[newLength];
+        }
+        int p = 0;
         for (EvolvingWindLine line : windLines) {
-            if (line.expired) {
-                /* Doesn't matter how we evolve this, since it's expired */
-                line.evolve(0, 0);
-                continue;
+            for (int i = 0; i < nPositions; i++) {
+                /*
+                 * Missing positions are NaN, and get mapped to INVALID
+                 */
+                plotXs[p] = line.getX(i);
+                plotYs[p] = line.getY(i);
+                p++;
             }
-            HorizontalPosition position = line.getPositions().get(0);
-            int xIndex = imageGrid.getXAxis().findIndexOf(position.getX());
-            int yIndex = imageGrid.getYAxis().findIndexOf(position.getY());
-            if (xIndex < 0 || yIndex < 0) {
-                line.expired = true;
-                /* Doesn't matter how we evolve this, since it's expired */
-                line.evolve(0, 0);
-                continue;
+        }
+        pixelMapper.map(plotXs, plotYs, nPoints, pixelXs, pixelYs);
+        return nPoints;
+    }
+
+    /**
+     * Sets whether {@link #evolve(WindField)} should produce
+     * reproducible results. Wind lines are always advected in parallel, but
+     * when this is <code>true</code> the density limit is applied in a
+     * single pass in a fixed order. Otherwise it is applied concurrently, and
+     * which lines expire in an overcrowded cell may vary between runs.
+     * 
+     * @param deterministic
+     *            Whether to produce reproducible results
+     */
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
+    /**
+     * Moves each wind line along by one timestep, expires lines which have
+     * left the image or are in overcrowded areas, and seeds new lines in empty
+     * areas.
+     * 
+     * @param windField
+     *            The {@link WindField} to move the lines with. This is sampled
+     *            at the head of each line.
+     */
+    public void evolve(final WindField windField) {
+        final boolean transformToField = !GISUtils.crsMatch(
+                positionGrid.getCoordinateReferenceSystem(),
+                windField.getCoordinateReferenceSystem());
+        final int nLines = windLines.size();
+        if (lineCells.length < nLines) {
+            lineCells = new int[Math.max(nLines, 2 * lineCells.length)];
+        }
+        final int xDensitySize = positionGrid.getXSize();
+        for (int cell = 0; cell < sharedCounts.length(); cell++) {
+            sharedCounts.set(cell, 0);
+        }
+        final AtomicInteger expiredLines = new AtomicInteger(0);
+        births = 0;
+
+        /*
+         * Advect all of the lines in parallel. Each task only modifies the
+         * lines in its own range.
+         */
+        ParallelUtils.forEachRange(nLines, LINE_CHUNK_SIZE, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                int localDeaths = 0;
+                double[] vector = new double[2];
+                for (int l = from; l < to; l++) {
+                    lineCells[l] = -1;
+                    EvolvingWindLine line = windLines.get(l);
+                    if (line.expired) {
+                        /* Doesn't matter how we evolve this, since it's expired */
+                        line.evolve(0, 0);
+                        continue;
+                    }
+
+                    double x = line.getX(0);
+                    double y = line.getY(0);
+                    int xIndex = imageGrid.getXAxis().findIndexOf(x);
+                    int yIndex = imageGrid.getYAxis().findIndexOf(y);
+                    if (xIndex < 0 || yIndex < 0) {
+                        line.expired = true;
+                        localDeaths++;
+                        /* Doesn't matter how we evolve this, since it's expired */
+                        line.evolve(0, 0);
+                        continue;
+                    }
+
+                    boolean haveWind;
+                    if (transformToField) {
+                        HorizontalPosition fieldPos = GISUtils.transformPosition(
+                                new HorizontalPosition(x, y, line.getCrs()),
+                                windField.getCoordinateReferenceSystem());
+                        haveWind = windField.sample(fieldPos.getX(), fieldPos.getY(), vector);
+                    } else {
+                        haveWind = windField.sample(x, y, vector);
+                    }
+                    if (!haveWind) {
+                        /*
+                         * Outside the wind field
+                         */
+                        line.expired = true;
+                        localDeaths++;
+                        line.evolve(0, 0);
+                        continue;
+                    }
+                    line.evolve(vector[0], vector[1]);
+
+                    int xDensityIndex = positionGrid.getXAxis().findIndexOf(x);
+                    int yDensityIndex = positionGrid.getYAxis().findIndexOf(y);
+                    int cell = yDensityIndex * xDensitySize + xDensityIndex;
+                    if (deterministic) {
+                        lineCells[l] = cell;
+                    } else if (sharedCounts.getAndIncrement(cell) >= MAX_LINES_PER_CELL) {
+                        /*
+                         * The counter carries on past the limit, but we only
+                         * ever care whether it is zero or over the limit
+                         */
+                        line.expired = true;
+                        localDeaths++;
+                    }
+                }
+                expiredLines.addAndGet(localDeaths);
             }
+        });
+        deaths = expiredLines.get();
 
-            Number xNumber = xComps.get(yIndex, xIndex);
-            Number yNumber = yComps.get(yIndex, xIndex);
-            line.evolve(xNumber.doubleValue(), yNumber.doubleValue());
+        if (deterministic) {
+            /*
+             * Apply the density limit in line order, so that the same lines
+             * expire on every run
+             */
+            Arrays.fill(densityCounts, 0);
+            for (int l = 0; l < nLines; l++) {
+                int cell = lineCells[l];
+                if (cell >= 0) {
+                    if (densityCounts[cell] >= MAX_LINES_PER_CELL) {
+                        windLines.get(l).expired = true;
+                        deaths++;
+                    } else {
+                        densityCounts[cell]++;
+                    }
+                }
+            }
+        } else {
+            for (int cell = 0; cell < densityCounts.length; cell++) {
+                densityCounts[cell] = sharedCounts.get(cell);
+            }
+        }
 
-            int xDensityIndex = positionGrid.getXAxis().findIndexOf(position.getX());
-            int yDensityIndex = positionGrid.getYAxis().findIndexOf(position.getY());
-            GridCoordinates2D densityCoords = new GridCoordinates2D(xDensityIndex, yDensityIndex);
-            Integer count = counts.get(densityCoords);
-            if (count > 3) {
-                line.expired = true;
+        /*
+         * Remove lines which have nothing left to draw, keeping them for re-use
+         */
+        int l = 0;
+        while (l < windLines.size()) {
+            EvolvingWindLine line = windLines.get(l);
+            if (line.isFaded()) {
+                int last = windLines.size() - 1;
+                windLines.set(l, windLines.get(last));
+                windLines.remove(last);
+                freeLines.push(line);
             } else {
-                counts.put(densityCoords, count + 1);
+                l++;
             }
         }
 
-        for (Entry<GridCoordinates2D, Integer> entry : counts.entrySet()) {
-            if (entry.getValue() == 0) {
+        for (int cell = 0; cell < densityCounts.length; cell++) {
+            if (densityCounts[cell] == 0) {
                 /*
                  * Add a new wind line at the given position
                  */
-                GridCoordinates2D coords = entry.getKey();
-                Double x = positionGrid.getXAxis().getCoordinateValue(coords.getX());
-                Double y = positionGrid.getYAxis().getCoordinateValue(coords.getY());
-                windLines.add(new EvolvingWindLine(new HorizontalPosition(x, y, positionGrid
-                        .getCoordinateReferenceSystem()), weight, length));
+                windLines.add(newWindLine(seedXs[cell], seedYs[cell],
+                        positionGrid.getCoordinateReferenceSystem()));
+                births++;
+            }
+        }
+
+        particleCount = 0;
+        for (EvolvingWindLine line : windLines) {
+            if (!line.expired) {
+                particleCount++;
             }
         }
+    }
 
+    /**
+     * Gets a wind line starting at the given position, re-using a faded line
+     * if one is available
+     */
+    private EvolvingWindLine newWindLine(double x, double y, CoordinateReferenceSystem crs) {
+        EvolvingWindLine line = freeLines.poll();
+        if (line == null) {
+            return new EvolvingWindLine(new HorizontalPosition(x, y, crs), weight, length);
+        }
+        line.reset(x, y, crs);
+        return line;
     }
 
     public static class EvolvingWindLine {
         private final int length;
-        private FixedSizeBuffer<HorizontalPosition> positions;
+        /*
+         * The positions of the line, stored as a ring buffer. head is the index
+         * of the most recent position. Missing positions are stored as NaN.
+         */
+        private final double[] xs;
+        private final double[] ys;
+        private int head = 0;
+        /** The number of timesteps this line has been expired for */
+        private int expiredFor = 0;
         /*
          * TODO Add a time component dependency
          */
@@ -229,28 +555,78 @@ public class EvolvingWindPlotter {
         private boolean expired = false;
 
         public EvolvingWindLine(HorizontalPosition startPos, double weight, int length) {
-            positions = new FixedSizeBuffer<>(length);
-            positions.add(startPos);
-            crs = startPos.getCoordinateReferenceSystem();
+            xs = new double[length];
+            ys = new double[length];
             this.weight = weight;
             this.length = length;
+            reset(startPos.getX(), startPos.getY(), startPos.getCoordinateReferenceSystem());
+        }
+
+        /**
+         * Resets this line so that it only contains the given start position
+         */
+        void reset(double x, double y, CoordinateReferenceSystem crs) {
+            Arrays.fill(xs, Double.NaN);
+            Arrays.fill(ys, Double.NaN);
+            head = 0;
+            xs[0] = x;
+            ys[0] = y;
+            this.crs = crs;
+            expired = false;
+            expiredFor = 0;
         }
 
         public void evolve(double xComp, double yComp) {
+            int next = (head + 1) % length;
             if (expired) {
-                positions.add(null);
+                xs[next] = Double.NaN;
+                ys[next] = Double.NaN;
+                expiredFor++;
             } else {
                 /*
                  * TODO add time component here
                  */
-                HorizontalPosition position = positions.get(0);
-                double newX = position.getX() + weight * xComp;
-                double newY = position.getY() + weight * yComp;
-                positions.add(new HorizontalPosition(newX, newY, crs));
+                xs[next] = xs[head] + weight * xComp;
+                ys[next] = ys[head] + weight * yComp;
             }
+            head = next;
+        }
+
+        /**
+         * @return <code>true</code> if this line has expired and all of its
+         *         positions have been shifted out of the buffer
+         */
+        public boolean isFaded() {
+            return expired && expiredFor >= length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @param i
+         *            The index of the position, where 0 is the head of the line
+         * @return Whether there is a position at the given index
+         */
+        public boolean hasPosition(int i) {
+            return !Double.isNaN(xs[(head - i + length) % length]);
+        }
+
+        public double getX(int i) {
+            return xs[(head - i + length) % length];
+        }
+
+        public double getY(int i) {
+            return ys[(head - i + length) % length];
         }
 
         public List<HorizontalPosition> getPositions() {
+            List<HorizontalPosition> positions = new ArrayList<>(length);
+            for (int i = 0; i < length; i++) {
+                positions.add(hasPosition(i) ? new HorizontalPosition(getX(i), getY(i), crs)
+                        : null);
+            }
             return positions;
         }
 
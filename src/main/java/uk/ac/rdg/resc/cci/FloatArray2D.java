@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * An {@link Array2D} backed by a {@link FloatBuffer}, in row-major (y, x)
+ * order. Missing values are stored as NaN and returned as <code>null</code>
+ * from {@link #get(int...)}.
+ * 
+ * Code which needs to loop over large numbers of values should use
+ * {@link #getFloat(int, int)} / {@link #getFloat(int)} to avoid boxing.
+ * 
+ * @author Guy Griffiths
+ */
+public class FloatArray2D extends Array2D<Number> {
+    private static final long serialVersionUID = 1L;
+
+    private final transient FloatBuffer values;
+
+    /**
+     * Creates a new {@link FloatArray2D} with all values missing
+     */
+    public FloatArray2D(int ySize, int xSize) {
+        super(ySize, xSize);
+        float[] data = new float[ySize * xSize];
+        Arrays.fill(data, Float.NaN);
+        values = FloatBuffer.wrap(data);
+    }
+
+    /**
+     * Creates a new {@link FloatArray2D} which wraps the given buffer. No
+     * copy is made.
+     * 
+     * @param values
+     *            The values, in row-major order. The buffer should have at
+     *            least ySize*xSize values remaining from its current position
+     */
+    public FloatArray2D(int ySize, int xSize, FloatBuffer values) {
+        super(ySize, xSize);
+        if (values.remaining() < ySize * xSize) {
+            throw new IllegalArgumentException("Buffer has " + values.remaining()
+                    + " values, but " + (ySize * xSize) + " are required");
+        }
+        this.values = values.slice();
+    }
+
+    /**
+     * Creates a new {@link FloatArray2D} containing a copy of the values in
+     * the given {@link Array2D}
+     */
+    public static FloatArray2D copyOf(Array2D<Number> source) {
+        if (source instanceof FloatArray2D) {
+            FloatArray2D floatSource = (FloatArray2D) source;
+            FloatArray2D copy = new FloatArray2D(source.getYSize(), source.getXSize());
+            FloatBuffer sourceValues = floatSource.values.duplicate();
+            sourceValues.rewind();
+            copy.values.put(sourceValues);
+            copy.values.rewind();
+            return copy;
+        }
+        int xSize = source.getXSize();
+        int ySize = source.getYSize();
+        FloatArray2D copy = new FloatArray2D(ySize, xSize);
+        for (int j = 0; j < ySize; j++) {
+            for (int i = 0; i < xSize; i++) {
+                Number value = source.get(j, i);
+                if (value != null) {
+                    copy.values.put(j * xSize + i, value.floatValue());
+                }
+            }
+        }
+        return copy;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        float value = values.get(coords[Y_IND] * getXSize() + coords[X_IND]);
+        return Float.isNaN(value) ? null : value;
+    }
+
+    @Override
+    public void set(Number value, int... coords) {
+        values.put(coords[Y_IND] * getXSize() + coords[X_IND],
+                value == null ? Float.NaN : value.floatValue());
+    }
+
+    /**
+     * @return The value at the given co-ordinates, or NaN if it is missing
+     */
+    public float getFloat(int y, int x) {
+        return values.get(y * getXSize() + x);
+    }
+
+    /**
+     * @return The value at the given row-major index (i.e. y * xSize + x), or
+     *         NaN if it is missing
+     */
+    public float getFloat(int index) {
+        return values.get(index);
+    }
+
+    public void setFloat(float value, int y, int x) {
+        values.put(y * getXSize() + x, value);
+    }
+
+    public void setFloat(float value, int index) {
+        values.put(index, value);
+    }
+
+    /**
+     * @return The underlying buffer of values. Changes to it will be reflected
+     *         in this array.
+     */
+    public FloatBuffer getBuffer() {
+        return values.duplicate();
+    }
+}
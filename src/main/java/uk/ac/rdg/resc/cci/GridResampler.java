@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+
+/**
+ * Resamples fields from one {@link RegularGrid} onto another, using
+ * nearest-neighbour sampling. The mapping from target cells to source cells
+ * is calculated once on construction (using a {@link PixelMapper}), so
+ * resampling each field is just a lookup per target cell.
+ * 
+ * @author Guy Griffiths
+ */
+public class GridResampler {
+    private static final int ROW_CHUNK_SIZE = 16;
+
+    private final RegularGrid sourceGrid;
+    private final RegularGrid targetGrid;
+    /**
+     * For each target cell (in row-major order), the index of the source cell
+     * it takes its value from, or -1 if it is outside the source grid
+     */
+    private final int[] sourceIndices;
+
+    public GridResampler(RegularGrid sourceGrid, RegularGrid targetGrid) {
+        this.sourceGrid = sourceGrid;
+        this.targetGrid = targetGrid;
+
+        final int targetXSize = targetGrid.getXSize();
+        int targetYSize = targetGrid.getYSize();
+        final int sourceXSize = sourceGrid.getXSize();
+        final int sourceYSize = sourceGrid.getYSize();
+        boolean sourceXWraps = sourceGrid.getXAxis().wraps();
+
+        /*
+         * Map the centre of every target cell onto the source grid
+         */
+        int n = targetXSize * targetYSize;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        RegularAxis xAxis = targetGrid.getXAxis();
+        RegularAxis yAxis = targetGrid.getYAxis();
+        for (int y = 0; y < targetYSize; y++) {
+            double yVal = yAxis.getCoordinateValue(y);
+            for (int x = 0; x < targetXSize; x++) {
+                xs[y * targetXSize + x] = xAxis.getCoordinateValue(x);
+                ys[y * targetXSize + x] = yVal;
+            }
+        }
+        int[] pixelXs = new int[n];
+        int[] pixelYs = new int[n];
+        new PixelMapper(targetGrid.getCoordinateReferenceSystem(), sourceGrid).map(xs, ys, n,
+                pixelXs, pixelYs);
+
+        sourceIndices = new int[n];
+        for (int i = 0; i < n; i++) {
+            int sourceX = pixelXs[i];
+            /*
+             * PixelMapper gives image co-ordinates, with 0 at the top
+             */
+            int sourceY = sourceYSize - 1 - pixelYs[i];
+            if (sourceXWraps && sourceX != PixelMapper.INVALID) {
+                sourceX = ((sourceX % sourceXSize) + sourceXSize) % sourceXSize;
+            }
+            if (sourceX < 0 || sourceX >= sourceXSize || pixelYs[i] == PixelMapper.INVALID
+                    || sourceY < 0 || sourceY >= sourceYSize) {
+                sourceIndices[i] = -1;
+            } else {
+                sourceIndices[i] = sourceY * sourceXSize + sourceX;
+            }
+        }
+    }
+
+    public RegularGrid getSourceGrid() {
+        return sourceGrid;
+    }
+
+    public RegularGrid getTargetGrid() {
+        return targetGrid;
+    }
+
+    /**
+     * Resamples a field onto the target grid
+     * 
+     * @param source
+     *            The field on the source grid
+     * @return A new {@link FloatArray2D} on the target grid. Cells which are
+     *         outside the source grid are NaN.
+     */
+    public FloatArray2D resample(final FloatArray2D source) {
+        final int targetXSize = targetGrid.getXSize();
+        final FloatArray2D target = new FloatArray2D(targetGrid.getYSize(), targetXSize);
+        ParallelUtils.forEachRange(targetGrid.getYSize(), ROW_CHUNK_SIZE,
+                new ParallelUtils.RangeTask() {
+                    @Override
+                    public void process(int from, int to) {
+                        for (int i = from * targetXSize; i < to * targetXSize; i++) {
+                            int sourceIndex = sourceIndices[i];
+                            if (sourceIndex >= 0) {
+                                target.setFloat(source.getFloat(sourceIndex), i);
+                            }
+                        }
+                    }
+                });
+        return target;
+    }
+
+    /**
+     * Resamples an integer field (e.g. ARGB colours) onto the target grid
+     * 
+     * @param source
+     *            The field on the source grid, in row-major order
+     * @return A new array on the target grid, in row-major order. Cells which
+     *         are outside the source grid are 0.
+     */
+    public int[] resample(final int[] source) {
+        final int targetXSize = targetGrid.getXSize();
+        final int[] target = new int[targetXSize * targetGrid.getYSize()];
+        ParallelUtils.forEachRange(targetGrid.getYSize(), ROW_CHUNK_SIZE,
+                new ParallelUtils.RangeTask() {
+                    @Override
+                    public void process(int from, int to) {
+                        for (int i = from * targetXSize; i < to * targetXSize; i++) {
+                            int sourceIndex = sourceIndices[i];
+                            if (sourceIndex >= 0) {
+                                target[i] = source[sourceIndex];
+                            }
+                        }
+                    }
+                });
+        return target;
+    }
+}
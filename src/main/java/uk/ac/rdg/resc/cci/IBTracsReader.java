@@ -28,28 +28,26 @@
 
 package uk.ac.rdg.resc.cci;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.DateTimeFormatterBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import ucar.ma2.Array;
 import ucar.ma2.Index;
 import ucar.nc2.Variable;
 import ucar.nc2.dataset.NetcdfDataset;
 import uk.ac.rdg.resc.edal.dataset.cdm.NetcdfDatasetAggregator;
-import uk.ac.rdg.resc.edal.domain.Extent;
-import uk.ac.rdg.resc.edal.grid.TimeAxis;
-import uk.ac.rdg.resc.edal.grid.TimeAxisImpl;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
-import uk.ac.rdg.resc.edal.util.Extents;
-import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.TimeUtils;
 
 public class IBTracsReader {
@@ -62,74 +60,177 @@ public class IBTracsReader {
             .appendDayOfMonth(1).appendLiteral(" ").appendHourOfDay(1).appendLiteral(":")
             .appendMinuteOfHour(1).appendLiteral(":").appendSecondOfMinute(1).toFormatter();
 
-    private Map<TimeAxis, Integer> range2StormNum = new HashMap<>();
-    private Variable nameVar;
-    private Variable latVar;
-    private Variable lonVar;
-    private Variable typeVar;
+    private static final String NATURE_VAR = "nature_for_mapping";
+    private static final String NOT_NAMED = "Not named";
+
+    private static final Logger log = LoggerFactory.getLogger(IBTracsReader.class);
+
+    private final StormTracks tracks;
+    private final StormIndex index;
 
     public IBTracsReader(String location, DateTime startTime, DateTime endTime) throws IOException {
+        tracks = loadTracks(location).subset(startTime.getMillis(), endTime.getMillis());
+        index = new StormIndex(tracks);
+    }
+
+    /**
+     * Loads all named storms from the given location. If the location is a
+     * single file, the parsed tracks are cached alongside it (see
+     * {@link StormTrackCache}), and the cache is used in preference to the
+     * source whilst the source is unmodified.
+     */
+    private static StormTracks loadTracks(String location) throws IOException {
+        File source = new File(location);
+        File cacheFile = null;
+        if (source.isFile()) {
+            cacheFile = StormTrackCache.getCacheFile(source);
+            StormTracks cached = StormTrackCache.read(cacheFile, source);
+            if (cached != null) {
+                log.debug("Read storm tracks from cache " + cacheFile);
+                return cached;
+            }
+        }
+
+        StormTracks allTracks;
         NetcdfDataset dataset = NetcdfDatasetAggregator.getDataset(location);
-        nameVar = dataset.findVariable(NAME_VAR);
-        latVar = dataset.findVariable(LAT_VAR);
-        lonVar = dataset.findVariable(LON_VAR);
-        typeVar = dataset.findVariable("nature_for_mapping");
+        try {
+            allTracks = readTracks(dataset, Long.MIN_VALUE, Long.MAX_VALUE);
+        } finally {
+            /*
+             * The aggregator caches datasets, so we release it rather than
+             * closing it
+             */
+            NetcdfDatasetAggregator.releaseDataset(dataset);
+        }
+
+        if (cacheFile != null) {
+            try {
+                StormTrackCache.write(allTracks, cacheFile, source);
+            } catch (IOException e) {
+                /*
+                 * Not being able to cache the tracks isn't fatal, it'll just
+                 * be slower next time
+                 */
+                log.warn("Could not write storm track cache to " + cacheFile, e);
+            }
+        }
+        return allTracks;
+    }
+
+    /**
+     * Reads all named storms which are active at some point in the given time
+     * range into a {@link StormTracks}. Each variable is read exactly once,
+     * and storm names are decoded here so that per-frame queries need only
+     * read from memory.
+     */
+    private static StormTracks readTracks(NetcdfDataset dataset, long startMillis,
+            long endMillis) throws IOException {
         Variable timeVar = dataset.findVariable(TIME_VAR);
         String units = timeVar.findAttribute("units").getStringValue();
         String[] timeUnitsParts = units.split(" since ");
         /*
-         * Find the length of a unit, in seconds (we don't use milliseconds
-         * because the DateTime.plusMillis takes an integer argument and there
-         * is a very good chance of integer overflow for recent values)
+         * Find the length of a unit, in seconds
          */
         int unitLength = TimeUtils.getUnitLengthSeconds(timeUnitsParts[0]);
-        DateTime refTime = IBTRACS_DATE_TIME_FORMATTER.parseDateTime(timeUnitsParts[1]);
-        System.out.println(refTime.getChronology() + "," + startTime.getChronology());
-        System.out.println(units + "\n" + refTime + "  " + unitLength);
+        long refMillis = IBTRACS_DATE_TIME_FORMATTER.parseDateTime(timeUnitsParts[1])
+                .getMillis();
 
         Array times = timeVar.read();
+        Array lon = dataset.findVariable(LON_VAR).read();
+        Array lat = dataset.findVariable(LAT_VAR).read();
+        Array nature = dataset.findVariable(NATURE_VAR).read();
+        Array name = dataset.findVariable(NAME_VAR).read();
+        int nameLength = name.getShape()[name.getRank() - 1];
+
+        int[] shape = times.getShape();
+        int nStorms = shape[0];
+        int maxPoints = shape[1];
         Index index = times.getIndex();
-        int[] shape = index.getShape();
+
+        /*
+         * Columns to fill. We size these for the worst case and trim at the
+         * end
+         */
+        List<String> names = new ArrayList<>();
+        int[] offsets = new int[nStorms + 1];
+        long[] pointTimes = new long[nStorms * maxPoints];
+        float[] lons = new float[pointTimes.length];
+        float[] lats = new float[pointTimes.length];
+        byte[] natures = new byte[pointTimes.length];
+        int nPoints = 0;
+
         /*
          * Loop over all storms
          */
-        for (int s = 0; s < shape[0]; s++) {
+        for (int s = 0; s < nStorms; s++) {
+            String stormName = decodeName(name, s, nameLength);
+            if (stormName.equalsIgnoreCase(NOT_NAMED)) {
+                continue;
+            }
+            int first = nPoints;
             index.set0(s);
-            DateTime minT = new DateTime(Long.MAX_VALUE);
-            DateTime maxT = new DateTime(-Long.MAX_VALUE);
-            List<DateTime> timeAxisVals = new ArrayList<>();
-            for (int t = 0; t < shape[1]; t++) {
+            for (int t = 0; t < maxPoints; t++) {
                 index.set1(t);
                 double timeDouble = times.getDouble(index);
-                if (!Double.isNaN(timeDouble)) {
-                    DateTime time = refTime.plus((long) (1000 * unitLength * timeDouble));
-                    timeAxisVals.add(time);
-                    if (time.isAfter(maxT)) {
-                        maxT = time;
-                    }
-                    if (time.isBefore(minT)) {
-                        minT = time;
-                    }
+                if (Double.isNaN(timeDouble)) {
+                    continue;
+                }
+                long time = refMillis + (long) (1000.0 * unitLength * timeDouble);
+                if (nPoints > first && time <= pointTimes[nPoints - 1]) {
+                    /*
+                     * Track points must be in time order. Skip any which
+                     * aren't
+                     */
+                    continue;
                 }
+                pointTimes[nPoints] = time;
+                lons[nPoints] = lon.getFloat(index);
+                lats[nPoints] = lat.getFloat(index);
+                natures[nPoints] = nature.getByte(index);
+                nPoints++;
             }
-            TimeAxisImpl tAxis = new TimeAxisImpl("time", timeAxisVals);
-            Extent<DateTime> range = Extents.newExtent(startTime, endTime);
-            if (range.contains(tAxis.getExtent().getLow())
-                    || range.contains(tAxis.getExtent().getHigh()) ||
-                    tAxis.getExtent().contains(startTime) || tAxis.getExtent().contains(endTime)
-
-            ) {
-                range2StormNum.put(tAxis, s);
+            if (nPoints == first || pointTimes[first] > endMillis
+                    || pointTimes[nPoints - 1] < startMillis) {
+                /*
+                 * Storm is not active during the requested time range -
+                 * discard its track points
+                 */
+                nPoints = first;
+                continue;
             }
+            offsets[names.size()] = first;
+            names.add(formatName(stormName));
         }
-//        GridDataset gridDataset = CdmUtils.getGridDataset(dataset);
-//        for (Gridset gridset : gridDataset.) {
-//            GridCoordSystem coordSys = gridset.getGeoCoordSystem();
-//            HorizontalGrid hDomain = CdmUtils.createHorizontalGrid(coordSys);
-//            VerticalAxis zDomain = CdmUtils.createVerticalAxis(coordSys);
-//            TimeAxis tDomain = CdmUtils.createTimeAxis(coordSys);
-//            System.out.println(tDomain);
-//        }
+        offsets[names.size()] = nPoints;
+
+        return new StormTracks(names.toArray(new String[names.size()]), Arrays.copyOf(offsets,
+                names.size() + 1), Arrays.copyOf(pointTimes, nPoints),
+                Arrays.copyOf(lons, nPoints), Arrays.copyOf(lats, nPoints), Arrays.copyOf(
+                        natures, nPoints));
+    }
+
+    private static String decodeName(Array name, int storm, int nameLength) {
+        StringBuilder nameStr = new StringBuilder();
+        for (int i = 0; i < nameLength; i++) {
+            char nameChar = name.getChar(storm * nameLength + i);
+            if (nameChar != 0) {
+                nameStr.append(nameChar);
+            }
+        }
+        return nameStr.toString().trim();
+    }
+
+    /**
+     * Converts a storm name to the form it is displayed in (e.g. "KATRINA" ->
+     * "Katrina")
+     */
+    private static String formatName(String name) {
+        if (name.isEmpty()) {
+            return name;
+        }
+        StringBuilder b = new StringBuilder(name.toLowerCase());
+        b.replace(0, 1, b.substring(0, 1).toUpperCase());
+        return b.toString();
     }
 
     class PosAndName {
@@ -139,9 +240,7 @@ public class IBTracsReader {
         public PosAndName(HorizontalPosition pos, String name) {
             super();
             this.pos = pos;
-            StringBuilder b = new StringBuilder(name.toLowerCase());
-            b.replace(0, 1, b.substring(0, 1).toUpperCase());
-            this.name = b.toString();
+            this.name = name;
         }
 
         public HorizontalPosition getPos() {
@@ -153,42 +252,36 @@ public class IBTracsReader {
         }
     }
 
-    public List<PosAndName> getStormPositionsForTime(DateTime time) throws IOException {
+    /**
+     * @return The {@link StormTracks} containing all named storms active in
+     *         the time range this reader was created with
+     */
+    public StormTracks getTracks() {
+        return tracks;
+    }
+
+    public List<PosAndName> getStormPositionsForTime(DateTime time) {
+        return getStormPositionsForTime(time, null);
+    }
+
+    /**
+     * Gets the positions and names of all storms active at the given time
+     * 
+     * @param time
+     *            The time to get storm positions for
+     * @param bbox
+     *            The {@link BoundingBox} to restrict storm positions to. If
+     *            this is <code>null</code>, all active storms are returned
+     * @return A {@link List} of {@link PosAndName}s
+     */
+    public List<PosAndName> getStormPositionsForTime(DateTime time, BoundingBox bbox) {
+        long millis = time.getMillis();
         List<PosAndName> ret = new ArrayList<>();
-        for (TimeAxis axis : range2StormNum.keySet()) {
-            if (axis.contains(time)) {
-                Integer stormIndex = range2StormNum.get(axis);
-                int timeIndex = GISUtils.getIndexOfClosestTimeTo(time, axis);
-                Array lon = lonVar.read();
-                Index lonIndex = lon.getIndex();
-                lonIndex.set0(stormIndex);
-                lonIndex.set1(timeIndex);
-                double lonDouble = lon.getDouble(lonIndex);
-                Array lat = latVar.read();
-                Index latIndex = lat.getIndex();
-                latIndex.set0(stormIndex);
-                latIndex.set1(timeIndex);
-                double latDouble = lat.getDouble(latIndex);
-
-                Array type = typeVar.read();
-                Index typeIndex = type.getIndex();
-                typeIndex.set0(stormIndex);
-                typeIndex.set1(timeIndex);
-                byte typeB = type.getByte(typeIndex);
-                
-                Array name = nameVar.read();
-                StringBuilder nameStr = new StringBuilder();
-                for (int i = 0; i < 57; i++) {
-                    char nameChar = name.getChar(stormIndex * 57 + i);
-                    if (nameChar != 0) {
-                        nameStr.append(nameChar);
-                    }
-                }
-                PosAndName posAndName = new PosAndName(new HorizontalPosition(lonDouble, latDouble,
-                        DefaultGeographicCRS.WGS84), nameStr.toString());
-                if(!posAndName.name.equalsIgnoreCase("Not named") && typeB == 0) {
-                    ret.add(posAndName);
-                }
+        for (int s : index.findActiveStorms(millis, bbox)) {
+            int point = tracks.findClosestPoint(s, millis);
+            if (tracks.getNature(point) == 0) {
+                ret.add(new PosAndName(new HorizontalPosition(tracks.getLon(point), tracks
+                        .getLat(point), DefaultGeographicCRS.WGS84), tracks.getName(s)));
             }
         }
         return ret;
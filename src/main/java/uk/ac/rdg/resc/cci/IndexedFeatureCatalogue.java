@@ -0,0 +1,569 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Variable;
+import ucar.nc2.dataset.NetcdfDataset;
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.metadata.Parameter;
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * A {@link FeatureCatalogue} which reads gridded data from a dataset described
+ * by a {@link DatasetIndex}. Unlike a dataset created by the
+ * <code>CdmGridDatasetFactory</code>, this doesn't open every file up front -
+ * each file is only opened when data is first read from it, and only a small
+ * number of files are kept open at once.
+ * 
+ * Fields are read into {@link FloatArray2D}s, either on their native grid or
+ * block-averaged down towards the resolution of the requested grid, and then
+ * resampled (nearest-neighbour) onto the requested grid. Native reads are
+ * split into latitude bands which are read concurrently (see
+ * {@link BandedFieldReader}).
+ * 
+ * If an {@link OverviewStore} has been set, fields on grids which are coarse
+ * enough are read from the coarsest suitable overview level instead of from
+ * the original data.
+ * 
+ * If a {@link RawFieldCache} has been set, full-resolution fields are cached
+ * there once they have been decoded, and read back from it on later reads.
+ * 
+ * {@link OceanMask}s of the valid cells of a variable on a grid are derived on
+ * request, and stored with the {@link DatasetIndex} for later runs.
+ * 
+ * Variables which only have meaningful values in part of the globe (e.g. sea
+ * ice) can be given a {@link LatitudeBand}. Only the parts of the data within
+ * the band are then read from the original data - the rest of each field is
+ * left missing. Overview reads are cheap, and are not restricted.
+ * 
+ * @author Guy Griffiths
+ */
+public class IndexedFeatureCatalogue implements FeatureCatalogue {
+    private static final Logger log = LoggerFactory.getLogger(IndexedFeatureCatalogue.class);
+
+    /** The maximum number of files to keep open at once */
+    private static final int MAX_OPEN_FILES = 4;
+
+    private final DatasetIndex index;
+    private final RegularGrid nativeGrid;
+    private final TimeAxis timeAxis;
+    private OverviewStore overviews = null;
+    private RawFieldCache rawCache = null;
+
+    /** Open files, in least-recently-used order */
+    private final LinkedHashMap<String, OpenFile> openFiles = new LinkedHashMap<>(16, 0.75f,
+            true);
+    /** Reads full-resolution fields in parallel bands */
+    private final BandedFieldReader bandedReader = new BandedFieldReader();
+    /** Masks of valid cells, keyed by variable and grid */
+    private final Map<String, OceanMask> masks = new HashMap<>();
+    /** The native rows needed for variables with a {@link LatitudeBand} */
+    private final Map<String, boolean[]> latitudeBandRows = new HashMap<>();
+    /** How to read onto each of the target grids we have been asked for */
+    private final Map<RegularGrid, ReadPlan> readPlans = new HashMap<>();
+
+    /**
+     * The decimated reader and resampler used to read data onto a particular
+     * target grid, and the overview level (if any) to use instead
+     */
+    private static class ReadPlan {
+        private final DecimatedFieldReader decimator;
+        private final GridResampler resampler;
+        private final OverviewStore overviews;
+        private final int overviewLevel;
+        private final GridResampler overviewResampler;
+
+        public ReadPlan(DecimatedFieldReader decimator, GridResampler resampler,
+                OverviewStore overviews, int overviewLevel, GridResampler overviewResampler) {
+            this.decimator = decimator;
+            this.resampler = resampler;
+            this.overviews = overviews;
+            this.overviewLevel = overviewLevel;
+            this.overviewResampler = overviewResampler;
+        }
+    }
+
+    /**
+     * An open file and the number of reads currently using it. A file which
+     * has been evicted from {@link IndexedFeatureCatalogue#openFiles} is only
+     * closed once the last of these has finished.
+     */
+    private static class OpenFile {
+        private final NetcdfDataset dataset;
+        private int users = 0;
+        private boolean evicted = false;
+
+        public OpenFile(NetcdfDataset dataset) {
+            this.dataset = dataset;
+        }
+    }
+
+    /**
+     * @param location
+     *            The location of the data. Glob expressions like
+     *            /data/cci/**&#47;*.nc are allowed.
+     * @throws IOException
+     *             If there is a problem indexing the data
+     */
+    public IndexedFeatureCatalogue(String location) throws IOException {
+        this(DatasetIndex.open(location));
+    }
+
+    /**
+     * @param location
+     *            The location of the data. Glob expressions like
+     *            /data/cci/**&#47;*.nc are allowed.
+     * @param timeFilter
+     *            A {@link DatasetIndex.TimeFilter} selecting the times which
+     *            will be needed. Files containing only other times will not be
+     *            opened, and those times will not appear in the time axis.
+     * @throws IOException
+     *             If there is a problem indexing the data
+     */
+    public IndexedFeatureCatalogue(String location, DatasetIndex.TimeFilter timeFilter)
+            throws IOException {
+        this(DatasetIndex.open(location, timeFilter));
+    }
+
+    public IndexedFeatureCatalogue(DatasetIndex index) {
+        this.index = index;
+        nativeGrid = index.getGrid();
+        timeAxis = index.getTimeAxis();
+    }
+
+    public DatasetIndex getIndex() {
+        return index;
+    }
+
+    public TimeAxis getTimeAxis() {
+        return timeAxis;
+    }
+
+    /**
+     * Sets an {@link OverviewStore} to read coarse fields from. Fields which
+     * are not in the store are still read from the original data.
+     * 
+     * @param overviews
+     *            The {@link OverviewStore}, or <code>null</code> to stop using
+     *            one
+     * @throws IllegalArgumentException
+     *             If the store was not built on the native grid of this
+     *             dataset
+     */
+    public void setOverviewStore(OverviewStore overviews) {
+        if (overviews != null && !overviews.getNativeGrid().equals(nativeGrid)) {
+            throw new IllegalArgumentException(
+                    "The overview store was not built from data on this grid");
+        }
+        synchronized (readPlans) {
+            this.overviews = overviews;
+            readPlans.clear();
+        }
+    }
+
+    /**
+     * Sets a {@link RawFieldCache} to store full-resolution fields in
+     * 
+     * @param rawCache
+     *            The {@link RawFieldCache}, or <code>null</code> to stop using
+     *            one
+     */
+    public void setRawFieldCache(RawFieldCache rawCache) {
+        this.rawCache = rawCache;
+    }
+
+    /**
+     * Sets the band of latitudes in which a variable has meaningful values.
+     * Data outside this band will not be read.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param band
+     *            The {@link LatitudeBand}, or <code>null</code> to read the
+     *            whole of every field
+     */
+    public void setLatitudeBand(String varId, LatitudeBand band) {
+        synchronized (latitudeBandRows) {
+            if (band == null) {
+                latitudeBandRows.remove(varId);
+            } else {
+                latitudeBandRows.put(varId, band.getRows(nativeGrid.getYAxis()));
+            }
+        }
+    }
+
+    /**
+     * Finds the band of latitudes in which a variable has non-zero values at
+     * any of a set of times. The fields are read at a reduced resolution (of
+     * about 0.5 degrees), so this is fairly quick. Any band previously set for
+     * the variable is removed first.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param times
+     *            The times to examine
+     * @param margin
+     *            The number of degrees to extend the band by on each side
+     * @return The {@link LatitudeBand}, or <code>null</code> if the variable
+     *         has no non-zero values at any of the times
+     */
+    public LatitudeBand learnLatitudeBand(String varId, List<DateTime> times, double margin)
+            throws DataReadingException, VariableNotFoundException {
+        setLatitudeBand(varId, null);
+        int factor = (int) Math.max(1,
+                Math.round(0.5 / Math.abs(nativeGrid.getYAxis().getCoordinateSpacing())));
+        RegularGrid coarseGrid = OverviewStore.getLevelGrid(nativeGrid, factor);
+        LatitudeBand band = null;
+        for (DateTime time : times) {
+            FloatArray2D field = readField(varId, time, coarseGrid);
+            LatitudeBand timeBand = LatitudeBand.fromNonZeroExtent(field,
+                    coarseGrid.getYAxis(), margin);
+            band = band == null ? timeBand : band.union(timeBand);
+        }
+        return band;
+    }
+
+    private boolean[] getLatitudeBandRows(String varId) {
+        synchronized (latitudeBandRows) {
+            return latitudeBandRows.get(varId);
+        }
+    }
+
+    /**
+     * @return The {@link RegularGrid} which the data is stored on
+     */
+    public RegularGrid getNativeGrid() {
+        return nativeGrid;
+    }
+
+    /**
+     * Reads a field onto a given grid. If the target grid is coarser than the
+     * native grid, a block-averaged field at roughly the target resolution is
+     * read (either from the {@link OverviewStore} or using a
+     * {@link DecimatedFieldReader}) and then resampled.
+     * 
+     * @param varId
+     *            The ID of the variable to read
+     * @param time
+     *            The time to read
+     * @param targetGrid
+     *            The {@link RegularGrid} to read onto
+     * @return The values of the field on the target grid
+     */
+    public FloatArray2D readField(String varId, DateTime time, RegularGrid targetGrid)
+            throws DataReadingException, VariableNotFoundException {
+        if (targetGrid.equals(nativeGrid)) {
+            return readNativeField(varId, time);
+        }
+        ReadPlan plan = getReadPlan(targetGrid);
+        if (plan.overviewLevel >= 0 && plan.overviews.getVariables().contains(varId)) {
+            FloatArray2D overview;
+            try {
+                overview = plan.overviews.read(plan.overviewLevel, varId, time);
+            } catch (IOException e) {
+                throw new DataReadingException("Problem reading " + varId
+                        + " from the overview store", e);
+            }
+            if (overview != null) {
+                return plan.overviewResampler.resample(overview);
+            }
+        }
+        FloatArray2D field;
+        if (plan.decimator.isDecimated()) {
+            field = read(varId, time, plan.decimator);
+        } else {
+            field = readNativeField(varId, time);
+        }
+        return plan.resampler.resample(field);
+    }
+
+    /**
+     * Reads a field on its native grid
+     * 
+     * @param varId
+     *            The ID of the variable to read
+     * @param time
+     *            The time to read
+     * @return The values of the field on the grid returned by
+     *         {@link #getNativeGrid()}
+     */
+    public FloatArray2D readNativeField(String varId, DateTime time)
+            throws DataReadingException, VariableNotFoundException {
+        RawFieldCache cache = rawCache;
+        if (cache == null || !index.getVariables().contains(varId)) {
+            return read(varId, time, null);
+        }
+        File file = index.getFile(index.getFileEntry(findTimeIndex(time)));
+        FloatArray2D values = cache.get(varId, file, time, nativeGrid.getYSize(),
+                nativeGrid.getXSize());
+        if (values == null) {
+            values = read(varId, time, null);
+            if (getLatitudeBandRows(varId) != null) {
+                /*
+                 * Only part of the field has been read, so it can't be cached
+                 */
+                return values;
+            }
+            try {
+                cache.put(varId, file, time, values);
+            } catch (IOException e) {
+                /*
+                 * Not fatal - we'll just have to read it from the source again
+                 * next time
+                 */
+                log.warn("Could not cache " + varId + " at " + time, e);
+            }
+        }
+        return values;
+    }
+
+    private int findTimeIndex(DateTime time) throws DataReadingException {
+        int timeIndex = index.findTime(time.getMillis());
+        if (timeIndex < 0) {
+            throw new DataReadingException("The time " + time + " is not in this dataset");
+        }
+        return timeIndex;
+    }
+
+    /**
+     * Reads a field, either on its native grid, or decimated
+     * 
+     * @param decimator
+     *            The {@link DecimatedFieldReader} to read with, or
+     *            <code>null</code> to read the native grid
+     */
+    private FloatArray2D read(String varId, DateTime time, DecimatedFieldReader decimator)
+            throws DataReadingException, VariableNotFoundException {
+        if (!index.getVariables().contains(varId)) {
+            throw new VariableNotFoundException(varId);
+        }
+        int timeIndex = findTimeIndex(time);
+        File file = index.getFile(index.getFileEntry(timeIndex));
+        int indexInFile = index.getIndexInFile(timeIndex);
+        boolean[] rowsNeeded = getLatitudeBandRows(varId);
+
+        try {
+            if (decimator == null) {
+                /*
+                 * Full-resolution reads are split into bands which are read
+                 * concurrently
+                 */
+                return bandedReader.read(file.getAbsolutePath(), varId, indexInFile,
+                        nativeGrid.getYSize(), nativeGrid.getXSize(), rowsNeeded);
+            }
+            OpenFile openFile = acquireFile(file);
+            try {
+                /*
+                 * NetcdfDatasets are not thread-safe, so only one thread can
+                 * read from each at a time
+                 */
+                synchronized (openFile.dataset) {
+                    Variable variable = openFile.dataset.findVariable(varId);
+                    if (variable == null) {
+                        throw new VariableNotFoundException(varId);
+                    }
+                    return decimator.read(variable, indexInFile, rowsNeeded);
+                }
+            } finally {
+                releaseFile(openFile);
+            }
+        } catch (IOException | InvalidRangeException e) {
+            throw new DataReadingException("Problem reading " + varId + " from " + file, e);
+        }
+    }
+
+    /**
+     * Gets an open file, opening it if necessary. Every call must be matched
+     * by a call to {@link #releaseFile(OpenFile)}, so that the file is not
+     * closed while it is being read.
+     */
+    private OpenFile acquireFile(File file) throws IOException {
+        synchronized (openFiles) {
+            String path = file.getAbsolutePath();
+            OpenFile openFile = openFiles.get(path);
+            if (openFile == null) {
+                openFile = new OpenFile(NetcdfDataset.openDataset(path));
+                openFiles.put(path, openFile);
+                Iterator<Entry<String, OpenFile>> iterator = openFiles.entrySet().iterator();
+                while (openFiles.size() > MAX_OPEN_FILES) {
+                    OpenFile eldest = iterator.next().getValue();
+                    iterator.remove();
+                    eldest.evicted = true;
+                    if (eldest.users == 0) {
+                        eldest.dataset.close();
+                    }
+                }
+            }
+            openFile.users++;
+            return openFile;
+        }
+    }
+
+    private void releaseFile(OpenFile openFile) throws IOException {
+        synchronized (openFiles) {
+            openFile.users--;
+            if (openFile.evicted && openFile.users == 0) {
+                openFile.dataset.close();
+            }
+        }
+    }
+
+    private ReadPlan getReadPlan(RegularGrid targetGrid) {
+        synchronized (readPlans) {
+            ReadPlan plan = readPlans.get(targetGrid);
+            if (plan == null) {
+                DecimatedFieldReader decimator = new DecimatedFieldReader(nativeGrid, targetGrid);
+                int overviewLevel = overviews == null ? -1 : overviews.chooseLevel(targetGrid);
+                GridResampler overviewResampler = null;
+                if (overviewLevel >= 0) {
+                    overviewResampler = new GridResampler(overviews.getLevelGrid(overviewLevel),
+                            targetGrid);
+                }
+                plan = new ReadPlan(decimator, new GridResampler(decimator.getGrid(),
+                        targetGrid), overviews, overviewLevel, overviewResampler);
+                readPlans.put(targetGrid, plan);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * Gets the mask of cells of a variable which contain data on a given
+     * grid. Missing values (e.g. land for SST) are assumed to be the same at
+     * all times, so this is derived from the first field in the dataset, and
+     * then stored with the {@link DatasetIndex}.
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param grid
+     *            The {@link RegularGrid} which fields will be read onto
+     * @return An {@link OceanMask} of the valid cells of the grid
+     */
+    public OceanMask getOceanMask(String varId, RegularGrid grid) throws DataReadingException,
+            VariableNotFoundException {
+        String key = getMaskKey(varId, grid);
+        synchronized (masks) {
+            OceanMask mask = masks.get(key);
+            if (mask == null) {
+                mask = index.readMask(key);
+                if (mask == null || mask.getXSize() != grid.getXSize()
+                        || mask.getYSize() != grid.getYSize()) {
+                    mask = OceanMask.fromField(readField(varId, timeAxis.getCoordinateValue(0),
+                            grid));
+                    try {
+                        index.writeMask(key, mask);
+                    } catch (IOException e) {
+                        log.warn("Could not store ocean mask for " + varId, e);
+                    }
+                }
+                masks.put(key, mask);
+            }
+            return mask;
+        }
+    }
+
+    private static String getMaskKey(String varId, RegularGrid grid) {
+        BoundingBox bbox = grid.getBoundingBox();
+        return varId + ":" + bbox.getMinX() + "," + bbox.getMinY() + "," + bbox.getMaxX() + ","
+                + bbox.getMaxY() + ":" + grid.getXSize() + "x" + grid.getYSize() + ":"
+                + grid.getCoordinateReferenceSystem().getName();
+    }
+
+    /**
+     * Reads a field onto a given grid as a {@link MapFeature}
+     */
+    public MapFeature readMapFeature(String varId, DateTime time, RegularGrid targetGrid)
+            throws DataReadingException, VariableNotFoundException {
+        return createMapFeature(varId, time, targetGrid, readField(varId, time, targetGrid));
+    }
+
+    /**
+     * Wraps the values of a field on a grid in a {@link MapFeature}
+     */
+    static MapFeature createMapFeature(String varId, DateTime time, RegularGrid grid,
+            Array2D<Number> fieldValues) {
+        Map<String, Parameter> parameters = new HashMap<>();
+        parameters.put(varId, new Parameter(varId, varId, varId, null, null));
+        Map<String, Array2D<Number>> values = new HashMap<>();
+        values.put(varId, fieldValues);
+        return new MapFeature(varId, varId, "", new MapDomain(grid, null, time), parameters,
+                values);
+    }
+
+    @Override
+    public FeaturesAndMemberName getFeaturesForLayer(String id, PlottingDomainParams params)
+            throws EdalException {
+        return new FeaturesAndMemberName(readMapFeature(id, params.getTargetT(),
+                params.getImageGrid()), id);
+    }
+
+    /**
+     * Closes all files which are currently open
+     */
+    public void close() throws IOException {
+        synchronized (openFiles) {
+            for (OpenFile openFile : openFiles.values()) {
+                /*
+                 * Files which are being read get closed when they are
+                 * released
+                 */
+                openFile.evicted = true;
+                if (openFile.users == 0) {
+                    openFile.dataset.close();
+                }
+            }
+            openFiles.clear();
+        }
+        bandedReader.close();
+    }
+}
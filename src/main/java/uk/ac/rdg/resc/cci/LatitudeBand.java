@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+
+/**
+ * A range of absolute latitude (i.e. the same band in both hemispheres) in
+ * which a variable can have meaningful values. For example, sea ice only
+ * appears poleward of about 40 degrees, so its band would be 40-90. Data outside
+ * the band does not need to be read or plotted.
+ * 
+ * @author Guy Griffiths
+ */
+public class LatitudeBand {
+    private final double minAbsLatitude;
+    private final double maxAbsLatitude;
+
+    /**
+     * @param minAbsLatitude
+     *            The minimum absolute latitude of the band
+     * @param maxAbsLatitude
+     *            The maximum absolute latitude of the band
+     */
+    public LatitudeBand(double minAbsLatitude, double maxAbsLatitude) {
+        this.minAbsLatitude = Math.max(0.0, minAbsLatitude);
+        this.maxAbsLatitude = Math.min(90.0, maxAbsLatitude);
+    }
+
+    /**
+     * Finds the band which contains all of the non-zero values of a field
+     * 
+     * @param field
+     *            The field to examine
+     * @param latitudeAxis
+     *            The latitude axis of the field
+     * @param margin
+     *            The number of degrees to extend the band by on each side
+     * @return The {@link LatitudeBand}, or <code>null</code> if the field has
+     *         no non-zero values
+     */
+    public static LatitudeBand fromNonZeroExtent(FloatArray2D field, RegularAxis latitudeAxis,
+            double margin) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int xSize = field.getXSize();
+        for (int y = 0; y < field.getYSize(); y++) {
+            for (int x = 0; x < xSize; x++) {
+                float value = field.getFloat(y, x);
+                if (!Float.isNaN(value) && value != 0f) {
+                    double absLatitude = Math.abs(latitudeAxis.getCoordinateValue(y));
+                    min = Math.min(min, absLatitude);
+                    max = Math.max(max, absLatitude);
+                    break;
+                }
+            }
+        }
+        if (min > max) {
+            return null;
+        }
+        return new LatitudeBand(min - margin, max + margin);
+    }
+
+    /**
+     * @return The smallest band containing both this band and another
+     */
+    public LatitudeBand union(LatitudeBand other) {
+        if (other == null) {
+            return this;
+        }
+        return new LatitudeBand(Math.min(minAbsLatitude, other.minAbsLatitude), Math.max(
+                maxAbsLatitude, other.maxAbsLatitude));
+    }
+
+    public double getMinAbsLatitude() {
+        return minAbsLatitude;
+    }
+
+    public double getMaxAbsLatitude() {
+        return maxAbsLatitude;
+    }
+
+    public boolean contains(double latitude) {
+        double absLatitude = Math.abs(latitude);
+        return absLatitude >= minAbsLatitude && absLatitude <= maxAbsLatitude;
+    }
+
+    /**
+     * @param latitudeAxis
+     *            A latitude axis
+     * @return Whether each point of the axis lies within this band
+     */
+    public boolean[] getRows(RegularAxis latitudeAxis) {
+        boolean[] rows = new boolean[latitudeAxis.size()];
+        for (int y = 0; y < rows.length; y++) {
+            rows[y] = contains(latitudeAxis.getCoordinateValue(y));
+        }
+        return rows;
+    }
+
+    @Override
+    public String toString() {
+        return minAbsLatitude + "-" + maxAbsLatitude + " degrees N/S";
+    }
+}
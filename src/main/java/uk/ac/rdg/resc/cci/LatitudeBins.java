@@ -0,0 +1,168 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Color;
+import java.util.Arrays;
+
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+
+/**
+ * Splits the colouring done by {@link LatitudeDependentSST} into two stages.
+ * First, each pixel is mapped to an 8-bit bin representing its SST relative
+ * to the mean at its latitude. Then a colour lookup table maps each bin to a
+ * colour. The first stage only needs doing once per frame, however many
+ * palettes / range multipliers are being compared, and the bins can be saved
+ * so that new colour variants can be produced later without the data.
+ * 
+ * A bin represents the value (SST - mean) / maxRange, where maxRange is the
+ * maximum range of SST over all latitudes (i.e. the scale range for a range
+ * multiplier of 1). The bins cover -binRange to +binRange evenly, with values
+ * outside this clamped to the end bins. To represent a range multiplier of m
+ * without clamping, binRange must be at least m / 2.
+ * 
+ * @author Guy Griffiths
+ */
+public final class LatitudeBins {
+    /** The number of bins used for data values */
+    public static final int N_BINS = 255;
+    /** The bin used for missing data */
+    public static final int NO_DATA = 255;
+
+    /** The number of colour bands used by {@link LatitudeDependentSST} */
+    private static final int N_COLOUR_BANDS = 250;
+
+    private LatitudeBins() {
+    }
+
+    /**
+     * Calculates the bin of each pixel
+     * 
+     * @param sst
+     *            The SST field, on the image grid
+     * @param latIndices
+     *            The index of the mean which applies to each cell of the
+     *            image grid (see
+     *            {@link LatitudeDependentSST#getLatitudeIndices(RegularGrid)}
+     *            )
+     * @param means
+     *            The mean SST at each latitude
+     * @param maxRange
+     *            The maximum SST range
+     * @param binRange
+     *            The extent of the bins, in units of maxRange
+     * @param mask
+     *            The {@link OceanMask} of the image grid, or <code>null</code>
+     *            to examine every cell
+     * @return The bin of each pixel, in image order (i.e. starting from the
+     *         top row of the image)
+     */
+    public static byte[] computeBins(final FloatArray2D sst, final int[] latIndices,
+            final float[] means, final float maxRange, final float binRange, OceanMask mask) {
+        final int xSize = sst.getXSize();
+        final int ySize = sst.getYSize();
+        final byte[] bins = new byte[xSize * ySize];
+        Arrays.fill(bins, (byte) NO_DATA);
+        final int[] cells = mask == null ? null : mask.getValidIndices();
+        final int nCells = cells == null ? xSize * ySize : cells.length;
+        final float binsPerUnit = N_BINS / (2 * binRange);
+        ParallelUtils.forEachRange(nCells, 1 << 16, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int k = from; k < to; k++) {
+                    int index = cells == null ? k : cells[k];
+                    float value = sst.getFloat(index);
+                    int latIndex = latIndices[index];
+                    if (Float.isNaN(value) || latIndex < 0) {
+                        continue;
+                    }
+                    float relative = (value - means[latIndex]) / maxRange;
+                    int bin = (int) Math.floor((relative + binRange) * binsPerUnit);
+                    bin = Math.max(0, Math.min(N_BINS - 1, bin));
+                    /*
+                     * Grid rows start at the bottom, image rows at the top
+                     */
+                    int y = index / xSize;
+                    int x = index - y * xSize;
+                    bins[(ySize - 1 - y) * xSize + x] = (byte) bin;
+                }
+            }
+        });
+        return bins;
+    }
+
+    /**
+     * Builds a colour lookup table for a palette and range multiplier. This
+     * gives the same colours as the {@link SegmentColourScheme}s used by
+     * {@link LatitudeDependentSST}, to within the resolution of the bins.
+     * 
+     * @param palette
+     *            The palette name or colour definitions
+     * @param rangeMultiplier
+     *            The range multiplier
+     * @param binRange
+     *            The extent of the bins, in units of the maximum SST range
+     * @return The ARGB colour of each bin
+     */
+    public static int[] buildLut(String palette, double rangeMultiplier, float binRange) {
+        SegmentColourScheme colourScheme = new SegmentColourScheme(new ScaleRange(
+                (float) (-rangeMultiplier / 2), (float) (rangeMultiplier / 2), false), null, null,
+                new Color(0, true), palette, N_COLOUR_BANDS);
+        int[] lut = new int[256];
+        for (int bin = 0; bin < N_BINS; bin++) {
+            float relative = -binRange + (bin + 0.5f) * 2 * binRange / N_BINS;
+            lut[bin] = colourScheme.getColor(relative).getRGB();
+        }
+        lut[NO_DATA] = 0;
+        return lut;
+    }
+
+    /**
+     * Colours a frame of bins
+     * 
+     * @param bins
+     *            The bins of each pixel
+     * @param lut
+     *            The colour lookup table from {@link #buildLut}
+     * @param argb
+     *            The array to write the ARGB colour of each pixel into
+     */
+    public static void applyLut(final byte[] bins, final int[] lut, final int[] argb) {
+        ParallelUtils.forEachRange(bins.length, 1 << 16, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    argb[i] = lut[bins[i] & 0xff];
+                }
+            }
+        });
+    }
+}
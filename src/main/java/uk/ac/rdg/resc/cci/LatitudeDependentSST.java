@@ -32,6 +32,7 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -39,13 +40,10 @@ import java.util.Map;
 import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
 import org.joda.time.DateTime;
 
-import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
-import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.domain.MapDomain;
 import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
-import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
 import uk.ac.rdg.resc.edal.feature.MapFeature;
 import uk.ac.rdg.resc.edal.graphics.style.ColourScheme2D;
 import uk.ac.rdg.resc.edal.graphics.style.ContourLayer;
@@ -62,10 +60,8 @@ import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
-import uk.ac.rdg.resc.edal.metadata.GridVariableMetadata;
 import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
-import uk.ac.rdg.resc.edal.util.CollectionUtils;
 import uk.ac.rdg.resc.edal.util.Extents;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 
@@ -79,26 +75,51 @@ public class LatitudeDependentSST implements FeatureCatalogue {
     /** Cached features */
     private final Map<CacheKey, MapFeature> mapFeatures;
 
-    private final GriddedDataset dataset;
+    private final IndexedFeatureCatalogue catalogue;
 
     private float[] means;
     private float scaleRange;
 
-    private FeaturesAndMemberName latitudeFeature = null;
+    /** Latitude features, for each image grid they have been requested on */
+    private final Map<RegularGrid, FeaturesAndMemberName> latitudeFeatures = new HashMap<>();
     private Raster2DLayer sstLayer = null;
 
     private final RegularGrid averagingGrid;
 
+    /** Whether to store cached features as off-heap 16-bit values */
+    private boolean quantiseCache = false;
+
     public LatitudeDependentSST(String location, String sstVar, RegularGrid averagingGrid)
             throws IOException, EdalException {
-        this.sstVar = sstVar;
+        this(location, sstVar, averagingGrid, null);
+    }
 
-        CdmGridDatasetFactory datasetFactory = new CdmGridDatasetFactory();
-        dataset = (GriddedDataset) datasetFactory.createDataset("cci-sst", location);
+    /**
+     * @param location
+     *            The location of the SST data
+     * @param sstVar
+     *            The SST variable ID
+     * @param averagingGrid
+     *            The {@link RegularGrid} to perform latitude averaging on
+     * @param timeFilter
+     *            A {@link DatasetIndex.TimeFilter} selecting which times will
+     *            be used (either as frames or in the averaging), or
+     *            <code>null</code> to use the whole dataset
+     */
+    public LatitudeDependentSST(String location, String sstVar, RegularGrid averagingGrid,
+            DatasetIndex.TimeFilter timeFilter) throws IOException, EdalException {
+        this.sstVar = sstVar;
 
-        GridVariableMetadata sstMetadata = dataset.getVariableMetadata(sstVar);
+        /*
+         * Use an indexed catalogue, so that we don't have to open every file
+         * in the dataset up front
+         */
+        catalogue = new IndexedFeatureCatalogue(location, timeFilter);
+        if (!catalogue.getIndex().getVariables().contains(sstVar)) {
+            throw new VariableNotFoundException(sstVar);
+        }
 
-        timeAxis = sstMetadata.getTemporalDomain();
+        timeAxis = catalogue.getTimeAxis();
 
         this.averagingGrid = averagingGrid;
 
@@ -109,6 +130,58 @@ public class LatitudeDependentSST implements FeatureCatalogue {
         return timeAxis;
     }
 
+    /**
+     * @return The {@link IndexedFeatureCatalogue} which the data is read from
+     */
+    public IndexedFeatureCatalogue getCatalogue() {
+        return catalogue;
+    }
+
+    /**
+     * Sets an {@link OverviewStore} to read data from when the grid being
+     * read onto is coarse enough. See
+     * {@link IndexedFeatureCatalogue#setOverviewStore(OverviewStore)}
+     */
+    public void setOverviewStore(OverviewStore overviews) {
+        catalogue.setOverviewStore(overviews);
+        mapFeatures.clear();
+    }
+
+    /**
+     * Sets the band of latitudes in which a variable has meaningful values.
+     * See {@link IndexedFeatureCatalogue#setLatitudeBand(String, LatitudeBand)}
+     */
+    public void setLatitudeBand(String varId, LatitudeBand band) {
+        catalogue.setLatitudeBand(varId, band);
+    }
+
+    /**
+     * Finds the band of latitudes in which a variable has non-zero values.
+     * See {@link IndexedFeatureCatalogue#learnLatitudeBand(String, List, double)}
+     */
+    public LatitudeBand learnLatitudeBand(String varId, List<DateTime> times, double margin)
+            throws DataReadingException, VariableNotFoundException {
+        return catalogue.learnLatitudeBand(varId, times, margin);
+    }
+
+    /**
+     * Sets whether features cached for the latitude averaging are stored as
+     * {@link QuantisedArray2D}s (off-heap, 16 bits per value) rather than as
+     * they are read. This is off by default. Quantising uses half the memory
+     * of floats with no visible difference in the output.
+     */
+    public void setQuantiseCache(boolean quantiseCache) {
+        this.quantiseCache = quantiseCache;
+    }
+
+    /**
+     * Sets a {@link RawFieldCache} to store decoded full-resolution fields in.
+     * See {@link IndexedFeatureCatalogue#setRawFieldCache(RawFieldCache)}
+     */
+    public void setRawFieldCache(RawFieldCache rawCache) {
+        catalogue.setRawFieldCache(rawCache);
+    }
+
     /**
      * Generates a Raster2DLayer with a {@link ColourScheme2D} where each
      * latitude has a {@link SegmentColourScheme} based on the average value of
@@ -134,6 +207,13 @@ public class LatitudeDependentSST implements FeatureCatalogue {
         scaleRange = 0.0f;
         RegularAxis latitudeAxis = averagingGrid.getYAxis();
         means = new float[latitudeAxis.size()];
+        /*
+         * Land is missing at all times, so we only need to visit the ocean
+         * cells
+         */
+        OceanMask mask = catalogue.getOceanMask(sstVar, averagingGrid);
+        int[] oceanCells = mask.getValidIndices();
+        int xSize = averagingGrid.getXSize();
         /*
          * Calculate the mean value of SST at each latitude, and the maximum
          * range of SST values
@@ -146,7 +226,8 @@ public class LatitudeDependentSST implements FeatureCatalogue {
             for (DateTime time : times) {
                 MapFeature mapFeature = getMapFeature(time, sstVar, true, averagingGrid);
                 Array2D<Number> sstValues = mapFeature.getValues(sstVar);
-                for (int x = 0; x < sstValues.getXSize(); x++) {
+                for (int k = mask.getRowStart(y); k < mask.getRowEnd(y); k++) {
+                    int x = oceanCells[k] - y * xSize;
                     Number sstValue = sstValues.get(y, x);
                     if (sstValue != null && !Float.isNaN(sstValue.floatValue())) {
                         minSst = Math.min(minSst, sstValue.floatValue());
@@ -222,6 +303,82 @@ public class LatitudeDependentSST implements FeatureCatalogue {
         sstLayer = new Raster2DLayer(LATITUDE, sstVar, colourScheme);
     }
 
+    /**
+     * @return The smoothed mean SST at each latitude of the averaging grid,
+     *         as calculated by
+     *         {@link #generateSSTLayer(List, double, int, String)}
+     */
+    public float[] getMeans() {
+        if (means == null) {
+            throw new IllegalStateException(
+                    "Means not calculated.  You must call generateSSTLayer() first.");
+        }
+        return means.clone();
+    }
+
+    /**
+     * @return The span of each latitude's colour scale (i.e. the maximum SST
+     *         range multiplied by the range multiplier), as calculated by
+     *         {@link #generateSSTLayer(List, double, int, String)}
+     */
+    public float getScaleRange() {
+        return scaleRange;
+    }
+
+    /**
+     * Finds which latitude of the averaging grid (and hence which of the
+     * values returned by {@link #getMeans()}) each cell of a grid lies in
+     * 
+     * @param grid
+     *            The grid to find latitude indices for
+     * @return The latitude index for each cell, in row-major order, or -1 for
+     *         cells outside the averaging grid
+     */
+    public int[] getLatitudeIndices(RegularGrid grid) {
+        int xSize = grid.getXSize();
+        int ySize = grid.getYSize();
+        RegularAxis latitudeAxis = averagingGrid.getYAxis();
+        int[] latIndices = new int[xSize * ySize];
+        if (GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+            /*
+             * Latitude only depends on the row
+             */
+            for (int y = 0; y < ySize; y++) {
+                int latIndex = latitudeAxis.findIndexOf(grid.getYAxis().getCoordinateValue(y));
+                Arrays.fill(latIndices, y * xSize, (y + 1) * xSize, latIndex);
+            }
+        } else {
+            /*
+             * Map every cell onto the averaging grid in one go - transforming
+             * each position separately is far too slow for large grids
+             */
+            int n = xSize * ySize;
+            double[] xs = new double[n];
+            double[] ys = new double[n];
+            for (int y = 0; y < ySize; y++) {
+                double yval = grid.getYAxis().getCoordinateValue(y);
+                for (int x = 0; x < xSize; x++) {
+                    xs[y * xSize + x] = grid.getXAxis().getCoordinateValue(x);
+                    ys[y * xSize + x] = yval;
+                }
+            }
+            int[] pixelXs = new int[n];
+            int[] pixelYs = new int[n];
+            new PixelMapper(grid.getCoordinateReferenceSystem(), averagingGrid).map(xs, ys, n,
+                    pixelXs, pixelYs);
+            int nLatitudes = latitudeAxis.size();
+            for (int i = 0; i < n; i++) {
+                /*
+                 * PixelMapper gives image co-ordinates, with 0 at the top
+                 */
+                int latIndex = nLatitudes - 1 - pixelYs[i];
+                latIndices[i] = (pixelYs[i] == PixelMapper.INVALID || latIndex < 0
+                        || latIndex >= nLatitudes) ? -1 : latIndex;
+            }
+        }
+        return latIndices;
+    }
+
     public Raster2DLayer getSSTLayer() {
         if (sstLayer == null) {
             throw new IllegalStateException(
@@ -252,20 +409,21 @@ public class LatitudeDependentSST implements FeatureCatalogue {
             /*
              * Extract the map feature onto the desired image grid
              */
-            MapDomain mapDomain = new MapDomain(imageGrid, null, time);
-            List<? extends DiscreteFeature<?, ?>> extractedMapFeatures = dataset
-                    .extractMapFeatures(CollectionUtils.setOf(varId), mapDomain);
-            /*
-             * Exactly one feature is extracted.
-             */
-            assert (extractedMapFeatures.size() == 1);
-            MapFeature mapFeature = (MapFeature) extractedMapFeatures.get(0);
+            MapFeature mapFeature = catalogue.readMapFeature(varId, time, imageGrid);
             if (cache) {
                 /*
                  * Cache the feature if required. Since this generally works
                  * with a very large dataset, only features which will be used
                  * multiple times should be cached
                  */
+                if (quantiseCache) {
+                    Map<String, Array2D<Number>> values = new HashMap<>();
+                    values.put(varId,
+                            QuantisedArray2D.quantise(mapFeature.getValues(varId), true));
+                    mapFeature = new MapFeature(mapFeature.getId(), mapFeature.getName(),
+                            mapFeature.getDescription(), mapFeature.getDomain(),
+                            mapFeature.getParameterMap(), values);
+                }
                 mapFeatures.put(key, mapFeature);
             }
             return mapFeature;
@@ -285,15 +443,34 @@ public class LatitudeDependentSST implements FeatureCatalogue {
          */
         if (id.equals(LATITUDE)) {
             /*
-             * We only want to generate this once, since it will never change
+             * We only want to generate this once for each grid, since it will
+             * never change
              */
-            if (latitudeFeature == null) {
-                final RegularGrid imageGrid = params.getImageGrid();
+            final RegularGrid imageGrid = params.getImageGrid();
+            synchronized (latitudeFeatures) {
+                FeaturesAndMemberName latitudeFeature = latitudeFeatures.get(imageGrid);
+                if (latitudeFeature != null) {
+                    return latitudeFeature;
+                }
+                /*
+                 * The latitude is only used to colour SST, so we don't need
+                 * to calculate it over land
+                 */
+                OceanMask imageMask;
+                try {
+                    imageMask = catalogue.getOceanMask(sstVar, imageGrid);
+                } catch (DataReadingException | VariableNotFoundException e) {
+                    imageMask = null;
+                }
+                final OceanMask mask = imageMask;
                 Map<String, Array2D<Number>> latitudeValuesMap = new HashMap<>();
                 latitudeValuesMap.put(LATITUDE,
                         new Array2D<Number>(imageGrid.getYSize(), imageGrid.getXSize()) {
                             @Override
                             public Number get(int... coords) {
+                                if (mask != null && !mask.isValid(coords[Y_IND], coords[X_IND])) {
+                                    return null;
+                                }
                                 Double yval = imageGrid.getYAxis()
                                         .getCoordinateValue(coords[Y_IND]);
                                 Double xval = imageGrid.getXAxis()
@@ -318,8 +495,9 @@ public class LatitudeDependentSST implements FeatureCatalogue {
                                 new MapDomain(imageGrid, null, params.getTargetT()), null,
                                 latitudeValuesMap),
                         LATITUDE);
+                latitudeFeatures.put(imageGrid, latitudeFeature);
+                return latitudeFeature;
             }
-            return latitudeFeature;
         } else {
             try {
                 return new FeaturesAndMemberName(
@@ -28,151 +28,80 @@
 
 package uk.ac.rdg.resc.cci;
 
-import java.awt.BasicStroke;
 import java.awt.Color;
-import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
-import java.util.List;
 
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
-
-import uk.ac.rdg.resc.edal.grid.RegularAxis;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
-import uk.ac.rdg.resc.edal.position.HorizontalPosition;
 import uk.ac.rdg.resc.edal.util.Array2D;
-import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
+/**
+ * Plots the maximum northern and southern extent reached by a set of contours
+ * in each column of an image. The extents are tracked by a
+ * {@link ContourExtentKernel}.
+ * 
+ * @author Guy Griffiths
+ */
 public class MaxContourExtentPlotter {
-    private List<Flotsam> particles = new ArrayList<>();
     private RegularGrid imageGrid;
 
     private Color baseColour;
+    private final ContourExtentKernel kernel;
+    private final TrailRasteriser rasteriser;
 
     public MaxContourExtentPlotter(RegularGrid imageGrid, double[] values, Color baseColour) {
         this.imageGrid = imageGrid;
         this.baseColour = baseColour;
-        RegularAxis xAxis = imageGrid.getXAxis();
-        List<Double> xVals = xAxis.getCoordinateValues();
         /*
          * TODO what start values should we use?
+         * 
+         * Currently all extents start from the middle row of the image
          */
-        RegularAxis yAxis = imageGrid.getYAxis();
-        for (double value : values) {
-            for (Double xPos : xVals) {
-                particles.add(new Flotsam(new HorizontalPosition(xPos, yAxis.getCoordinateValue(yAxis.size()/2),
-                        imageGrid.getCoordinateReferenceSystem()), value, imageGrid, true));
-                particles.add(new Flotsam(new HorizontalPosition(xPos, yAxis
-                        .getCoordinateValue(yAxis.size()/2), imageGrid
-                        .getCoordinateReferenceSystem()), value, imageGrid, false));
-            }
-        }
+        kernel = new ContourExtentKernel(imageGrid.getXSize(), imageGrid.getYSize(), values);
+        rasteriser = new TrailRasteriser(imageGrid.getXSize(), imageGrid.getYSize());
     }
 
+    /**
+     * Plots the current extents of all contours.
+     * 
+     * @return An image containing the extents. Note that the same image object
+     *         is re-used (and overwritten) on every call to this method.
+     */
     public BufferedImage plot() {
-        BufferedImage image = new BufferedImage(imageGrid.getXSize(), imageGrid.getYSize(),
-                BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = image.createGraphics();
-
-        RegularAxis xAxis = imageGrid.getXAxis();
-        RegularAxis yAxis = imageGrid.getYAxis();
-
-        /*
-         * Plot each wind line
-         */
-        for (Flotsam particle : particles) {
-            if(particle.invisible) {
-                continue;
-            }
-            HorizontalPosition position = particle.getPosition();
-            CoordinateReferenceSystem crs = particle.getCrs();
-
-            /*
-             * Convert position to image grid co-ordinate space
-             */
-            if (!GISUtils.crsMatch(crs, imageGrid.getCoordinateReferenceSystem())) {
-                position = GISUtils.transformPosition(position,
-                        imageGrid.getCoordinateReferenceSystem());
-            }
-            int x = xAxis.findIndexOfUnconstrained(position.getX());
-            int y = imageGrid.getYSize() - 1 - yAxis.findIndexOfUnconstrained(position.getY());
-            g.setColor(baseColour);
-            g.setStroke(new BasicStroke(1));
-            g.drawRect(x, y, 1, 1);
-        }
-
-        return image;
-    }
-
-    public void evolve(Array2D<Number> values) {
-        for (Flotsam particle : particles) {
-            particle.evolve(values);
-        }
-    }
-
-    public static class Flotsam {
-        private HorizontalPosition position;
-        /*
-         * TODO Add a time component dependency
-         */
-        private CoordinateReferenceSystem crs;
-        private boolean invisible = true;
-        private RegularGrid coordGrid;
-        private double contourValue;
-        private boolean flowUp;
-        private Number lastValue = Double.NaN;
-
-        public Flotsam(HorizontalPosition startPos, double contourValue, 
-                RegularGrid coordGrid, boolean flowUp) {
-            this.contourValue = contourValue;
-            this.coordGrid = coordGrid;
-            this.flowUp = flowUp;
-            this.position = startPos;
-            crs = startPos.getCoordinateReferenceSystem();
-        }
-
-        public void evolve(Array2D<Number> grid) {
-            GridCoordinates2D gridIndex = coordGrid.findIndexOf(position);
-            int yIndex = gridIndex.getY();
-
-            Number value = grid.get(yIndex, gridIndex.getX());
-            if(lastValue != null && Double.isNaN(lastValue.doubleValue())) {
-                lastValue = value;
-            }
-            while (value == null || value.doubleValue() > contourValue) {
-                if (flowUp) {
-                    yIndex++;
-                } else {
-                    yIndex--;
+        int colour = TrailRasteriser.premultiply(baseColour, 255);
+        int ySize = imageGrid.getYSize();
+
+        rasteriser.reset();
+        for (int c = 0; c < kernel.getNumContours(); c++) {
+            for (int x = 0; x < kernel.getXSize(); x++) {
+                /*
+                 * Each extent is drawn as a 2x2 square. This is equivalent to
+                 * a 1x1 rectangle outline with a 1px stroke
+                 */
+                if (kernel.isVisible(c, true, x)) {
+                    rasteriser.addPoint(x, ySize - 1 - kernel.getExtent(c, true, x), colour, 2);
                 }
-                if (yIndex < 0) {
-                    yIndex = 0;
-                    break;
+                if (kernel.isVisible(c, false, x)) {
+                    rasteriser.addPoint(x, ySize - 1 - kernel.getExtent(c, false, x), colour, 2);
                 }
-                if (yIndex >= coordGrid.getYSize()) {
-                    yIndex = coordGrid.getYSize() - 1;
-                    break;
-                }
-
-                lastValue = value;
-                value = grid.get(yIndex, gridIndex.getX());
             }
-            if(lastValue == null) {
-                invisible = true;
-            } else {
-                invisible = false; 
-            }
-            position = new HorizontalPosition(position.getX(), coordGrid.getYAxis()
-                    .getCoordinateValue(yIndex), crs);
         }
 
-        public HorizontalPosition getPosition() {
-            return position;
-        }
+        return rasteriser.render();
+    }
 
-        public CoordinateReferenceSystem getCrs() {
-            return crs;
+    /**
+     * Updates the contour extents
+     * 
+     * @param values
+     *            The values of the contoured field on the image grid
+     */
+    public void evolve(Array2D<Number> values) {
+        FloatArray2D floatValues;
+        if (values instanceof FloatArray2D) {
+            floatValues = (FloatArray2D) values;
+        } else {
+            floatValues = FloatArray2D.copyOf(values);
         }
+        kernel.evolve(floatValues);
     }
 }
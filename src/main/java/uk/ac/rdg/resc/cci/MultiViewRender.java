@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Renders latitude-dependent SST frames (as {@link SSTRender} and
+ * {@link SSTRenderPolar} do) for several views at once - e.g. a global view,
+ * some regional views and the two polar views. Each timestep is read from the
+ * data once, on its native grid, and all of the views are then rendered from
+ * that copy in parallel. The fields are released before the next timestep is
+ * read.
+ * 
+ * The views are listed in the properties file (multi_view_render.properties),
+ * each with its own bounding box, CRS, image size, legend and output
+ * directory.
+ * 
+ * @author Guy Griffiths
+ */
+public class MultiViewRender {
+    private static final Logger log = LoggerFactory.getLogger(MultiViewRender.class);
+
+    public static void main(String[] args) throws IOException, EdalException,
+            InterruptedException {
+        /*
+         * Load a properties file to determine what to plot.
+         */
+        Properties properties = RenderUtils.loadProperties("multi_view_render.properties");
+
+        String dataPath = properties.getProperty("dataPath");
+        String viewsStr = properties.getProperty("views");
+        if (dataPath == null || viewsStr == null) {
+            log.error("You must provide at least the path to the SST data and a list of views");
+            System.exit(1);
+        }
+
+        String palette = properties.getProperty("palette", "default");
+        boolean includeDate = Boolean.parseBoolean(properties.getProperty("includeDate", "true"));
+        String sstVar = properties.getProperty("sstVar", "analysed_sst");
+        String iceVar = properties.getProperty("iceVar", "sea_ice_fraction");
+        boolean includeIce = Boolean.parseBoolean(properties.getProperty("includeIce", "true"));
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
+
+        double rangeMultiplier = Double.parseDouble(properties.getProperty("rangeMultiplier",
+                "1.0"));
+        int smoothingSpan = Integer.parseInt(properties.getProperty("smoothingSpan", "1"));
+
+        /*
+         * The latitude averaging is done globally, so that all views share the
+         * same colour scales
+         */
+        LatitudeDependentSST latitudeDependentSST = new LatitudeDependentSST(dataPath, sstVar,
+                RenderUtils.getAveragingGrid(properties));
+        RenderUtils.configureCaches(latitudeDependentSST, properties);
+        TimeAxis timeAxis = latitudeDependentSST.getTimeAxis();
+
+        int[] frameRange = RenderUtils.getFrameRange(properties, timeAxis);
+        int firstFrame = frameRange[0];
+        int lastFrame = frameRange[1];
+        if (includeIce && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
+        }
+
+        List<DateTime> useInAverage = RenderUtils.getAverageTimes(properties, timeAxis);
+        latitudeDependentSST.generateSSTLayer(useInAverage, rangeMultiplier, smoothingSpan,
+                palette);
+
+        /*
+         * Set up each of the views
+         */
+        List<View> views = new ArrayList<>();
+        for (String name : viewsStr.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                views.add(new View(name, properties, latitudeDependentSST, iceVar, includeIce,
+                        includeDate));
+            }
+        }
+
+        /*
+         * The fields for the current timestep, shared between all views
+         */
+        final SharedFieldCatalogue sharedFields = new SharedFieldCatalogue(latitudeDependentSST
+                .getCatalogue().getNativeGrid(), latitudeDependentSST);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(views.size(),
+                ParallelUtils.getParallelism()));
+        try {
+            for (final DateTime time : timeAxis.getCoordinateValues().subList(firstFrame,
+                    lastFrame + 1)) {
+                log.info("Generating frames for time " + time);
+                Map<String, FloatArray2D> fields = new HashMap<>();
+                fields.put(sstVar, latitudeDependentSST.getCatalogue()
+                        .readNativeField(sstVar, time));
+                if (includeIce) {
+                    fields.put(iceVar, latitudeDependentSST.getCatalogue().readNativeField(
+                            iceVar, time));
+                }
+                sharedFields.setFields(fields);
+
+                List<Future<Void>> renders = new ArrayList<>();
+                for (final View view : views) {
+                    renders.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            view.render(time, sharedFields);
+                            return null;
+                        }
+                    }));
+                }
+                for (Future<Void> render : renders) {
+                    try {
+                        render.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        } else if (cause instanceof EdalException) {
+                            throw (EdalException) cause;
+                        }
+                        throw new RuntimeException(cause);
+                    }
+                }
+                /*
+                 * Release this timestep's fields before reading the next
+                 */
+                sharedFields.setFields(null);
+            }
+        } finally {
+            executor.shutdownNow();
+            latitudeDependentSST.getCatalogue().close();
+        }
+        for (View view : views) {
+            log.info("Finished writing frames for " + view.name
+                    + ".  Now run:\nffmpeg -r 25 -pattern_type glob  -i '" + view.outputDir
+                    + "/frame-*.png' -c:v libx264 -pix_fmt yuv420p output.mp4");
+        }
+    }
+
+    /**
+     * A single view, and everything needed to render frames for it
+     */
+    private static class View {
+        private final String name;
+        private final RegularGrid grid;
+        private final File outputDir;
+        private final MapImage compositeImage;
+        private final BufferedImage background;
+        private final BufferedImage legend;
+        private final boolean circularMask;
+        private final boolean includeDate;
+        private final int gap;
+        private final DateTimeFormatter dateFormatter = (new DateTimeFormatterBuilder())
+                .appendDayOfMonth(2).appendLiteral("-").appendMonthOfYear(2).appendLiteral("-")
+                .appendYear(4, 4).toFormatter();
+        private Font font = null;
+
+        public View(String name, Properties properties,
+                LatitudeDependentSST latitudeDependentSST, String iceVar, boolean includeIce,
+                boolean includeDate) throws IOException, EdalException {
+            this.name = name;
+            this.includeDate = includeDate;
+            String prefix = "view." + name + ".";
+
+            CoordinateReferenceSystem crs = GISUtils.getCrs(properties.getProperty(prefix
+                    + "crs", "CRS:84"));
+            String[] bboxStrs = properties.getProperty(prefix + "bbox", "-180,-90,180,90")
+                    .split(",");
+            if (bboxStrs.length != 4) {
+                throw new IllegalArgumentException("The bounding box of view " + name
+                        + " must be minx,miny,maxx,maxy");
+            }
+            BoundingBox bbox = new BoundingBoxImpl(Double.parseDouble(bboxStrs[0].trim()),
+                    Double.parseDouble(bboxStrs[1].trim()),
+                    Double.parseDouble(bboxStrs[2].trim()),
+                    Double.parseDouble(bboxStrs[3].trim()), crs);
+            String[] sizeStrs = properties.getProperty(prefix + "size", "1920x960").split("x");
+            int width = Integer.parseInt(sizeStrs[0].trim());
+            int height = Integer.parseInt(sizeStrs[sizeStrs.length - 1].trim());
+            grid = new RegularGridImpl(bbox, width, height);
+
+            String outputPath = properties.getProperty(prefix + "outputPath");
+            if (outputPath == null) {
+                throw new IllegalArgumentException("View " + name + " has no output path");
+            }
+            outputDir = new File(outputPath);
+            if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+                throw new IOException("Cannot create output directory " + outputDir);
+            }
+
+            compositeImage = new MapImage();
+            compositeImage.getLayers().add(latitudeDependentSST.getSSTLayer());
+            if (includeIce) {
+                ColourScheme iceColourScheme = new SegmentColourScheme(new ScaleRange(0f, 1.0f,
+                        false), new Color(0, true), null, new Color(0, true),
+                        "#00ffffff,#ffffff", 100);
+                compositeImage.getLayers().add(new RasterLayer(iceVar, iceColourScheme));
+            }
+
+            if (Boolean.parseBoolean(properties.getProperty(prefix + "legend", "false"))) {
+                int legendWidth = (int) (0.4 * height);
+                String legendWidthStr = properties.getProperty(prefix + "legendWidth");
+                if (legendWidthStr != null) {
+                    legendWidth = Integer.parseInt(legendWidthStr.trim());
+                }
+                legend = latitudeDependentSST.drawLegend(legendWidth, height);
+            } else {
+                legend = null;
+            }
+            gap = width / 100;
+            circularMask = Boolean.parseBoolean(properties.getProperty(prefix + "circularMask",
+                    "false"));
+            background = getBackground(properties.getProperty(prefix + "background"));
+        }
+
+        /**
+         * Gets the background image for this view. This is either an image
+         * file / classpath resource, or (for lat-lon views) the relevant part
+         * of the blue marble image.
+         */
+        private BufferedImage getBackground(String backgroundPath) throws IOException {
+            if (backgroundPath != null) {
+                if ("none".equalsIgnoreCase(backgroundPath)) {
+                    return null;
+                }
+                File backgroundFile = new File(backgroundPath);
+                if (backgroundFile.exists()) {
+                    return ImageIO.read(backgroundFile);
+                }
+                URL resource = MultiViewRender.class.getResource(backgroundPath);
+                if (resource == null) {
+                    throw new IOException("Cannot find background image " + backgroundPath);
+                }
+                return ImageIO.read(resource);
+            }
+            if (!GISUtils.isWgs84LonLat(grid.getCoordinateReferenceSystem())) {
+                return null;
+            }
+            BoundingBox bbox = grid.getBoundingBox();
+            return RenderUtils.getBackground(bbox.getMinX(), bbox.getMinY(), bbox.getMaxX(),
+                    bbox.getMaxY());
+        }
+
+        public void render(DateTime time, FeatureCatalogue catalogue) throws IOException,
+                EdalException {
+            int width = grid.getXSize();
+            int height = grid.getYSize();
+            int totalWidth = legend == null ? width : width + gap + legend.getWidth();
+            BufferedImage frame = new BufferedImage(totalWidth, height,
+                    BufferedImage.TYPE_INT_ARGB);
+
+            PlottingDomainParams params = new PlottingDomainParams(width, height,
+                    grid.getBoundingBox(), null, null, null, null, time);
+            BufferedImage dataImage = compositeImage.drawImage(params, catalogue);
+
+            Graphics2D g = frame.createGraphics();
+            g.setColor(Color.black);
+            g.fillRect(0, 0, frame.getWidth(), frame.getHeight());
+            if (background != null) {
+                g.drawImage(background, 0, 0, width, height, null);
+            }
+            g.drawImage(dataImage, 0, 0, width, height, null);
+            if (circularMask) {
+                /*
+                 * Black out everything outside the circle inscribed in the
+                 * view (e.g. for polar views)
+                 */
+                BufferedImage mask = new BufferedImage(width, height,
+                        BufferedImage.TYPE_INT_ARGB);
+                Graphics2D gmask = mask.createGraphics();
+                gmask.setColor(Color.black);
+                gmask.fillRect(0, 0, width, height);
+                gmask.setComposite(AlphaComposite.Clear);
+                gmask.fillOval(0, 0, width, height);
+                gmask.dispose();
+                g.drawImage(mask, 0, 0, null);
+            }
+            if (legend != null) {
+                g.drawImage(legend, width + gap, 0, legend.getWidth(), legend.getHeight(), null);
+            }
+            if (includeDate) {
+                g.setColor(Color.white);
+                if (font == null) {
+                    font = RenderUtils.getDateFont(height);
+                }
+                g.setFont(font);
+                g.drawString(dateFormatter.print(time), (int) (width * 0.4), height - 10);
+            }
+            g.dispose();
+
+            ImageIO.write(frame, "png", new File(outputDir, "frame-"
+                    + TimeUtils.dateTimeToISO8601(time) + ".png"));
+        }
+    }
+
+    /**
+     * A {@link FeatureCatalogue} which serves the fields of the current
+     * timestep from memory, resampling them onto whichever grid they are
+     * requested on. Latitude features come from the
+     * {@link LatitudeDependentSST}.
+     */
+    private static class SharedFieldCatalogue implements FeatureCatalogue {
+        private final RegularGrid nativeGrid;
+        private final LatitudeDependentSST latitudeDependentSST;
+        private final Map<RegularGrid, GridResampler> resamplers = new HashMap<>();
+        private volatile Map<String, FloatArray2D> fields = null;
+
+        public SharedFieldCatalogue(RegularGrid nativeGrid,
+                LatitudeDependentSST latitudeDependentSST) {
+            this.nativeGrid = nativeGrid;
+            this.latitudeDependentSST = latitudeDependentSST;
+        }
+
+        public void setFields(Map<String, FloatArray2D> fields) {
+            this.fields = fields;
+        }
+
+        private GridResampler getResampler(RegularGrid targetGrid) {
+            synchronized (resamplers) {
+                GridResampler resampler = resamplers.get(targetGrid);
+                if (resampler == null) {
+                    resampler = new GridResampler(nativeGrid, targetGrid);
+                    resamplers.put(targetGrid, resampler);
+                }
+                return resampler;
+            }
+        }
+
+        @Override
+        public FeaturesAndMemberName getFeaturesForLayer(String id, PlottingDomainParams params)
+                throws EdalException {
+            if (LatitudeDependentSST.LATITUDE.equals(id)) {
+                return latitudeDependentSST.getFeaturesForLayer(id, params);
+            }
+            Map<String, FloatArray2D> currentFields = fields;
+            if (currentFields == null || !currentFields.containsKey(id)) {
+                return null;
+            }
+            RegularGrid imageGrid = params.getImageGrid();
+            FloatArray2D values = getResampler(imageGrid).resample(currentFields.get(id));
+            return new FeaturesAndMemberName(IndexedFeatureCatalogue.createMapFeature(id,
+                    params.getTargetT(), imageGrid, values), id);
+        }
+    }
+}
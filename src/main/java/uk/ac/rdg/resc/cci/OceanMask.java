@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The cells of a grid which hold valid data - for SST, the ocean cells. This
+ * is derived once from a single field (land is missing in every timestep), and
+ * lets loops over whole fields visit only the cells which can have a value.
+ * 
+ * The mask is held both as a bitset (for random access) and as a sorted list
+ * of the row-major indices of the valid cells (for iteration). Since the list
+ * is sorted, the valid cells in each row are contiguous within it - see
+ * {@link #getRowStart(int)} and {@link #getRowEnd(int)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class OceanMask {
+    private final int ySize;
+    private final int xSize;
+    private final long[] bits;
+    private final int[] validIndices;
+    /** The position in validIndices of the first valid cell of each row */
+    private final int[] rowStarts;
+
+    /**
+     * Creates a mask of the non-NaN cells of a field
+     */
+    public static OceanMask fromField(FloatArray2D field) {
+        int size = field.getXSize() * field.getYSize();
+        long[] bits = new long[(size + 63) >>> 6];
+        for (int i = 0; i < size; i++) {
+            if (!Float.isNaN(field.getFloat(i))) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new OceanMask(field.getYSize(), field.getXSize(), bits);
+    }
+
+    /**
+     * Reads a mask previously written with {@link #write(DataOutput)}
+     */
+    public static OceanMask read(DataInput in) throws IOException {
+        int ySize = in.readInt();
+        int xSize = in.readInt();
+        long[] bits = new long[in.readInt()];
+        if (bits.length != ((long) xSize * ySize + 63) >>> 6) {
+            throw new IOException("Ocean mask size does not match its dimensions");
+        }
+        for (int w = 0; w < bits.length; w++) {
+            bits[w] = in.readLong();
+        }
+        return new OceanMask(ySize, xSize, bits);
+    }
+
+    private OceanMask(int ySize, int xSize, long[] bits) {
+        this.ySize = ySize;
+        this.xSize = xSize;
+        this.bits = bits;
+
+        int nValid = 0;
+        for (long word : bits) {
+            nValid += Long.bitCount(word);
+        }
+        validIndices = new int[nValid];
+        rowStarts = new int[ySize + 1];
+        int k = 0;
+        for (int y = 0; y < ySize; y++) {
+            rowStarts[y] = k;
+            for (int i = y * xSize; i < (y + 1) * xSize; i++) {
+                if (isValid(i)) {
+                    validIndices[k++] = i;
+                }
+            }
+        }
+        rowStarts[ySize] = k;
+    }
+
+    /**
+     * Writes this mask so that it can be read with {@link #read(DataInput)}
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(ySize);
+        out.writeInt(xSize);
+        out.writeInt(bits.length);
+        for (long word : bits) {
+            out.writeLong(word);
+        }
+    }
+
+    public int getXSize() {
+        return xSize;
+    }
+
+    public int getYSize() {
+        return ySize;
+    }
+
+    /**
+     * @return Whether the cell with the given row-major index is valid
+     */
+    public boolean isValid(int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public boolean isValid(int y, int x) {
+        return isValid(y * xSize + x);
+    }
+
+    public int getNumValid() {
+        return validIndices.length;
+    }
+
+    /**
+     * @return The row-major indices of all valid cells, in increasing order.
+     *         This is the internal array, and must not be modified.
+     */
+    public int[] getValidIndices() {
+        return validIndices;
+    }
+
+    /**
+     * @return The position in {@link #getValidIndices()} of the first valid
+     *         cell in the given row
+     */
+    public int getRowStart(int y) {
+        return rowStarts[y];
+    }
+
+    /**
+     * @return The position in {@link #getValidIndices()} after the last valid
+     *         cell in the given row
+     */
+    public int getRowEnd(int y) {
+        return rowStarts[y + 1];
+    }
+}
@@ -0,0 +1,491 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularAxisImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A local store of reduced-resolution copies ("overviews") of gridded fields.
+ * Each overview level is a block average of the native grid by an integer
+ * factor. Reading a low-resolution field from here only needs a fraction of
+ * the bytes of the full-resolution data, and decompressing it is cheap.
+ * 
+ * The store is a directory containing an <code>overviews.properties</code>
+ * file describing the native grid, the variables and the levels, and then one
+ * file per level, variable and time:
+ * 
+ * <pre>
+ * [level factor]/[variable]/[yyyy]/[yyyyMMddHHmmss].q16z
+ * </pre>
+ * 
+ * Each of these holds the values as signed 16-bit codes, where a code c
+ * represents offset + scale * c, and the offset and scale are chosen to cover
+ * the range of the field (which is precise to well under the 0.01 K of SST).
+ * The lowest code marks missing values. The codes are in row-major (y, x)
+ * order, and are split into
+ * chunks of rows which are deflated separately, so that they can be
+ * compressed and decompressed in parallel. Land compresses to almost nothing,
+ * so a field takes a small fraction of the size of the same field as floats.
+ * The layout is:
+ * 
+ * <pre>
+ * int       magic number
+ * int       version
+ * int       y size
+ * int       x size
+ * float     offset
+ * float     scale
+ * int       rows per chunk
+ * int       number of chunks (C)
+ * int[C]    compressed size of each chunk
+ * then the deflated chunks, each holding little-endian shorts
+ * </pre>
+ * 
+ * Stores are built with {@link OverviewStoreBuilder}.
+ * 
+ * @author Guy Griffiths
+ */
+public class OverviewStore {
+    static final String METADATA_FILE = "overviews.properties";
+    /** The format of the field files, as recorded in the metadata */
+    private static final String FORMAT = "q16z";
+    private static final int MAGIC = 0x4f565131;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int ROWS_PER_CHUNK = 64;
+    /** The code for missing values */
+    private static final short MISSING = Short.MIN_VALUE;
+    /** The largest magnitude of a code for a value */
+    private static final int MAX_CODE = Short.MAX_VALUE;
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern(
+            "yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
+
+    private final File root;
+    private final RegularGrid nativeGrid;
+    private final List<String> variables;
+    /** The block sizes of each level, in increasing order */
+    private final int[] factors;
+    private final RegularGrid[] levelGrids;
+
+    /**
+     * Opens an existing overview store
+     * 
+     * @param path
+     *            The directory containing the store
+     * @throws IOException
+     *             If the store metadata cannot be read
+     */
+    public static OverviewStore open(String path) throws IOException {
+        File root = new File(path);
+        Properties metadata = new Properties();
+        try (FileReader reader = new FileReader(new File(root, METADATA_FILE))) {
+            metadata.load(reader);
+        }
+        if (!FORMAT.equals(metadata.getProperty("format"))) {
+            throw new IOException("The overview store in " + root
+                    + " uses an old format.  It must be rebuilt with OverviewStoreBuilder");
+        }
+        try {
+            RegularGrid nativeGrid = new RegularGridImpl(new RegularAxisImpl("longitude",
+                    Double.parseDouble(metadata.getProperty("xFirst")),
+                    Double.parseDouble(metadata.getProperty("xSpacing")),
+                    Integer.parseInt(metadata.getProperty("xSize")), true), new RegularAxisImpl(
+                    "latitude", Double.parseDouble(metadata.getProperty("yFirst")),
+                    Double.parseDouble(metadata.getProperty("ySpacing")),
+                    Integer.parseInt(metadata.getProperty("ySize")), false),
+                    DefaultGeographicCRS.WGS84);
+            List<String> variables = Arrays.asList(metadata.getProperty("variables").split(","));
+            String[] factorStrs = metadata.getProperty("factors").split(",");
+            int[] factors = new int[factorStrs.length];
+            for (int i = 0; i < factors.length; i++) {
+                factors[i] = Integer.parseInt(factorStrs[i].trim());
+            }
+            return new OverviewStore(root, nativeGrid, variables, factors);
+        } catch (NullPointerException | NumberFormatException e) {
+            throw new IOException("Invalid overview store metadata in " + root, e);
+        }
+    }
+
+    /**
+     * Creates a new, empty overview store, writing its metadata
+     * 
+     * @param path
+     *            The directory to create the store in
+     * @param nativeGrid
+     *            The native grid of the data
+     * @param variables
+     *            The variables which will be stored
+     * @param factors
+     *            The block sizes of the levels. These must all divide the
+     *            native grid size exactly
+     * @throws IOException
+     *             If the store metadata cannot be written
+     */
+    public static OverviewStore create(String path, RegularGrid nativeGrid,
+            List<String> variables, int[] factors) throws IOException {
+        File root = new File(path);
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create overview store directory " + root);
+        }
+        RegularAxis xAxis = nativeGrid.getXAxis();
+        RegularAxis yAxis = nativeGrid.getYAxis();
+        Properties metadata = new Properties();
+        metadata.setProperty("format", FORMAT);
+        metadata.setProperty("xFirst", xAxis.getCoordinateValue(0).toString());
+        metadata.setProperty("xSpacing", Double.toString(xAxis.getCoordinateSpacing()));
+        metadata.setProperty("xSize", Integer.toString(xAxis.size()));
+        metadata.setProperty("yFirst", yAxis.getCoordinateValue(0).toString());
+        metadata.setProperty("ySpacing", Double.toString(yAxis.getCoordinateSpacing()));
+        metadata.setProperty("ySize", Integer.toString(yAxis.size()));
+        StringBuilder vars = new StringBuilder();
+        for (String var : variables) {
+            vars.append(vars.length() > 0 ? "," : "").append(var);
+        }
+        metadata.setProperty("variables", vars.toString());
+        int[] sortedFactors = factors.clone();
+        Arrays.sort(sortedFactors);
+        StringBuilder factorStr = new StringBuilder();
+        for (int factor : sortedFactors) {
+            factorStr.append(factorStr.length() > 0 ? "," : "").append(factor);
+        }
+        metadata.setProperty("factors", factorStr.toString());
+        try (FileWriter writer = new FileWriter(new File(root, METADATA_FILE))) {
+            metadata.store(writer, "Overview store");
+        }
+        return new OverviewStore(root, nativeGrid, variables, sortedFactors);
+    }
+
+    private OverviewStore(File root, RegularGrid nativeGrid, List<String> variables,
+            int[] factors) {
+        this.root = root;
+        this.nativeGrid = nativeGrid;
+        this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+        this.factors = factors;
+        levelGrids = new RegularGrid[factors.length];
+        for (int l = 0; l < factors.length; l++) {
+            levelGrids[l] = getLevelGrid(nativeGrid, factors[l]);
+        }
+    }
+
+    /**
+     * Gets the grid obtained by averaging blocks of a given size of a native
+     * grid. The cell centres are in the middle of each block
+     */
+    static RegularGrid getLevelGrid(RegularGrid nativeGrid, int factor) {
+        RegularAxis xAxis = nativeGrid.getXAxis();
+        RegularAxis yAxis = nativeGrid.getYAxis();
+        double xSpacing = xAxis.getCoordinateSpacing();
+        double ySpacing = yAxis.getCoordinateSpacing();
+        return new RegularGridImpl(new RegularAxisImpl(xAxis.getName(),
+                xAxis.getCoordinateValue(0) + xSpacing * (factor - 1) / 2.0, xSpacing * factor,
+                xAxis.size() / factor, true), new RegularAxisImpl(yAxis.getName(),
+                yAxis.getCoordinateValue(0) + ySpacing * (factor - 1) / 2.0, ySpacing * factor,
+                yAxis.size() / factor, false), nativeGrid.getCoordinateReferenceSystem());
+    }
+
+    public RegularGrid getNativeGrid() {
+        return nativeGrid;
+    }
+
+    public List<String> getVariables() {
+        return variables;
+    }
+
+    public int getNumLevels() {
+        return factors.length;
+    }
+
+    public int getFactor(int level) {
+        return factors[level];
+    }
+
+    public RegularGrid getLevelGrid(int level) {
+        return levelGrids[level];
+    }
+
+    /**
+     * Chooses the coarsest level which has at least the resolution of the
+     * target grid
+     * 
+     * @param targetGrid
+     *            The {@link RegularGrid} which data will be plotted on
+     * @return The index of the level, or -1 if no level is suitable (i.e. the
+     *         native data should be used)
+     */
+    public int chooseLevel(RegularGrid targetGrid) {
+        if (!GISUtils.isWgs84LonLat(targetGrid.getCoordinateReferenceSystem())) {
+            return -1;
+        }
+        double targetXSpacing = Math.abs(targetGrid.getXAxis().getCoordinateSpacing());
+        double targetYSpacing = Math.abs(targetGrid.getYAxis().getCoordinateSpacing());
+        for (int l = factors.length - 1; l >= 0; l--) {
+            RegularGrid levelGrid = levelGrids[l];
+            if (Math.abs(levelGrid.getXAxis().getCoordinateSpacing()) <= targetXSpacing * (1 + 1e-6)
+                    && Math.abs(levelGrid.getYAxis().getCoordinateSpacing()) <= targetYSpacing
+                            * (1 + 1e-6)) {
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    private File getFile(int level, String varId, DateTime time) {
+        String timeStr = TIME_FORMATTER.print(time);
+        return new File(root, factors[level] + File.separator + varId + File.separator
+                + timeStr.substring(0, 4) + File.separator + timeStr + ".q16z");
+    }
+
+    /**
+     * @return Whether the given field is in the store
+     */
+    public boolean contains(int level, String varId, DateTime time) {
+        return getFile(level, varId, time).isFile();
+    }
+
+    /**
+     * Reads a field from the store
+     * 
+     * @return The field on the grid returned by {@link #getLevelGrid(int)},
+     *         or <code>null</code> if it is not in the store
+     * @throws IOException
+     *             If there is a problem reading the field
+     */
+    public FloatArray2D read(int level, String varId, DateTime time) throws IOException {
+        final File file = getFile(level, varId, time);
+        if (!file.isFile()) {
+            return null;
+        }
+        RegularGrid grid = levelGrids[level];
+        final int xSize = grid.getXSize();
+        final int ySize = grid.getYSize();
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (data.remaining() < HEADER_SIZE || data.getInt() != MAGIC
+                || data.getInt() != VERSION || data.getInt() != ySize
+                || data.getInt() != xSize) {
+            throw new IOException("Overview file " + file + " is not valid for this store");
+        }
+        final float offset = data.getFloat();
+        final float scale = data.getFloat();
+        final int rowsPerChunk = data.getInt();
+        int nChunks = data.getInt();
+        if (rowsPerChunk <= 0 || nChunks != (ySize + rowsPerChunk - 1) / rowsPerChunk
+                || data.remaining() < 4L * nChunks) {
+            throw new IOException("Overview file " + file + " is corrupt");
+        }
+        final int[] chunkStarts = new int[nChunks + 1];
+        chunkStarts[0] = HEADER_SIZE + 4 * nChunks;
+        for (int c = 0; c < nChunks; c++) {
+            chunkStarts[c + 1] = chunkStarts[c] + data.getInt();
+        }
+        if (chunkStarts[nChunks] != data.capacity()) {
+            throw new IOException("Overview file " + file + " is corrupt");
+        }
+
+        final FloatArray2D values = new FloatArray2D(ySize, xSize);
+        final IOException[] error = new IOException[1];
+        ParallelUtils.forEachRange(nChunks, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                Inflater inflater = new Inflater();
+                try {
+                    for (int c = from; c < to; c++) {
+                        int firstRow = c * rowsPerChunk;
+                        int rows = Math.min(rowsPerChunk, ySize - firstRow);
+                        byte[] chunk = new byte[2 * rows * xSize];
+                        inflater.reset();
+                        inflater.setInput(data.array(), chunkStarts[c], chunkStarts[c + 1]
+                                - chunkStarts[c]);
+                        if (inflater.inflate(chunk) != chunk.length) {
+                            throw new DataFormatException("Chunk " + c + " is truncated");
+                        }
+                        ShortBuffer codes = ByteBuffer.wrap(chunk)
+                                .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+                        int start = firstRow * xSize;
+                        for (int i = 0; i < rows * xSize; i++) {
+                            short code = codes.get(i);
+                            if (code != MISSING) {
+                                values.setFloat(offset + scale * code, start + i);
+                            }
+                        }
+                    }
+                } catch (DataFormatException e) {
+                    synchronized (error) {
+                        if (error[0] == null) {
+                            error[0] = new IOException("Overview file " + file + " is corrupt",
+                                    e);
+                        }
+                    }
+                } finally {
+                    inflater.end();
+                }
+            }
+        });
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return values;
+    }
+
+    /**
+     * Writes a field into the store
+     * 
+     * @param values
+     *            The field, on the grid returned by {@link #getLevelGrid(int)}
+     * @throws IOException
+     *             If there is a problem writing the field
+     */
+    public void write(int level, String varId, DateTime time, final FloatArray2D values)
+            throws IOException {
+        File file = getFile(level, varId, time);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        final int xSize = values.getXSize();
+        final int ySize = values.getYSize();
+
+        /*
+         * Centre the codes on the middle of the range of the field
+         */
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < xSize * ySize; i++) {
+            float value = values.getFloat(i);
+            if (!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        float offset = 0f;
+        float scale = 1f;
+        if (min <= max) {
+            offset = (float) ((min + (double) max) / 2.0);
+            if (max > min) {
+                scale = (float) (((double) max - min) / (2.0 * MAX_CODE));
+            }
+        }
+        final float codeOffset = offset;
+        final float codeScale = scale;
+
+        int nChunks = (ySize + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK;
+        final byte[][] chunks = new byte[nChunks][];
+        ParallelUtils.forEachRange(nChunks, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                Deflater deflater = new Deflater();
+                try {
+                    for (int c = from; c < to; c++) {
+                        int firstRow = c * ROWS_PER_CHUNK;
+                        int rows = Math.min(ROWS_PER_CHUNK, ySize - firstRow);
+                        ByteBuffer raw = ByteBuffer.allocate(2 * rows * xSize).order(
+                                ByteOrder.LITTLE_ENDIAN);
+                        ShortBuffer codes = raw.asShortBuffer();
+                        int start = firstRow * xSize;
+                        for (int i = 0; i < rows * xSize; i++) {
+                            float value = values.getFloat(start + i);
+                            if (Float.isNaN(value)) {
+                                codes.put(i, MISSING);
+                            } else {
+                                long code = Math.round((value - codeOffset) / codeScale);
+                                codes.put(i, (short) Math.max(-MAX_CODE, Math.min(MAX_CODE,
+                                        code)));
+                            }
+                        }
+
+                        deflater.reset();
+                        deflater.setInput(raw.array());
+                        deflater.finish();
+                        byte[] buffer = new byte[1 << 16];
+                        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                        while (!deflater.finished()) {
+                            int n = deflater.deflate(buffer);
+                            compressed.write(buffer, 0, n);
+                        }
+                        chunks[c] = compressed.toByteArray();
+                    }
+                } finally {
+                    deflater.end();
+                }
+            }
+        });
+
+        File tempFile = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ySize);
+            out.writeInt(xSize);
+            out.writeFloat(offset);
+            out.writeFloat(scale);
+            out.writeInt(ROWS_PER_CHUNK);
+            out.writeInt(nChunks);
+            for (byte[] chunk : chunks) {
+                out.writeInt(chunk.length);
+            }
+            for (byte[] chunk : chunks) {
+                out.write(chunk);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
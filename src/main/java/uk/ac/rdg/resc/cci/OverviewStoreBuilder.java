@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+
+/**
+ * Builds an {@link OverviewStore} from a dataset. This only needs to be done
+ * once - after that, renderers which are given the store will read coarse
+ * fields from it rather than decompressing the full-resolution data.
+ * 
+ * Fields which are already in the store are skipped, so this can be re-run to
+ * add new data to an existing store.
+ * 
+ * @author Guy Griffiths
+ */
+public class OverviewStoreBuilder {
+    private static final Logger log = LoggerFactory.getLogger(OverviewStoreBuilder.class);
+
+    /** The number of output rows each parallel task averages */
+    private static final int ROW_CHUNK_SIZE = 8;
+
+    public static void main(String[] args) throws IOException, EdalException {
+        /*
+         * Load a properties file to determine what to build.
+         */
+        Properties properties = new Properties();
+        File propertiesFile = new File("overview_store.properties");
+        if (propertiesFile.exists()) {
+            properties.load(new FileReader(propertiesFile));
+        } else {
+            properties.load(OverviewStoreBuilder.class
+                    .getResourceAsStream("/overview_store.properties"));
+        }
+        /*
+         * Merge any properties specified on the command line
+         */
+        properties.putAll(System.getProperties());
+
+        String overviewPath = properties.getProperty("overviewPath");
+        String dataPath = properties.getProperty("dataPath");
+
+        if (overviewPath == null || dataPath == null) {
+            log.error("You must provide the path of the overview store and the path to the data");
+            System.exit(1);
+        }
+
+        String variablesStr = properties.getProperty("variables",
+                "analysed_sst,sea_ice_fraction");
+        String levelsStr = properties.getProperty("levels", "0.1,0.2,0.4,0.8");
+
+        IndexedFeatureCatalogue catalogue = new IndexedFeatureCatalogue(dataPath);
+        RegularGrid nativeGrid = catalogue.getNativeGrid();
+
+        List<String> variables = new ArrayList<>();
+        for (String var : variablesStr.split(",")) {
+            var = var.trim();
+            if (catalogue.getIndex().getVariables().contains(var)) {
+                variables.add(var);
+            } else {
+                log.warn("Variable " + var + " is not in the dataset.  Ignoring");
+            }
+        }
+
+        /*
+         * Convert the level resolutions into block sizes. Only levels which
+         * divide the native grid exactly can be used
+         */
+        double xSpacing = Math.abs(nativeGrid.getXAxis().getCoordinateSpacing());
+        double ySpacing = Math.abs(nativeGrid.getYAxis().getCoordinateSpacing());
+        List<Integer> factorList = new ArrayList<>();
+        for (String levelStr : levelsStr.split(",")) {
+            double resolution;
+            try {
+                resolution = Double.parseDouble(levelStr.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Cannot parse level " + levelStr + ".  Ignoring");
+                continue;
+            }
+            int factor = (int) Math.round(resolution / xSpacing);
+            if (factor < 2 || Math.abs(factor * xSpacing - resolution) > 1e-6 * resolution
+                    || Math.abs(factor * ySpacing - resolution) > 1e-6 * resolution
+                    || nativeGrid.getXSize() % factor != 0 || nativeGrid.getYSize() % factor != 0) {
+                log.warn("Level " + levelStr
+                        + " is not a whole multiple of the native grid.  Ignoring");
+                continue;
+            }
+            if (!factorList.contains(factor)) {
+                factorList.add(factor);
+            }
+        }
+        if (variables.isEmpty() || factorList.isEmpty()) {
+            log.error("No valid variables or levels to build");
+            System.exit(1);
+        }
+        int[] factors = new int[factorList.size()];
+        for (int i = 0; i < factors.length; i++) {
+            factors[i] = factorList.get(i);
+        }
+
+        OverviewStore store;
+        if (new File(overviewPath, OverviewStore.METADATA_FILE).exists()) {
+            store = OverviewStore.open(overviewPath);
+            if (!store.getNativeGrid().equals(nativeGrid)) {
+                log.error("The existing overview store at " + overviewPath
+                        + " was built from data on a different grid");
+                System.exit(1);
+            }
+            /*
+             * The variables and levels of an existing store are fixed, so
+             * anything else which has been asked for can't be built
+             */
+            List<String> missingVariables = new ArrayList<>(variables);
+            missingVariables.removeAll(store.getVariables());
+            List<Integer> storeFactors = new ArrayList<>();
+            for (int l = 0; l < store.getNumLevels(); l++) {
+                storeFactors.add(store.getFactor(l));
+            }
+            List<Integer> missingFactors = new ArrayList<>(factorList);
+            missingFactors.removeAll(storeFactors);
+            if (!missingVariables.isEmpty() || !missingFactors.isEmpty()) {
+                log.error("The existing overview store at " + overviewPath + " has variables "
+                        + store.getVariables() + " and block sizes " + storeFactors
+                        + ", which don't include the variables " + missingVariables
+                        + " or block sizes " + missingFactors
+                        + " requested.  Use a new overview store for these");
+                System.exit(1);
+            }
+            if (!factorList.containsAll(storeFactors)) {
+                log.warn("The existing overview store at " + overviewPath
+                        + " also has block sizes which weren't requested.  All of its levels ("
+                        + storeFactors + ") will be built");
+            }
+        } else {
+            store = OverviewStore.create(overviewPath, nativeGrid, variables, factors);
+        }
+
+        try {
+            for (DateTime time : catalogue.getTimeAxis().getCoordinateValues()) {
+                for (String var : variables) {
+                    if (!store.getVariables().contains(var)) {
+                        continue;
+                    }
+                    boolean allPresent = true;
+                    for (int l = 0; l < store.getNumLevels(); l++) {
+                        allPresent &= store.contains(l, var, time);
+                    }
+                    if (allPresent) {
+                        continue;
+                    }
+                    log.info("Building overviews of " + var + " for time " + time);
+                    FloatArray2D values = catalogue.readNativeField(var, time);
+                    for (int l = 0; l < store.getNumLevels(); l++) {
+                        if (!store.contains(l, var, time)) {
+                            store.write(l, var, time, average(values, store.getFactor(l)));
+                        }
+                    }
+                }
+            }
+        } finally {
+            catalogue.close();
+        }
+    }
+
+    /**
+     * Averages square blocks of a field, ignoring NaN values
+     * 
+     * @param values
+     *            The field to average
+     * @param factor
+     *            The size of each block. This must divide both dimensions of
+     *            the field exactly
+     * @return The averaged field
+     */
+    static FloatArray2D average(final FloatArray2D values, final int factor) {
+        final int xSize = values.getXSize();
+        final int outXSize = xSize / factor;
+        final FloatArray2D averaged = new FloatArray2D(values.getYSize() / factor, outXSize);
+        ParallelUtils.forEachRange(averaged.getYSize(), ROW_CHUNK_SIZE,
+                new ParallelUtils.RangeTask() {
+                    @Override
+                    public void process(int from, int to) {
+                        double[] sums = new double[outXSize];
+                        int[] counts = new int[outXSize];
+                        for (int j = from; j < to; j++) {
+                            Arrays.fill(sums, 0.0);
+                            Arrays.fill(counts, 0);
+                            for (int y = j * factor; y < (j + 1) * factor; y++) {
+                                int rowStart = y * xSize;
+                                for (int x = 0; x < xSize; x++) {
+                                    float value = values.getFloat(rowStart + x);
+                                    if (!Float.isNaN(value)) {
+                                        sums[x / factor] += value;
+                                        counts[x / factor]++;
+                                    }
+                                }
+                            }
+                            for (int i = 0; i < outXSize; i++) {
+                                if (counts[i] > 0) {
+                                    averaged.setFloat((float) (sums[i] / counts[i]), j, i);
+                                }
+                            }
+                        }
+                    }
+                });
+        return averaged;
+    }
+}
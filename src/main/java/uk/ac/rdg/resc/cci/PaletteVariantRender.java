@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.graphics.style.ColourScheme;
+import uk.ac.rdg.resc.edal.graphics.style.MapImage;
+import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Renders the same latitude-dependent SST frames (as {@link SSTRender} does)
+ * with several palettes and / or range multipliers, e.g. to compare colour
+ * schemes. Each frame is read and mapped to {@link LatitudeBins} once, and
+ * each variant is then just a colour lookup on the bins.
+ * 
+ * The bins (and the ice overlay) can be saved, so that new variants can later
+ * be rendered from them without reading the data again. The variants and
+ * options are given in the properties file (palette_variants.properties).
+ * 
+ * @author Guy Griffiths
+ */
+public class PaletteVariantRender {
+    private static final Logger log = LoggerFactory.getLogger(PaletteVariantRender.class);
+
+    /** The file describing a directory of saved bins */
+    private static final String BINS_METADATA_FILE = "bins.properties";
+
+    public static void main(String[] args) throws IOException, EdalException,
+            InterruptedException {
+        /*
+         * Load a properties file to determine what to plot.
+         */
+        Properties properties = RenderUtils.loadProperties("palette_variants.properties");
+
+        String outputPath = properties.getProperty("outputPath");
+        String variantsStr = properties.getProperty("variants");
+        String binsPath = properties.getProperty("binsPath");
+        boolean fromBins = Boolean.parseBoolean(properties.getProperty("fromBins", "false"));
+        String dataPath = properties.getProperty("dataPath");
+        if (outputPath == null || variantsStr == null || (fromBins ? binsPath == null
+                : dataPath == null)) {
+            log.error("You must provide at least the output path, a list of variants, and "
+                    + "either the path to the SST data or the path to some saved bins");
+            System.exit(1);
+        }
+        boolean includeDate = Boolean.parseBoolean(properties.getProperty("includeDate", "true"));
+
+        /*
+         * Set up the variants. Each one has a palette and a range multiplier
+         */
+        List<Variant> variants = new ArrayList<>();
+        float maxMultiplier = 0f;
+        for (String name : variantsStr.split(",")) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                Variant variant = new Variant(name, properties.getProperty("variant." + name
+                        + ".palette", "default"), Double.parseDouble(properties.getProperty(
+                        "variant." + name + ".rangeMultiplier", "1.0")), new File(outputPath,
+                        name));
+                maxMultiplier = Math.max(maxMultiplier, (float) variant.rangeMultiplier);
+                variants.add(variant);
+            }
+        }
+
+        Properties binsProperties = new Properties();
+        if (fromBins) {
+            /*
+             * The image size, bounding box and bin range are those the bins
+             * were calculated with
+             */
+            try (InputStream in = new FileInputStream(new File(binsPath, BINS_METADATA_FILE))) {
+                binsProperties.load(in);
+            }
+        } else {
+            binsProperties.setProperty("imageWidth", properties.getProperty("imageWidth", "1920"));
+            binsProperties.setProperty("imageHeight", properties.getProperty("imageHeight", "960"));
+            binsProperties.setProperty("lonMin", properties.getProperty("lonMin", "-180"));
+            binsProperties.setProperty("latMin", properties.getProperty("latMin", "-90"));
+            binsProperties.setProperty("lonMax", properties.getProperty("lonMax", "180"));
+            binsProperties.setProperty("latMax", properties.getProperty("latMax", "90"));
+            /*
+             * By default, the bins only just cover the widest variant
+             */
+            binsProperties.setProperty("binRange", properties.getProperty("binRange",
+                    Float.toString(maxMultiplier / 2)));
+        }
+        int width = Integer.parseInt(binsProperties.getProperty("imageWidth"));
+        int height = Integer.parseInt(binsProperties.getProperty("imageHeight"));
+        double lonMin = Double.parseDouble(binsProperties.getProperty("lonMin"));
+        double latMin = Double.parseDouble(binsProperties.getProperty("latMin"));
+        double lonMax = Double.parseDouble(binsProperties.getProperty("lonMax"));
+        double latMax = Double.parseDouble(binsProperties.getProperty("latMax"));
+        float binRange = Float.parseFloat(binsProperties.getProperty("binRange"));
+        if (maxMultiplier > 2 * binRange) {
+            log.warn("The bins only cover a range multiplier of " + 2 * binRange
+                    + ".  Variants with larger multipliers will saturate at the ends of the scale");
+        }
+
+        for (Variant variant : variants) {
+            variant.lut = LatitudeBins.buildLut(variant.palette, variant.rangeMultiplier,
+                    binRange);
+            if (!variant.outputDir.exists() && !variant.outputDir.mkdirs()) {
+                throw new IOException("Cannot create output directory " + variant.outputDir);
+            }
+        }
+
+        BufferedImage background = RenderUtils.getBackground(lonMin, latMin, lonMax, latMax);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(variants.size(),
+                ParallelUtils.getParallelism()));
+        try {
+            if (fromBins) {
+                /*
+                 * Re-render each set of saved bins
+                 */
+                File[] binFiles = new File(binsPath).listFiles();
+                Arrays.sort(binFiles);
+                for (File binFile : binFiles) {
+                    String fileName = binFile.getName();
+                    if (!fileName.startsWith("bins-") || !fileName.endsWith(".png")) {
+                        continue;
+                    }
+                    String timeStr = fileName.substring(5, fileName.length() - 4);
+                    DateTime time = TimeUtils.iso8601ToDateTime(timeStr,
+                            ISOChronology.getInstanceUTC());
+                    log.info("Generating frames for time " + time);
+                    byte[] bins = (byte[]) ImageIO.read(binFile).getRaster()
+                            .getDataElements(0, 0, width, height, null);
+                    File iceFile = new File(binsPath, "ice-" + timeStr + ".png");
+                    BufferedImage iceImage = iceFile.exists() ? ImageIO.read(iceFile) : null;
+                    renderVariants(executor, variants, bins, width, height, background,
+                            iceImage, time, includeDate);
+                }
+            } else {
+                renderFromData(properties, binsProperties, executor, variants, width, height,
+                        lonMin, latMin, lonMax, latMax, binRange, background, includeDate);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        for (Variant variant : variants) {
+            log.info("Finished writing frames for " + variant.name
+                    + ".  Now run:\nffmpeg -r 25 -pattern_type glob  -i '" + variant.outputDir
+                    + "/frame-*.png' -c:v libx264 -pix_fmt yuv420p output.mp4");
+        }
+    }
+
+    /**
+     * Reads each frame from the data, calculates its bins, renders all of the
+     * variants and optionally saves the bins
+     */
+    private static void renderFromData(Properties properties, Properties binsProperties,
+            ExecutorService executor, List<Variant> variants, int width, int height,
+            double lonMin, double latMin, double lonMax, double latMax, float binRange,
+            BufferedImage background, boolean includeDate) throws IOException, EdalException,
+            InterruptedException {
+        String dataPath = properties.getProperty("dataPath");
+        String sstVar = properties.getProperty("sstVar", "analysed_sst");
+        String iceVar = properties.getProperty("iceVar", "sea_ice_fraction");
+        boolean includeIce = Boolean.parseBoolean(properties.getProperty("includeIce", "true"));
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
+        boolean saveBins = Boolean.parseBoolean(properties.getProperty("saveBins", "false"));
+        String binsPath = properties.getProperty("binsPath");
+        int smoothingSpan = Integer.parseInt(properties.getProperty("smoothingSpan", "1"));
+
+        File binsDir = null;
+        if (saveBins) {
+            if (binsPath == null) {
+                log.error("You must provide binsPath to save the bins");
+                System.exit(1);
+            }
+            binsDir = new File(binsPath);
+            if (!binsDir.exists() && !binsDir.mkdirs()) {
+                throw new IOException("Cannot create bins directory " + binsDir);
+            }
+            try (OutputStream out = new FileOutputStream(new File(binsDir, BINS_METADATA_FILE))) {
+                binsProperties.store(out, "Latitude-relative SST bins");
+            }
+        }
+
+        /*
+         * As in SSTRender, the image grid is also the averaging grid
+         */
+        RegularGrid imageGrid = new RegularGridImpl(lonMin, latMin, lonMax, latMax,
+                DefaultGeographicCRS.WGS84, width, height);
+        LatitudeDependentSST latitudeDependentSST = new LatitudeDependentSST(dataPath, sstVar,
+                imageGrid);
+        RenderUtils.configureCaches(latitudeDependentSST, properties);
+        TimeAxis timeAxis = latitudeDependentSST.getTimeAxis();
+
+        int[] frameRange = RenderUtils.getFrameRange(properties, timeAxis);
+        int firstFrame = frameRange[0];
+        int lastFrame = frameRange[1];
+        if (includeIce && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
+        }
+
+        List<DateTime> useInAverage = RenderUtils.getAverageTimes(properties, timeAxis);
+        /*
+         * With a multiplier of 1, the scale range is the maximum SST range,
+         * which the bins are relative to. The variants' multipliers are
+         * applied by their lookup tables
+         */
+        latitudeDependentSST.generateSSTLayer(useInAverage, 1.0, smoothingSpan,
+                variants.get(0).palette);
+        float[] means = latitudeDependentSST.getMeans();
+        float maxRange = latitudeDependentSST.getScaleRange();
+        int[] latIndices = latitudeDependentSST.getLatitudeIndices(imageGrid);
+        OceanMask mask = latitudeDependentSST.getCatalogue().getOceanMask(sstVar, imageGrid);
+
+        MapImage iceMapImage = null;
+        if (includeIce) {
+            ColourScheme iceColourScheme = new SegmentColourScheme(new ScaleRange(0f, 1.0f, false),
+                    new Color(0, true), null, new Color(0, true), "#00ffffff,#ffffff", 100);
+            iceMapImage = new MapImage();
+            iceMapImage.getLayers().add(new RasterLayer(iceVar, iceColourScheme));
+        }
+
+        for (DateTime time : timeAxis.getCoordinateValues().subList(firstFrame, lastFrame + 1)) {
+            log.info("Generating frames for time " + time);
+            FloatArray2D sst = latitudeDependentSST.getCatalogue().readField(sstVar, time,
+                    imageGrid);
+            byte[] bins = LatitudeBins.computeBins(sst, latIndices, means, maxRange, binRange,
+                    mask);
+            BufferedImage iceImage = null;
+            if (iceMapImage != null) {
+                PlottingDomainParams params = new PlottingDomainParams(width, height,
+                        imageGrid.getBoundingBox(), null, null, null, null, time);
+                iceImage = iceMapImage.drawImage(params, latitudeDependentSST);
+            }
+            if (binsDir != null) {
+                String timeStr = TimeUtils.dateTimeToISO8601(time);
+                BufferedImage binImage = new BufferedImage(width, height,
+                        BufferedImage.TYPE_BYTE_GRAY);
+                binImage.getRaster().setDataElements(0, 0, width, height, bins);
+                ImageIO.write(binImage, "png", new File(binsDir, "bins-" + timeStr + ".png"));
+                if (iceImage != null) {
+                    ImageIO.write(iceImage, "png", new File(binsDir, "ice-" + timeStr + ".png"));
+                }
+            }
+            renderVariants(executor, variants, bins, width, height, background, iceImage,
+                    time, includeDate);
+        }
+    }
+
+    /**
+     * Renders and writes one frame of each variant in parallel
+     */
+    private static void renderVariants(ExecutorService executor, List<Variant> variants,
+            final byte[] bins, final int width, final int height, final BufferedImage background,
+            final BufferedImage iceImage, final DateTime time, final boolean includeDate)
+            throws IOException, InterruptedException {
+        List<Future<Void>> results = new ArrayList<>();
+        for (final Variant variant : variants) {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    variant.render(bins, width, height, background, iceImage, time, includeDate);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * A palette / range multiplier combination, and where to write its frames
+     */
+    private static class Variant {
+        private final String name;
+        private final String palette;
+        private final double rangeMultiplier;
+        private final File outputDir;
+        private final DateTimeFormatter dateFormatter = (new DateTimeFormatterBuilder())
+                .appendDayOfMonth(2).appendLiteral("-").appendMonthOfYear(2).appendLiteral("-")
+                .appendYear(4, 4).toFormatter();
+        private int[] lut;
+        private Font font = null;
+
+        public Variant(String name, String palette, double rangeMultiplier, File outputDir) {
+            this.name = name;
+            this.palette = palette;
+            this.rangeMultiplier = rangeMultiplier;
+            this.outputDir = outputDir;
+        }
+
+        public void render(byte[] bins, int width, int height, BufferedImage background,
+                BufferedImage iceImage, DateTime time, boolean includeDate) throws IOException {
+            BufferedImage sstImage = new BufferedImage(width, height,
+                    BufferedImage.TYPE_INT_ARGB);
+            LatitudeBins.applyLut(bins, lut,
+                    ((DataBufferInt) sstImage.getRaster().getDataBuffer()).getData());
+
+            BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = frame.createGraphics();
+            g.setColor(Color.black);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(background, 0, 0, width, height, null);
+            g.drawImage(sstImage, 0, 0, null);
+            if (iceImage != null) {
+                g.drawImage(iceImage, 0, 0, null);
+            }
+            if (includeDate) {
+                if (font == null) {
+                    font = RenderUtils.getDateFont(height);
+                }
+                g.setFont(font);
+                g.drawString(dateFormatter.print(time), (int) (width * 0.4), height - 10);
+            }
+            g.dispose();
+            ImageIO.write(frame, "png",
+                    new File(outputDir, "frame-" + TimeUtils.dateTimeToISO8601(time) + ".png"));
+        }
+    }
+}
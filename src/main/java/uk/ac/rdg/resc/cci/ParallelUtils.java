@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+package uk.ac.rdg.resc.cci;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Utility methods for splitting loops over indices into chunks which get
+ * processed on a shared {@link ForkJoinPool}
+ * 
+ * @author Guy Griffiths
+ */
+public final class ParallelUtils {
+    private static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private ParallelUtils() {
+    }
+
+    /**
+     * A task which processes a contiguous range of indices
+     */
+    public interface RangeTask {
+        /**
+         * Process the indices in the given range
+         * 
+         * @param from
+         *            The first index to process (inclusive)
+         * @param to
+         *            The last index to process (exclusive)
+         */
+        public void process(int from, int to);
+    }
+
+    /**
+     * Processes the indices 0 to size-1 in parallel, in chunks of at most the
+     * given size. This method returns once all chunks have been processed.
+     * 
+     * @param size
+     *            The total number of indices to process
+     * @param chunkSize
+     *            The maximum number of indices to process in a single task
+     * @param task
+     *            The {@link RangeTask} to process each chunk with
+     */
+    public static void forEachRange(int size, int chunkSize, RangeTask task) {
+        if (size <= 0) {
+            return;
+        }
+        if (size <= chunkSize) {
+            task.process(0, size);
+            return;
+        }
+        RangeAction action = new RangeAction(task, 0, size, Math.max(1, chunkSize));
+        if (ForkJoinTask.inForkJoinPool()) {
+            /*
+             * Already running in a pool (i.e. this is a nested call), so just
+             * fork the work from this thread
+             */
+            action.invoke();
+        } else {
+            POOL.invoke(action);
+        }
+    }
+
+    /**
+     * @return The number of threads used for parallel processing
+     */
+    public static int getParallelism() {
+        return POOL.getParallelism();
+    }
+
+    private static class RangeAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final RangeTask task;
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+
+        public RangeAction(RangeTask task, int from, int to, int chunkSize) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                task.process(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeAction(task, from, mid, chunkSize), new RangeAction(task, mid,
+                        to, chunkSize));
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import org.geotoolkit.referencing.CRS;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+import org.opengis.util.FactoryException;
+
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Maps arrays of positions in a given {@link CoordinateReferenceSystem} onto
+ * the pixels of an image defined by a {@link RegularGrid}.
+ * 
+ * When the positions are in the same CRS as the image, this is an affine
+ * mapping and each co-ordinate is converted with a single multiply-add.
+ * Otherwise, whole arrays of positions are converted to the image CRS with a
+ * single {@link MathTransform} call per chunk, and the chunks are processed in
+ * parallel.
+ * 
+ * Each position is rounded to the index of the nearest pixel centre, without
+ * being limited to the image, and the y-index is flipped so that 0 is the top
+ * row of the image. If the x-axis of the image wraps (i.e. it is a global
+ * longitude axis), x co-ordinates are first moved to the equivalent longitude
+ * nearest the centre of the axis. This is the same as using
+ * {@link GISUtils#transformPosition} followed by
+ * {@link RegularAxis#findIndexOfUnconstrained(Double)} on each position,
+ * except on longitude axes which do not wrap: EDAL moves positions into the
+ * range of those too, but they are mapped here as they are.
+ * 
+ * @author Guy Griffiths
+ */
+public class PixelMapper {
+    /** The value used for pixel co-ordinates of positions which can't be mapped */
+    public static final int INVALID = Integer.MIN_VALUE;
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final int height;
+    private final double x0;
+    private final double xSpacing;
+    private final double y0;
+    private final double ySpacing;
+    /** The centre of the x-axis, if it is a wrapping longitude axis */
+    private final double xCentre;
+    private final boolean xWraps;
+    /** The transform to the image CRS, or <code>null</code> if none is needed */
+    private final MathTransform transform;
+
+    /**
+     * Create a new {@link PixelMapper}
+     * 
+     * @param sourceCrs
+     *            The {@link CoordinateReferenceSystem} of the positions which
+     *            will be mapped
+     * @param imageGrid
+     *            The {@link RegularGrid} of the image
+     */
+    public PixelMapper(CoordinateReferenceSystem sourceCrs, RegularGrid imageGrid) {
+        RegularAxis xAxis = imageGrid.getXAxis();
+        RegularAxis yAxis = imageGrid.getYAxis();
+        height = imageGrid.getYSize();
+        x0 = xAxis.getCoordinateValue(0);
+        xSpacing = xAxis.getCoordinateSpacing();
+        y0 = yAxis.getCoordinateValue(0);
+        ySpacing = yAxis.getCoordinateSpacing();
+        xWraps = xAxis.wraps();
+        xCentre = (xAxis.getCoordinateExtent().getLow() + xAxis.getCoordinateExtent()
+                .getHigh()) / 2.0;
+
+        CoordinateReferenceSystem imageCrs = imageGrid.getCoordinateReferenceSystem();
+        if (GISUtils.crsMatch(sourceCrs, imageCrs)) {
+            transform = null;
+        } else {
+            try {
+                MathTransform mathTransform = CRS.findMathTransform(sourceCrs, imageCrs, true);
+                transform = mathTransform.isIdentity() ? null : mathTransform;
+            } catch (FactoryException e) {
+                throw new IllegalArgumentException("Cannot transform from " + sourceCrs.getName()
+                        + " to " + imageCrs.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if positions are mapped without a CRS
+     *         transformation
+     */
+    public boolean isAffine() {
+        return transform == null;
+    }
+
+    /**
+     * Maps positions to pixel co-ordinates. NaN positions, and positions which
+     * cannot be transformed into the image CRS, are mapped to {@link #INVALID}
+     * 
+     * @param xs
+     *            The x-components of the positions
+     * @param ys
+     *            The y-components of the positions
+     * @param n
+     *            The number of positions to map
+     * @param pixelXs
+     *            An array to put the x-pixel co-ordinates in
+     * @param pixelYs
+     *            An array to put the y-pixel co-ordinates in (0 is the top of
+     *            the image)
+     */
+    public void map(final double[] xs, final double[] ys, int n, final int[] pixelXs,
+            final int[] pixelYs) {
+        ParallelUtils.forEachRange(n, CHUNK_SIZE, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                if (transform == null) {
+                    for (int i = from; i < to; i++) {
+                        setPixel(xs[i], ys[i], pixelXs, pixelYs, i);
+                    }
+                } else {
+                    /*
+                     * MathTransforms take interleaved co-ordinates
+                     */
+                    double[] coords = new double[2 * (to - from)];
+                    for (int i = from; i < to; i++) {
+                        coords[2 * (i - from)] = xs[i];
+                        coords[2 * (i - from) + 1] = ys[i];
+                    }
+                    double[] transformed = transformChunk(coords);
+                    for (int i = from; i < to; i++) {
+                        setPixel(transformed[2 * (i - from)], transformed[2 * (i - from) + 1],
+                                pixelXs, pixelYs, i);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Transforms a chunk of interleaved co-ordinates
+     * 
+     * @param coords
+     *            The co-ordinates to transform. These are left unchanged.
+     * @return The transformed co-ordinates, with NaNs for points which could
+     *         not be transformed
+     */
+    private double[] transformChunk(double[] coords) {
+        double[] transformed = new double[coords.length];
+        try {
+            transform.transform(coords, 0, transformed, 0, coords.length / 2);
+        } catch (TransformException e) {
+            /*
+             * At least one point failed. Fall back to transforming the points
+             * individually so that we only lose the ones which can't be
+             * transformed. The output may have been partly written before the
+             * failure, so this works from the untouched source co-ordinates.
+             */
+            double[] point = new double[2];
+            for (int i = 0; i < coords.length; i += 2) {
+                point[0] = coords[i];
+                point[1] = coords[i + 1];
+                try {
+                    transform.transform(point, 0, point, 0, 1);
+                    transformed[i] = point[0];
+                    transformed[i + 1] = point[1];
+                } catch (TransformException pointException) {
+                    transformed[i] = Double.NaN;
+                    transformed[i + 1] = Double.NaN;
+                }
+            }
+        }
+        return transformed;
+    }
+
+    private void setPixel(double x, double y, int[] pixelXs, int[] pixelYs, int i) {
+        if (Double.isNaN(x) || Double.isNaN(y) || Double.isInfinite(x) || Double.isInfinite(y)) {
+            pixelXs[i] = INVALID;
+            pixelYs[i] = INVALID;
+            return;
+        }
+        if (xWraps) {
+            x = GISUtils.getNearestEquivalentLongitude(xCentre, x);
+        }
+        pixelXs[i] = (int) Math.round((x - x0) / xSpacing);
+        pixelYs[i] = height - 1 - (int) Math.round((y - y0) / ySpacing);
+    }
+}
@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import uk.ac.rdg.resc.edal.util.Array2D;
+
+/**
+ * An {@link Array2D} which stores its values as 16-bit fixed point numbers,
+ * i.e. value = offset + scale * code. The offset and scale are chosen per
+ * array to cover the range of its values, and one code is reserved for
+ * missing values. For SST this gives a precision well below the 0.01 K of the
+ * data, in half the memory of a float array.
+ * 
+ * The codes can be held either in a heap array or in an off-heap (direct)
+ * {@link ByteBuffer}, which keeps large caches of fields out of the Java heap.
+ * 
+ * Code which needs to loop over large numbers of values should use
+ * {@link #getFloat(int)} to avoid boxing.
+ * 
+ * @author Guy Griffiths
+ */
+public class QuantisedArray2D extends Array2D<Number> {
+    private static final long serialVersionUID = 1L;
+
+    /** The code used for missing values */
+    public static final short MISSING = Short.MIN_VALUE;
+    private static final int MAX_CODE = Short.MAX_VALUE;
+
+    private final float offset;
+    private final float scale;
+    private final transient ShortBuffer codes;
+
+    /**
+     * Creates a new {@link QuantisedArray2D} with all values missing
+     * 
+     * @param ySize
+     *            The y size of the array
+     * @param xSize
+     *            The x size of the array
+     * @param offset
+     *            The value represented by a code of 0
+     * @param scale
+     *            The difference in value between consecutive codes
+     * @param offHeap
+     *            Whether to store the codes in a direct {@link ByteBuffer}
+     */
+    public QuantisedArray2D(int ySize, int xSize, float offset, float scale, boolean offHeap) {
+        super(ySize, xSize);
+        this.offset = offset;
+        this.scale = scale;
+        int size = ySize * xSize;
+        if (offHeap) {
+            codes = ByteBuffer.allocateDirect(2 * size).order(ByteOrder.nativeOrder())
+                    .asShortBuffer();
+        } else {
+            codes = ShortBuffer.wrap(new short[size]);
+        }
+        for (int i = 0; i < size; i++) {
+            codes.put(i, MISSING);
+        }
+    }
+
+    /**
+     * Creates a {@link QuantisedArray2D} holding the values of another
+     * {@link Array2D}, with an offset and scale covering their range
+     * 
+     * @param source
+     *            The values to quantise
+     * @param offHeap
+     *            Whether to store the codes in a direct {@link ByteBuffer}
+     * @return The quantised values
+     */
+    public static QuantisedArray2D quantise(Array2D<Number> source, boolean offHeap) {
+        int xSize = source.getXSize();
+        int ySize = source.getYSize();
+        int size = xSize * ySize;
+        float[] values = new float[size];
+        if (source instanceof FloatArray2D) {
+            FloatArray2D floatSource = (FloatArray2D) source;
+            for (int i = 0; i < size; i++) {
+                values[i] = floatSource.getFloat(i);
+            }
+        } else {
+            for (int j = 0; j < ySize; j++) {
+                for (int i = 0; i < xSize; i++) {
+                    Number value = source.get(j, i);
+                    values[j * xSize + i] = value == null ? Float.NaN : value.floatValue();
+                }
+            }
+        }
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float value : values) {
+            if (!Float.isNaN(value)) {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+        }
+        float offset = 0f;
+        float scale = 1f;
+        if (min <= max) {
+            offset = (float) ((min + (double) max) / 2.0);
+            if (max > min) {
+                scale = (float) (((double) max - min) / (2.0 * MAX_CODE));
+            }
+        }
+
+        QuantisedArray2D quantised = new QuantisedArray2D(ySize, xSize, offset, scale, offHeap);
+        for (int i = 0; i < size; i++) {
+            quantised.setFloat(values[i], i);
+        }
+        return quantised;
+    }
+
+    @Override
+    public Number get(int... coords) {
+        float value = getFloat(coords[Y_IND] * getXSize() + coords[X_IND]);
+        return Float.isNaN(value) ? null : value;
+    }
+
+    /**
+     * Sets a value. Values outside the range covered by this array's offset
+     * and scale are clamped to it.
+     */
+    @Override
+    public void set(Number value, int... coords) {
+        setFloat(value == null ? Float.NaN : value.floatValue(), coords[Y_IND] * getXSize()
+                + coords[X_IND]);
+    }
+
+    /**
+     * @return The value at the given row-major index (i.e. y * xSize + x), or
+     *         NaN if it is missing
+     */
+    public float getFloat(int index) {
+        short code = codes.get(index);
+        return code == MISSING ? Float.NaN : offset + scale * code;
+    }
+
+    public float getFloat(int y, int x) {
+        return getFloat(y * getXSize() + x);
+    }
+
+    public void setFloat(float value, int index) {
+        if (Float.isNaN(value)) {
+            codes.put(index, MISSING);
+        } else {
+            long code = Math.round((value - offset) / scale);
+            codes.put(index, (short) Math.max(-MAX_CODE, Math.min(MAX_CODE, code)));
+        }
+    }
+
+    public float getOffset() {
+        return offset;
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    /**
+     * @return Whether the values are stored off-heap
+     */
+    public boolean isOffHeap() {
+        return codes.isDirect();
+    }
+
+    /**
+     * @return The underlying buffer of codes. Changes to it will be reflected
+     *         in this array.
+     */
+    public ShortBuffer getBuffer() {
+        return codes.duplicate();
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A directory of decoded fields, stored as raw floats. Reading a field from
+ * here avoids decompressing it from the source NetCDF file again - the cache
+ * file is simply memory-mapped and wrapped in a {@link FloatArray2D}, with no
+ * copying.
+ * 
+ * Each field is stored in its own file, named after the variable, the source
+ * file and the time. Each file records the modification time and size of the
+ * source file it was read from, and is ignored (and deleted) if the source
+ * has since changed.
+ * 
+ * The total size of the cache is bounded. When a new field takes it over the
+ * limit, the least-recently-used fields are deleted.
+ * 
+ * The file format is (all values little-endian):
+ * 
+ * <pre>
+ * int          magic number (0x52415743, "RAWC")
+ * int          format version
+ * long         source file modification time
+ * long         source file size
+ * int          y size (Y)
+ * int          x size (X)
+ * float[Y][X]  values
+ * </pre>
+ * 
+ * @author Guy Griffiths
+ */
+public class RawFieldCache {
+    private static final Logger log = LoggerFactory.getLogger(RawFieldCache.class);
+
+    private static final int MAGIC = 0x52415743;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final String SUFFIX = ".f32";
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern(
+            "yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
+
+    private final File directory;
+    private final long maxBytes;
+    /** The total size of all cache files */
+    private long totalBytes = 0L;
+
+    /**
+     * @param directory
+     *            The directory to store the cache in. This will be created if
+     *            it doesn't exist
+     * @param maxBytes
+     *            The maximum total size of the cache
+     * @throws IOException
+     *             If the cache directory cannot be created
+     */
+    public RawFieldCache(File directory, long maxBytes) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        for (File file : listCacheFiles()) {
+            totalBytes += file.length();
+        }
+        evict();
+    }
+
+    private File getCacheFile(String varId, File source, DateTime time) {
+        return new File(directory, varId + "-"
+                + Integer.toHexString(source.getAbsolutePath().hashCode()) + "-"
+                + TIME_FORMATTER.print(time) + SUFFIX);
+    }
+
+    /**
+     * Reads a field from the cache
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param source
+     *            The file the field was originally read from
+     * @param time
+     *            The time of the field
+     * @param ySize
+     *            The expected y size of the field
+     * @param xSize
+     *            The expected x size of the field
+     * @return A {@link FloatArray2D} backed by the memory-mapped cache file,
+     *         or <code>null</code> if the field is not cached, or the cached
+     *         copy is out of date
+     */
+    public FloatArray2D get(String varId, File source, DateTime time, int ySize, int xSize) {
+        File file = getCacheFile(varId, source, time);
+        if (!file.isFile()) {
+            return null;
+        }
+        long expectedSize = HEADER_SIZE + 4L * xSize * ySize;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+                FileChannel channel = raf.getChannel()) {
+            if (channel.size() == expectedSize) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        expectedSize);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                if (buffer.getInt() == MAGIC && buffer.getInt() == VERSION
+                        && buffer.getLong() == source.lastModified()
+                        && buffer.getLong() == source.length() && buffer.getInt() == ySize
+                        && buffer.getInt() == xSize) {
+                    /*
+                     * Mark the file as recently used, for eviction purposes.
+                     * The source modification time is in the header, so we
+                     * are free to change this
+                     */
+                    file.setLastModified(System.currentTimeMillis());
+                    return new FloatArray2D(ySize, xSize, buffer.asFloatBuffer());
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Problem reading cached field " + file, e);
+        }
+        /*
+         * The cached field is stale or corrupt
+         */
+        remove(file);
+        return null;
+    }
+
+    /**
+     * Writes a field to the cache, evicting older fields if necessary
+     * 
+     * @param varId
+     *            The ID of the variable
+     * @param source
+     *            The file the field was read from
+     * @param time
+     *            The time of the field
+     * @param values
+     *            The values of the field
+     * @throws IOException
+     *             If there is a problem writing the field
+     */
+    public void put(String varId, File source, DateTime time, FloatArray2D values)
+            throws IOException {
+        File file = getCacheFile(varId, source, time);
+        int xSize = values.getXSize();
+        int ySize = values.getYSize();
+        long size = HEADER_SIZE + 4L * xSize * ySize;
+        if (size > maxBytes) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(source.lastModified());
+        buffer.putLong(source.length());
+        buffer.putInt(ySize);
+        buffer.putInt(xSize);
+        for (int i = 0; i < xSize * ySize; i++) {
+            buffer.putFloat(values.getFloat(i));
+        }
+        buffer.flip();
+
+        /*
+         * Write to a temporary file and then move it into place, so that a
+         * partially-written field is never read
+         */
+        File tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+                    FileChannel channel = raf.getChannel()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            synchronized (this) {
+                if (file.isFile()) {
+                    totalBytes -= file.length();
+                }
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                totalBytes += size;
+                evict();
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private synchronized void remove(File file) {
+        long length = file.length();
+        if (file.delete()) {
+            totalBytes -= length;
+        }
+    }
+
+    /**
+     * Deletes least-recently-used files until the cache is within its size
+     * limit
+     */
+    private synchronized void evict() {
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        List<File> files = listCacheFiles();
+        final long[] lastUsed = new long[files.size()];
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            lastUsed[i] = files.get(i).lastModified();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(lastUsed[i1], lastUsed[i2]);
+            }
+        });
+        for (int i = 0; i < order.length && totalBytes > maxBytes; i++) {
+            remove(files.get(order[i]));
+        }
+    }
+
+    private List<File> listCacheFiles() {
+        List<File> files = new ArrayList<>();
+        File[] contents = directory.listFiles();
+        if (contents != null) {
+            for (File file : contents) {
+                if (file.isFile() && file.getName().endsWith(SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,337 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.imageio.ImageIO;
+
+import org.joda.time.DateTime;
+import org.joda.time.chrono.ISOChronology;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.BadTimeFormatException;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Setup code shared by the programs which render latitude-dependent SST
+ * ({@link MultiViewRender}, {@link PaletteVariantRender},
+ * {@link TiledSSTRender}, {@link TilePyramidExport} etc.) - reading their
+ * properties, choosing the frames and averaging times, configuring caches,
+ * and drawing the background and date.
+ * 
+ * @author Guy Griffiths
+ */
+public final class RenderUtils {
+    private static final Logger log = LoggerFactory.getLogger(RenderUtils.class);
+
+    /** The smallest font size used for the date */
+    private static final int MIN_FONT_SIZE = 6;
+
+    private RenderUtils() {
+    }
+
+    /**
+     * Loads a properties file from the working directory, or from the
+     * classpath if it is not there, and merges in any properties specified on
+     * the command line
+     * 
+     * @param name
+     *            The name of the properties file
+     * @return The loaded {@link Properties}
+     * @throws IOException
+     *             If the file cannot be read
+     */
+    public static Properties loadProperties(String name) throws IOException {
+        Properties properties = new Properties();
+        File propertiesFile = new File(name);
+        if (propertiesFile.exists()) {
+            try (FileReader reader = new FileReader(propertiesFile)) {
+                properties.load(reader);
+            }
+        } else {
+            try (InputStream in = RenderUtils.class.getResourceAsStream("/" + name)) {
+                if (in == null) {
+                    throw new IOException("Cannot find " + name);
+                }
+                properties.load(in);
+            }
+        }
+        properties.putAll(System.getProperties());
+        return properties;
+    }
+
+    /**
+     * Parses a comma-separated list of integers, ignoring anything which is
+     * not an integer (including "*", meaning all)
+     */
+    public static List<Integer> parseIntegers(String str) {
+        List<Integer> values = new ArrayList<>();
+        for (String valueStr : str.split(",")) {
+            try {
+                values.add(Integer.parseInt(valueStr.trim()));
+            } catch (NumberFormatException e) {
+                /*
+                 * Ignore unparseable values
+                 */
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Parses a time index, given either as an integer or as a time string
+     * 
+     * @param timeStr
+     *            The index or time
+     * @param timeAxis
+     *            The {@link TimeAxis} to find times on
+     * @param defaultIndex
+     *            The index to return if the string is neither an integer nor
+     *            a time
+     * @return The index, or the index of the closest time on the axis
+     */
+    public static int parseTimeIndex(String timeStr, TimeAxis timeAxis, int defaultIndex) {
+        try {
+            return Integer.parseInt(timeStr);
+        } catch (NumberFormatException nfe) {
+            /*
+             * Not an integer. Maybe a time string
+             */
+            try {
+                DateTime time = TimeUtils.iso8601ToDateTime(timeStr, ISOChronology.getInstance());
+                return GISUtils.getIndexOfClosestTimeTo(time, timeAxis);
+            } catch (BadTimeFormatException btfe) {
+                /*
+                 * Not a time string. Use the default
+                 */
+                return defaultIndex;
+            }
+        }
+    }
+
+    /**
+     * Gets the range of frames to render from the "startData" and "endData"
+     * properties
+     * 
+     * @return The indices of the first and last frames
+     */
+    public static int[] getFrameRange(Properties properties, TimeAxis timeAxis) {
+        int firstFrame = 0;
+        int lastFrame = timeAxis.size() - 1;
+        String startStr = properties.getProperty("startData");
+        String endStr = properties.getProperty("endData");
+        if (startStr != null) {
+            firstFrame = parseTimeIndex(startStr, timeAxis, firstFrame);
+        }
+        if (endStr != null) {
+            lastFrame = parseTimeIndex(endStr, timeAxis, lastFrame);
+        }
+        return new int[] { firstFrame, lastFrame };
+    }
+
+    /**
+     * Picks the times to use in the latitude averaging, from the
+     * "yearsInAverage", "monthsInAverage" and "daysInAverage" properties
+     */
+    public static List<DateTime> getAverageTimes(Properties properties, TimeAxis timeAxis) {
+        List<Integer> averageYears = parseIntegers(properties.getProperty("yearsInAverage", ""));
+        List<Integer> averageMonths = parseIntegers(properties.getProperty("monthsInAverage",
+                ""));
+        List<Integer> averageDays = parseIntegers(properties.getProperty("daysInAverage", ""));
+        List<DateTime> useInAverage = new ArrayList<>();
+        for (DateTime time : timeAxis.getCoordinateValues()) {
+            if ((averageYears.size() == 0 || averageYears.contains(time.getYear()))
+                    && (averageMonths.size() == 0 || averageMonths.contains(time.getMonthOfYear()))
+                    && (averageDays.size() == 0 || averageDays.contains(time.getDayOfMonth()))) {
+                useInAverage.add(time);
+            }
+        }
+        return useInAverage;
+    }
+
+    /**
+     * @return The global grid to do the latitude averaging on, with the size
+     *         given by the "averagingWidth" and "averagingHeight" properties
+     *         (1440x720 by default)
+     */
+    public static RegularGrid getAveragingGrid(Properties properties) {
+        return new RegularGridImpl(BoundingBoxImpl.global(), Integer.parseInt(properties
+                .getProperty("averagingWidth", "1440")), Integer.parseInt(properties.getProperty(
+                "averagingHeight", "720")));
+    }
+
+    /**
+     * Sets up the overview store, raw field cache and cache quantisation of a
+     * {@link LatitudeDependentSST} from the "overviewPath", "rawCachePath",
+     * "rawCacheSize" (in GB) and "quantiseCache" properties
+     */
+    public static void configureCaches(LatitudeDependentSST latitudeDependentSST,
+            Properties properties) throws IOException {
+        String overviewPath = properties.getProperty("overviewPath");
+        if (overviewPath != null) {
+            latitudeDependentSST.setOverviewStore(OverviewStore.open(overviewPath));
+        }
+        String rawCachePath = properties.getProperty("rawCachePath");
+        if (rawCachePath != null) {
+            long rawCacheSize = 50L;
+            try {
+                rawCacheSize = Long.parseLong(properties.getProperty("rawCacheSize", "50"));
+            } catch (NumberFormatException e) {
+                /* Ignore - use default value if property isn't an integer */
+            }
+            latitudeDependentSST.setRawFieldCache(new RawFieldCache(new File(rawCachePath),
+                    rawCacheSize * 1024L * 1024L * 1024L));
+        }
+        String quantiseCacheStr = properties.getProperty("quantiseCache");
+        if (quantiseCacheStr != null) {
+            latitudeDependentSST.setQuantiseCache(Boolean.parseBoolean(quantiseCacheStr));
+        }
+    }
+
+    /**
+     * Sets the band of latitudes to read a variable in
+     * 
+     * @param latitudeDependentSST
+     *            The {@link LatitudeDependentSST} which reads the variable
+     * @param varId
+     *            The ID of the variable
+     * @param bandStr
+     *            Either "min,max" absolute latitudes, or "auto" to find the
+     *            band from the data in the frames being plotted
+     * @param firstFrame
+     *            The index of the first frame to plot
+     * @param lastFrame
+     *            The index of the last frame to plot
+     */
+    public static void configureLatitudeBand(LatitudeDependentSST latitudeDependentSST,
+            String varId, String bandStr, int firstFrame, int lastFrame)
+            throws DataReadingException, VariableNotFoundException {
+        LatitudeBand band = null;
+        if ("auto".equalsIgnoreCase(bandStr.trim())) {
+            /*
+             * Look at a sample of the frames - a dozen spread over the whole
+             * range catches the seasonal extremes without reading much data
+             */
+            List<DateTime> sampleTimes = new ArrayList<>();
+            int nSamples = Math.min(12, lastFrame - firstFrame + 1);
+            for (int s = 0; s < nSamples; s++) {
+                int frame = firstFrame + (int) ((long) s * (lastFrame - firstFrame) / Math.max(1,
+                        nSamples - 1));
+                sampleTimes.add(latitudeDependentSST.getTimeAxis().getCoordinateValue(frame));
+            }
+            band = latitudeDependentSST.learnLatitudeBand(varId, sampleTimes, 2.0);
+            if (band == null) {
+                /*
+                 * No non-zero values at all, so there's nothing to read
+                 */
+                band = new LatitudeBand(90.0, 90.0);
+            }
+        } else {
+            String[] limits = bandStr.split(",");
+            try {
+                band = new LatitudeBand(Double.parseDouble(limits[0].trim()),
+                        limits.length > 1 ? Double.parseDouble(limits[1].trim()) : 90.0);
+            } catch (NumberFormatException e) {
+                log.warn("Cannot parse latitude band " + bandStr + " for " + varId
+                        + ".  Reading all latitudes");
+                return;
+            }
+        }
+        log.info("Reading " + varId + " between " + band);
+        latitudeDependentSST.setLatitudeBand(varId, band);
+    }
+
+    /**
+     * @return The part of the blue marble image covering the given lat-lon
+     *         bounding box
+     */
+    public static BufferedImage getBackground(double lonMin, double latMin, double lonMax,
+            double latMax) throws IOException {
+        BufferedImage bluemarble = ImageIO.read(RenderUtils.class
+                .getResource("/bluemarble_bg.png"));
+        /*
+         * Tile the background image twice horizontally in case we want to span
+         * dateline
+         */
+        BufferedImage background = new BufferedImage(bluemarble.getWidth() * 2,
+                bluemarble.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = background.createGraphics();
+        g.drawImage(bluemarble, 0, 0, null);
+        g.drawImage(bluemarble, bluemarble.getWidth(), 0, null);
+        g.dispose();
+        int regionWidthPx = (int) (bluemarble.getWidth() * (lonMax - lonMin) / 360.0);
+        int regionHeightPx = (int) (bluemarble.getHeight() * (latMax - latMin) / 180.0);
+        int regionXOffset = (int) ((lonMin + 180.0) * bluemarble.getWidth() / 360.0);
+        int regionYOffset = (int) ((90.0 - latMax) * bluemarble.getHeight() / 180.0);
+        return background.getSubimage(regionXOffset, regionYOffset, regionWidthPx,
+                regionHeightPx);
+    }
+
+    /**
+     * Gets the font to draw the date in: the largest monospaced font which is
+     * at most a 15th of the image height (but at least font size 6)
+     * 
+     * @param imageHeight
+     *            The height of the image the date is drawn on
+     * @return The {@link Font}
+     */
+    public static Font getDateFont(int imageHeight) {
+        int targetFontHeight = imageHeight / 15;
+        Graphics2D g = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).createGraphics();
+        try {
+            int fontSize = MIN_FONT_SIZE;
+            while (g.getFontMetrics(new Font(Font.MONOSPACED, Font.PLAIN, fontSize + 1))
+                    .getHeight() <= targetFontHeight) {
+                fontSize++;
+            }
+            return new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -41,7 +41,6 @@ import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
 import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
-import uk.ac.rdg.resc.edal.util.ValuesArray2D;
 
 /**
  * A {@link FeatureCatalogue} which wraps an existing one and for a selected
@@ -57,9 +56,12 @@ public class RunningAverageDiffFeatureCatalogue implements FeatureCatalogue {
     private String varId;
     private FeatureCatalogue catalogue;
     private FixedSizeBuffer<Array2D<Number>> arraysHistory;
+    /** Whether to quantise previous values to 16 bits to save memory */
+    private boolean quantiseHistory;
     private int lastTimeIndex = -1;
     private Array2D<Number> lastArray = null;
     private TimeAxis tAxis;
+    private OceanMask mask;
 
     /**
      * Create a new {@link RunningAverageDiffFeatureCatalogue}
@@ -76,9 +78,62 @@ public class RunningAverageDiffFeatureCatalogue implements FeatureCatalogue {
      */
     public RunningAverageDiffFeatureCatalogue(String varId, int length,
             FeatureCatalogue originalDataFeatureCatalogue, TimeAxis tAxis) {
+        this(varId, length, originalDataFeatureCatalogue, tAxis, null);
+    }
+
+    /**
+     * Create a new {@link RunningAverageDiffFeatureCatalogue} which only
+     * calculates differences for the valid cells of a mask
+     * 
+     * @param varId
+     *            The variable to calculate the difference from the average for
+     * @param length
+     *            The number of timesteps to calculate the running average over
+     * @param originalDataFeatureCatalogue
+     *            The {@link FeatureCatalogue} to wrap
+     * @param tAxis
+     *            The {@link TimeAxis} of the variable. This is required to
+     *            calculate whether a new time value
+     * @param mask
+     *            An {@link OceanMask} of the cells of the feature grid which
+     *            can contain data. All other cells are treated as missing. If
+     *            this is <code>null</code>, all cells are used
+     */
+    public RunningAverageDiffFeatureCatalogue(String varId, int length,
+            FeatureCatalogue originalDataFeatureCatalogue, TimeAxis tAxis, OceanMask mask) {
+        this(varId, length, originalDataFeatureCatalogue, tAxis, mask, false);
+    }
+
+    /**
+     * Create a new {@link RunningAverageDiffFeatureCatalogue} which only
+     * calculates differences for the valid cells of a mask
+     * 
+     * @param varId
+     *            The variable to calculate the difference from the average for
+     * @param length
+     *            The number of timesteps to calculate the running average over
+     * @param originalDataFeatureCatalogue
+     *            The {@link FeatureCatalogue} to wrap
+     * @param tAxis
+     *            The {@link TimeAxis} of the variable. This is required to
+     *            calculate whether a new time value
+     * @param mask
+     *            An {@link OceanMask} of the cells of the feature grid which
+     *            can contain data. All other cells are treated as missing. If
+     *            this is <code>null</code>, all cells are used
+     * @param quantiseHistory
+     *            Whether to store the previous values as
+     *            {@link QuantisedArray2D}s (16 bits per value) rather than as
+     *            they are read
+     */
+    public RunningAverageDiffFeatureCatalogue(String varId, int length,
+            FeatureCatalogue originalDataFeatureCatalogue, TimeAxis tAxis, OceanMask mask,
+            boolean quantiseHistory) {
         this.varId = varId;
         this.catalogue = originalDataFeatureCatalogue;
         this.tAxis = tAxis;
+        this.mask = mask;
+        this.quantiseHistory = quantiseHistory;
         arraysHistory = new FixedSizeBuffer<>(length);
     }
 
@@ -113,37 +168,58 @@ public class RunningAverageDiffFeatureCatalogue implements FeatureCatalogue {
                     if (lastTimeIndex == timeIndex) {
                         diffValues = lastArray;
                     } else {
-                        diffValues = new ValuesArray2D(values.getYSize(), values.getXSize());
-                        for (int i = 0; i < values.getXSize(); i++) {
-                            for (int j = 0; j < values.getYSize(); j++) {
-                                Number value = values.get(j, i);
-                                if (value == null) {
-                                    diffValues.set(null, j, i);
-                                    continue;
-                                }
-                                if (Double.isNaN(value.doubleValue())) {
-                                    diffValues.set(null, j, i);
-                                    continue;
-                                }
-                                Double mean = 0.0;
-                                int count = 0;
-                                for (Array2D<Number> history : arraysHistory) {
-                                    if (history != null) {
-                                        Number avVal = history.get(j, i);
-                                        if (avVal != null && !Double.isNaN(avVal.doubleValue())) {
-                                            mean += avVal.doubleValue();
-                                            count++;
-                                        }
+                        int xSize = values.getXSize();
+                        int ySize = values.getYSize();
+                        /*
+                         * Cells are missing unless set below, so we only
+                         * need to visit the cells which can contain data
+                         */
+                        FloatArray2D diffArray = new FloatArray2D(ySize, xSize);
+                        int[] cells = null;
+                        int nCells = xSize * ySize;
+                        if (mask != null && mask.getXSize() == xSize
+                                && mask.getYSize() == ySize) {
+                            cells = mask.getValidIndices();
+                            nCells = cells.length;
+                        }
+                        for (int k = 0; k < nCells; k++) {
+                            int index = cells == null ? k : cells[k];
+                            int j = index / xSize;
+                            int i = index % xSize;
+                            Number value = values.get(j, i);
+                            if (value == null || Double.isNaN(value.doubleValue())) {
+                                continue;
+                            }
+                            double mean = 0.0;
+                            int count = 0;
+                            for (Array2D<Number> history : arraysHistory) {
+                                if (history instanceof QuantisedArray2D) {
+                                    /*
+                                     * Read quantised values without boxing
+                                     */
+                                    float avVal = ((QuantisedArray2D) history).getFloat(index);
+                                    if (!Float.isNaN(avVal)) {
+                                        mean += avVal;
+                                        count++;
+                                    }
+                                } else if (history != null) {
+                                    Number avVal = history.get(j, i);
+                                    if (avVal != null && !Double.isNaN(avVal.doubleValue())) {
+                                        mean += avVal.doubleValue();
+                                        count++;
                                     }
                                 }
-                                if (count > 0) {
-                                    diffValues.set(value.doubleValue() - (mean / count), j, i);
-                                } else {
-                                    diffValues.set(0.0, j, i);
-                                }
+                            }
+                            if (count > 0) {
+                                diffArray.setFloat((float) (value.doubleValue() - (mean / count)),
+                                        index);
+                            } else {
+                                diffArray.setFloat(0f, index);
                             }
                         }
-                        arraysHistory.add(values);
+                        diffValues = diffArray;
+                        arraysHistory.add(quantiseHistory ? QuantisedArray2D.quantise(values,
+                                false) : values);
 
                         lastTimeIndex = timeIndex;
                         lastArray = diffValues;
@@ -37,8 +37,6 @@ import javax.imageio.ImageIO;
 
 import org.joda.time.DateTime;
 
-import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
-import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
@@ -47,7 +45,6 @@ import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
 import uk.ac.rdg.resc.edal.graphics.style.sld.SLDException;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
-import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
@@ -67,13 +64,10 @@ public class SSTErrors {
             SLDException, InstantiationException {
         String outputPath = "/home/guy/speedtest";
 
-        CdmGridDatasetFactory df = new CdmGridDatasetFactory();
-        GriddedDataset ds = (GriddedDataset) df.createDataset("cci",
+        final IndexedFeatureCatalogue catalogue = new IndexedFeatureCatalogue(
                 "/home/guy/Data/cci-sst/2010/01/01/20100101120000-ESACCI-L4_GHRSST-SSTdepth-OSTIA-GLOB_LT-v02.0-fv01.0.nc");
-        final SimpleFeatureCatalogue<GriddedDataset> catalogue = new SimpleFeatureCatalogue<>(ds,
-                false);
 
-        TimeAxis timeAxis = catalogue.getDataset().getVariableMetadata(SST_VAR).getTemporalDomain();
+        TimeAxis timeAxis = catalogue.getTimeAxis();
 
         MapImage compositeImage = new MapImage();
 
@@ -118,6 +118,8 @@ public class SSTRender {
         String yearsStr = properties.getProperty("yearsInAverage", "");
         String monthsStr = properties.getProperty("monthsInAverage", "");
         String daysStr = properties.getProperty("daysInAverage", "");
+
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
         
         /*
          * Determine the size of the image to plot
@@ -216,12 +218,74 @@ public class SSTRender {
             includeDate = Boolean.parseBoolean(includeDateStr);
         }
 
+        String[] yearsStrs = yearsStr.split(",");
+        String[] monthsStrs = monthsStr.split(",");
+        String[] daysStrs = daysStr.split(",");
+
+        List<Integer> averageYears = new ArrayList<>();
+        List<Integer> averageMonths = new ArrayList<>();
+        List<Integer> averageDays = new ArrayList<>();
+
+        for (String yearStr : yearsStrs) {
+            try {
+                averageYears.add(Integer.parseInt(yearStr));
+            } catch (NumberFormatException e) {
+                /*
+                 * Ignore unparseable years
+                 */
+            }
+        }
+
+        for (String monthStr : monthsStrs) {
+            try {
+                averageMonths.add(Integer.parseInt(monthStr));
+            } catch (NumberFormatException e) {
+                /*
+                 * Ignore unparseable months
+                 */
+            }
+        }
+
+        for (String dayStr : daysStrs) {
+            try {
+                averageDays.add(Integer.parseInt(dayStr));
+            } catch (NumberFormatException e) {
+                /*
+                 * Ignore unparseable days
+                 */
+            }
+        }
+
+        /*
+         * Work out which times we need (the frames plus the times used in the
+         * averaging), so that files which only contain other times don't
+         * need to be opened at all.
+         * 
+         * If the frames are given as indices, we need the whole time axis to
+         * know which times they refer to. If no limits are placed on the
+         * averaging, all times are used. In either case, no files can be
+         * skipped
+         */
+        DatasetIndex.TimeFilter timeFilter = null;
+        DateTime frameStartTime = parseTime(startStr);
+        DateTime frameEndTime = parseTime(endStr);
+        boolean framesLimited = (startStr == null || frameStartTime != null)
+                && (endStr == null || frameEndTime != null)
+                && (frameStartTime != null || frameEndTime != null);
+        boolean averageLimited = !averageYears.isEmpty() || !averageMonths.isEmpty()
+                || !averageDays.isEmpty();
+        if (framesLimited && averageLimited) {
+            timeFilter = new RequiredTimes(frameStartTime, frameEndTime, averageYears,
+                    averageMonths, averageDays);
+        }
+
         /*
          * Create the image generator object, using the image size as the
          * sampling dimensions
          */
         LatitudeDependentSST latitudeDependentSST = new LatitudeDependentSST(dataPath, sstVar,
-                imageGrid);
+                imageGrid, timeFilter);
+        RenderUtils.configureCaches(latitudeDependentSST, properties);
 
         /*
          * Using the time axis of the dataset, select the indices we want to
@@ -272,43 +336,9 @@ public class SSTRender {
         if (icePlotStr != null) {
             includeIce = Boolean.parseBoolean(icePlotStr);
         }
-
-        String[] yearsStrs = yearsStr.split(",");
-        String[] monthsStrs = monthsStr.split(",");
-        String[] daysStrs = daysStr.split(",");
-
-        List<Integer> averageYears = new ArrayList<>();
-        List<Integer> averageMonths = new ArrayList<>();
-        List<Integer> averageDays = new ArrayList<>();
-
-        for (String yearStr : yearsStrs) {
-            try {
-                averageYears.add(Integer.parseInt(yearStr));
-            } catch (NumberFormatException e) {
-                /*
-                 * Ignore unparseable years
-                 */
-            }
-        }
-
-        for (String monthStr : monthsStrs) {
-            try {
-                averageMonths.add(Integer.parseInt(monthStr));
-            } catch (NumberFormatException e) {
-                /*
-                 * Ignore unparseable months
-                 */
-            }
-        }
-
-        for (String dayStr : daysStrs) {
-            try {
-                averageDays.add(Integer.parseInt(dayStr));
-            } catch (NumberFormatException e) {
-                /*
-                 * Ignore unparseable days
-                 */
-            }
+        if (includeIce && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
         }
 
         /*
@@ -326,28 +356,10 @@ public class SSTRender {
         /*
          * Read the background blue marble image
          */
-        BufferedImage bluemarble = ImageIO.read(SSTRender.class.getResource("/bluemarble_bg.png"));
-        /*
-         * Tile the background image twice horizontally in case we want to span
-         * dateline
-         */
-        BufferedImage background = new BufferedImage(bluemarble.getWidth() * 2,
-                bluemarble.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        background.createGraphics().drawImage(bluemarble, 0, 0, null);
-        background.createGraphics().drawImage(bluemarble, bluemarble.getWidth(), 0, null);
-        /*
-         * Now choose a subimage which corresponds to the plotted area
-         */
         Extent<Double> xExtent = imageGrid.getXAxis().getCoordinateExtent();
         Extent<Double> yExtent = imageGrid.getYAxis().getCoordinateExtent();
-        int regionWidthPx = (int) (bluemarble.getWidth() * (xExtent.getHigh() - xExtent.getLow())
-                / 360.0);
-        int regionHeightPx = (int) (bluemarble.getHeight() * (yExtent.getHigh() - yExtent.getLow())
-                / 180.0);
-        int regionXOffset = (int) ((xExtent.getLow() + 180.0) * bluemarble.getWidth() / 360.0);
-        int regionYOffset = (int) ((90.0 - yExtent.getHigh()) * bluemarble.getHeight() / 180.0);
-        background = background.getSubimage(regionXOffset, regionYOffset, regionWidthPx,
-                regionHeightPx);
+        BufferedImage background = RenderUtils.getBackground(xExtent.getLow(), yExtent.getLow(),
+                xExtent.getHigh(), yExtent.getHigh());
 
         /*
          * Generate the 2D latitude-dependent raster image layer (just
@@ -397,7 +409,7 @@ public class SSTRender {
          * Some constants
          */
         final int gap = width / 100;
-        final int targetFontHeight = height / 15;
+        final Font dateFont = RenderUtils.getDateFont(height);
         final int totalWidth = includeLegend ? width + legend.getWidth() + gap : width;
 
         /*
@@ -448,25 +460,12 @@ public class SSTRender {
             }
 
             if (includeDate) {
-                /*
-                 * Calculate a font which should take up at most
-                 * targetFontHeight vertically (but will be at least font size
-                 * 6)
-                 */
-                int fontSize = 6;
-                Font font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-                int fontHeight = 0;
-                while (fontHeight < targetFontHeight) {
-                    font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize++);
-                    fontHeight = g.getFontMetrics(font).getHeight();
-                }
-                font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize - 1);
-                g.setFont(font);
+                g.setFont(dateFont);
 
                 /*
                  * Draw the date/time on the map, somewhere in the antarctic
                  * (position found empirically, but works well for a
-                 * targetFontHeight of height/15)
+                 * font height of height/15)
                  */
                 g.drawString(dateFormatter.print(time), (int) (width * 0.4), height - 10);
             }
@@ -484,4 +483,78 @@ public class SSTRender {
                 + "/frame-*.png' -c:v libx264 -pix_fmt yuv420p output.mp4");
     }
 
+    /**
+     * Parses a time string
+     * 
+     * @return The {@link DateTime}, or <code>null</code> if the string is
+     *         <code>null</code>, an integer (i.e. a time index), or not a
+     *         valid time
+     */
+    private static DateTime parseTime(String timeStr) {
+        if (timeStr == null) {
+            return null;
+        }
+        try {
+            Integer.parseInt(timeStr);
+            return null;
+        } catch (NumberFormatException nfe) {
+            try {
+                return TimeUtils.iso8601ToDateTime(timeStr, ISOChronology.getInstance());
+            } catch (BadTimeFormatException btfe) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A {@link DatasetIndex.TimeFilter} which accepts times within the range
+     * of frames to plot, and times which will be used in the latitude
+     * averaging
+     */
+    private static class RequiredTimes implements DatasetIndex.TimeFilter {
+        private final long frameStart;
+        private final long frameEnd;
+        private final List<Integer> averageYears;
+        private final List<Integer> averageMonths;
+        private final List<Integer> averageDays;
+
+        public RequiredTimes(DateTime startTime, DateTime endTime, List<Integer> averageYears,
+                List<Integer> averageMonths, List<Integer> averageDays) {
+            /*
+             * The first and last frames are the times closest to those
+             * requested, which could be either side of them. Allow a day
+             * either side so that we find the same times as we would with
+             * the full time axis
+             */
+            frameStart = startTime == null ? Long.MIN_VALUE : startTime.minusDays(1).getMillis();
+            frameEnd = endTime == null ? Long.MAX_VALUE : endTime.plusDays(1).getMillis();
+            this.averageYears = averageYears;
+            this.averageMonths = averageMonths;
+            this.averageDays = averageDays;
+        }
+
+        @Override
+        public boolean accept(long start, long end) {
+            if (start <= frameEnd && end >= frameStart) {
+                return true;
+            }
+            /*
+             * Check each day in the range against the averaging criteria
+             */
+            DateTime time = new DateTime(start, ISOChronology.getInstanceUTC());
+            while (time.getMillis() <= end) {
+                if (usedInAverage(time)) {
+                    return true;
+                }
+                time = time.plusDays(1);
+            }
+            return usedInAverage(new DateTime(end, ISOChronology.getInstanceUTC()));
+        }
+
+        private boolean usedInAverage(DateTime time) {
+            return (averageYears.size() == 0 || averageYears.contains(time.getYear()))
+                    && (averageMonths.size() == 0 || averageMonths.contains(time.getMonthOfYear()))
+                    && (averageDays.size() == 0 || averageDays.contains(time.getDayOfMonth()));
+        }
+    }
 }
@@ -93,6 +93,7 @@ public class SSTRenderPolar {
 
         String sstVar = properties.getProperty("sstVar", "analysed_sst");
         String iceVar = properties.getProperty("iceVar");
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
 
         String yearsStr = properties.getProperty("yearsInAverage", "");
         String monthsStr = properties.getProperty("monthsInAverage", "");
@@ -178,6 +179,11 @@ public class SSTRenderPolar {
             }
         }
 
+        if (iceVar != null && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
+        }
+
         String[] yearsStrs = yearsStr.split(",");
         String[] monthsStrs = monthsStr.split(",");
         String[] daysStrs = daysStr.split(",");
@@ -273,7 +279,7 @@ public class SSTRenderPolar {
         /*
          * Some constants
          */
-        final int targetFontHeight = size / 15;
+        final Font dateFont = RenderUtils.getDateFont(size);
 
         /*
          * Loop over all frames to generate images
@@ -322,20 +328,7 @@ public class SSTRenderPolar {
 
             if (includeDate) {
                 g.setColor(Color.white);
-                /*
-                 * Calculate a font which should take up at most
-                 * targetFontHeight vertically (but will be at least font size
-                 * 6)
-                 */
-                int fontSize = 6;
-                Font font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-                int fontHeight = 0;
-                while (fontHeight < targetFontHeight) {
-                    font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize++);
-                    fontHeight = g.getFontMetrics(font).getHeight();
-                }
-                font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize - 1);
-                g.setFont(font);
+                g.setFont(dateFont);
 
                 /*
                  * Draw the date/time on the map, centrally. Found empirically
@@ -42,8 +42,6 @@ import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.DateTimeFormatterBuilder;
 
-import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
-import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.feature.MapFeature;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
@@ -53,7 +51,6 @@ import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
 import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
 import uk.ac.rdg.resc.edal.graphics.utils.FeatureCatalogue.FeaturesAndMemberName;
 import uk.ac.rdg.resc.edal.graphics.utils.PlottingDomainParams;
-import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
@@ -76,14 +73,11 @@ public class SSTTempWaves {
 
         String outputPath = "/home/guy/sst-flotsam";
         System.out.println("About to read DS");
-        CdmGridDatasetFactory df = new CdmGridDatasetFactory();
-        GriddedDataset ds = (GriddedDataset) df.createDataset("cci",
+        final IndexedFeatureCatalogue cciSst = new IndexedFeatureCatalogue(
                 "/home/guy/Data/cci-sst/**/**/**/*.nc");
-        final SimpleFeatureCatalogue<GriddedDataset> cciSst = new SimpleFeatureCatalogue<>(ds,
-                false);
 
         System.out.println("About to read time axis");
-        TimeAxis timeAxis = cciSst.getDataset().getVariableMetadata(SST_VAR).getTemporalDomain();
+        TimeAxis timeAxis = cciSst.getTimeAxis();
 
         MapImage compositeImage = new MapImage();
 //        RegularGrid imageGrid = new RegularGridImpl(new BoundingBoxImpl(-110, -7.5, -5, 45,
@@ -116,7 +110,7 @@ public class SSTTempWaves {
         DateTimeFormatter dateFormatter = (new DateTimeFormatterBuilder()).appendDayOfMonth(2)
                 .appendLiteral("-").appendMonthOfYear(2).appendLiteral("-").appendYear(4, 4)
                 .toFormatter();
-        Font font = null;
+        Font font = RenderUtils.getDateFont(HEIGHT);
 
         int startTimeIndex = 0;
         int endTimeIndex = timeAxis.size() - 1;
@@ -147,21 +141,6 @@ public class SSTTempWaves {
             BufferedImage flotsam = particlePlotter.plot();
             Graphics2D g = frame.createGraphics();
 
-            if (font == null) {
-                /*
-                 * Calculate a font which should take up at most
-                 * targetFontHeight vertically (but will be at least font size
-                 * 6)
-                 */
-                int fontSize = 6;
-                font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-                int fontHeight = 0;
-                while (fontHeight < HEIGHT / 15) {
-                    font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize++);
-                    fontHeight = g.getFontMetrics(font).getHeight();
-                }
-                font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize - 1);
-            }
             g.setFont(font);
 
             /*
@@ -175,25 +154,11 @@ public class SSTTempWaves {
              * Draw date
              */
             g.setColor(Color.black);
-            final int targetFontHeight = HEIGHT / 15;
-            /*
-             * Calculate a font which should take up at most targetFontHeight
-             * vertically (but will be at least font size 6)
-             */
-            int fontSize = 6;
-            font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-            int fontHeight = 0;
-            while (fontHeight < targetFontHeight) {
-                font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize++);
-                fontHeight = g.getFontMetrics(font).getHeight();
-            }
-            font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize - 1);
-            g.setFont(font);
 
             /*
              * Draw the date/time on the map, somewhere in the antarctic
-             * (position found empirically, but works well for a
-             * targetFontHeight of height/15)
+             * (position found empirically, but works well for a font
+             * height of height/15)
              */
             g.drawString(dateFormatter.print(time), (int) (WIDTH * 0.4), HEIGHT - 10);
 
@@ -35,7 +35,13 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.imageio.ImageIO;
 
@@ -49,7 +55,6 @@ import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
 import uk.ac.rdg.resc.edal.dataset.cdm.CdmGridDatasetFactory;
 import uk.ac.rdg.resc.edal.exceptions.EdalException;
 import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
-import uk.ac.rdg.resc.edal.feature.MapFeature;
 import uk.ac.rdg.resc.edal.geometry.BoundingBoxImpl;
 import uk.ac.rdg.resc.edal.graphics.style.MapImage;
 import uk.ac.rdg.resc.edal.graphics.style.RasterLayer;
@@ -62,7 +67,6 @@ import uk.ac.rdg.resc.edal.graphics.utils.SimpleFeatureCatalogue;
 import uk.ac.rdg.resc.edal.grid.RegularGrid;
 import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
 import uk.ac.rdg.resc.edal.grid.TimeAxis;
-import uk.ac.rdg.resc.edal.util.Array2D;
 import uk.ac.rdg.resc.edal.util.GISUtils;
 import uk.ac.rdg.resc.edal.util.GridCoordinates2D;
 
@@ -86,27 +90,51 @@ public class SSTWinds {
         String outputPath = "/home/guy/sst-wind";
 
         CdmGridDatasetFactory df = new CdmGridDatasetFactory();
-        GriddedDataset sstDs = (GriddedDataset) df.createDataset("cci",
-                "/home/guy/Data/cci-sst/**/**/**/*.nc");
         GriddedDataset windxDs = (GriddedDataset) df.createDataset("wind",
                 "/home/guy/Data/era_interim/U10.erai.19812013.nc");
         GriddedDataset windyDs = (GriddedDataset) df.createDataset("wind",
                 "/home/guy/Data/era_interim/V10.erai.19812013.nc");
 
-        final SimpleFeatureCatalogue<GriddedDataset> cciSst = new SimpleFeatureCatalogue<>(sstDs,
-                false);
+        final IndexedFeatureCatalogue cciSst = new IndexedFeatureCatalogue(
+                "/home/guy/Data/cci-sst/**/**/**/*.nc");
         final SimpleFeatureCatalogue<GriddedDataset> xWind = new SimpleFeatureCatalogue<>(windxDs,
                 false);
         final SimpleFeatureCatalogue<GriddedDataset> yWind = new SimpleFeatureCatalogue<>(windyDs,
                 false);
-        TimeAxis timeAxis = xWind.getDataset().getVariableMetadata(WIND_X_VAR).getTemporalDomain();
+        final TimeAxis timeAxis = xWind.getDataset().getVariableMetadata(WIND_X_VAR)
+                .getTemporalDomain();
 
-        IBTracsReader ibtracs = new IBTracsReader(
+        int startYear = Integer.getInteger("startYear", 1992);
+        int endYear = Integer.getInteger("endYear", 2010);
+        /*
+         * Each segment holds its own running average history and wind lines,
+         * so this limits the memory used as well as the number of threads
+         */
+        int maxConcurrentSegments = Integer.getInteger("maxConcurrentSegments", 2);
+        /*
+         * How the wind line trails are drawn - "history" or "accumulation"
+         */
+        final EvolvingWindPlotter.TrailMode trailMode = EvolvingWindPlotter.TrailMode
+                .valueOf(System.getProperty("trailMode", "history").trim().toUpperCase());
+        /*
+         * Whether the wind lines should be exactly the same on every run
+         */
+        final boolean deterministic = Boolean.getBoolean("deterministic");
+        /*
+         * Whether to hold the running average history as 16-bit values, which
+         * halves the memory each segment uses
+         */
+        final boolean quantiseHistory = Boolean.getBoolean("quantiseHistory");
+
+        /*
+         * The datasets and storm tracks are opened once, and shared between
+         * all segments
+         */
+        final IBTracsReader ibtracs = new IBTracsReader(
                 "/home/guy/Data/storm_tracks/Allstorms.ibtracs_all.v03r06.nc",
-                new DateTime(1992, 1, 1, 0, 0), new DateTime(2010, 12, 31, 23, 59));
+                new DateTime(startYear, 1, 1, 0, 0), new DateTime(endYear, 12, 31, 23, 59));
 
-        MapImage compositeImage = new MapImage();
-        RegularGrid imageGrid = new RegularGridImpl(
+        final RegularGrid imageGrid = new RegularGridImpl(
                 new BoundingBoxImpl(-110, -7.5, -5, 45, DefaultGeographicCRS.WGS84), WIDTH, HEIGHT);
 
         int bgWidth = background.getWidth();
@@ -120,14 +148,16 @@ public class SSTWinds {
         int bgSubImageWidth = (int) (bgWidth * imageCoordWidth / 360.0);
         int bgSubImageHeight = (int) (bgHeight * imageCoordHeight / 180.0);
 
-        BufferedImage backgroundSub = background.getSubimage(bgSubImageOffsetX, bgSubImageOffsetY,
-                bgSubImageWidth, bgSubImageHeight);
+        final BufferedImage backgroundSub = background.getSubimage(bgSubImageOffsetX,
+                bgSubImageOffsetY, bgSubImageWidth, bgSubImageHeight);
 
-        RasterLayer sstDiffLayer = new RasterLayer(SST_VAR, new SegmentColourScheme(
-                new ScaleRange(-3f, 3f, false), null, null, new Color(0, true), "div-BuRd2", 250));
-        compositeImage.getLayers().add(sstDiffLayer);
+        /*
+         * Land is the same in every frame, so only the ocean cells need their
+         * anomalies calculating
+         */
+        final OceanMask sstMask = cciSst.getOceanMask(SST_VAR, imageGrid);
 
-        FeatureCatalogue featureCatalogue = new FeatureCatalogue() {
+        final FeatureCatalogue featureCatalogue = new FeatureCatalogue() {
             @Override
             public FeaturesAndMemberName getFeaturesForLayer(String id, PlottingDomainParams params)
                     throws EdalException {
@@ -142,6 +172,107 @@ public class SSTWinds {
             }
         };
 
+        /*
+         * Each hurricane season is independent of the others, so we render
+         * them concurrently
+         */
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentSegments);
+        List<Future<Void>> segments = new ArrayList<>();
+        for (int year = startYear; year <= endYear; year++) {
+            final String yearOutPath = outputPath + "/" + year;
+            final DateTime startTime = new DateTime(year, 6, 1, 0, 0);
+            final DateTime endTime = new DateTime(year, 12, 1, 0, 0);
+            segments.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    renderSegment(yearOutPath, startTime, endTime, timeAxis, imageGrid,
+                            featureCatalogue, cciSst.getTimeAxis(), sstMask, xWind.getDataset(),
+                            yWind.getDataset(), ibtracs, backgroundSub, trailMode,
+                            deterministic, quantiseHistory);
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        try {
+            for (Future<Void> segment : segments) {
+                segment.get();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof EdalException) {
+                throw (EdalException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Problem rendering segment", cause);
+        }
+    }
+
+    /**
+     * Renders the frames for a single segment of time. Segments are
+     * independent of one another, and can safely be run concurrently.
+     * 
+     * @param segmentOutPath
+     *            The directory to write frames to
+     * @param startTime
+     *            The time of the first frame
+     * @param endTime
+     *            The time after the last frame
+     * @param timeAxis
+     *            The {@link TimeAxis} to generate frames for
+     * @param imageGrid
+     *            The {@link RegularGrid} of the output frames
+     * @param featureCatalogue
+     *            The {@link FeatureCatalogue} to read SST from
+     * @param sstTimeAxis
+     *            The {@link TimeAxis} of the SST data
+     * @param sstMask
+     *            The {@link OceanMask} of the SST on the image grid.
+     *            Differences from the running average are only calculated
+     *            for the cells it marks as valid
+     * @param xWindDataset
+     *            The dataset containing the x-component of the wind
+     * @param yWindDataset
+     *            The dataset containing the y-component of the wind
+     * @param ibtracs
+     *            The {@link IBTracsReader} to get storm names from
+     * @param backgroundSub
+     *            The background image. This is only read from.
+     * @param trailMode
+     *            The {@link EvolvingWindPlotter.TrailMode} to draw the wind
+     *            lines with
+     * @param deterministic
+     *            Whether the wind lines should be reproducible (see
+     *            {@link EvolvingWindPlotter#setDeterministic(boolean)})
+     * @param quantiseHistory
+     *            Whether to store the running average history as 16-bit
+     *            values
+     */
+    private static void renderSegment(String segmentOutPath, DateTime startTime,
+            DateTime endTime, TimeAxis timeAxis, RegularGrid imageGrid,
+            FeatureCatalogue featureCatalogue, TimeAxis sstTimeAxis, OceanMask sstMask,
+            GriddedDataset xWindDataset, GriddedDataset yWindDataset, IBTracsReader ibtracs,
+            BufferedImage backgroundSub, EvolvingWindPlotter.TrailMode trailMode,
+            boolean deterministic, boolean quantiseHistory) throws IOException,
+            EdalException {
+        File dir = new File(segmentOutPath);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+
+        MapImage compositeImage = new MapImage();
+        RasterLayer sstDiffLayer = new RasterLayer(SST_VAR, new SegmentColourScheme(
+                new ScaleRange(-3f, 3f, false), null, null, new Color(0, true), "div-BuRd2", 250));
+        compositeImage.getLayers().add(sstDiffLayer);
+
         DecimalFormat frameNoFormat = new DecimalFormat("0000");
 
         /*
@@ -150,112 +281,87 @@ public class SSTWinds {
         DateTimeFormatter dateFormatter = (new DateTimeFormatterBuilder()).appendDayOfMonth(2)
                 .appendLiteral("-").appendMonthOfYear(2).appendLiteral("-").appendYear(4, 4)
                 .toFormatter();
-        Font font = null;
-
-//        int[] years = new int[]{2005};
-//        int[] years = new int[]{1995, 1996, 1997, 1998, 1999, 2000, 2001, 2002, 2003, 2004, 2007, 2008, 2009, 2010};
-//        for (int year : years) {
-        for (int year = 1992; year <= 2010; year++) {
-            String yearOutPath = outputPath + "/" + year;
-            File dir = new File(yearOutPath);
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            int startTimeIndex = GISUtils.getIndexOfClosestTimeTo(new DateTime(year, 6, 1, 0, 0),
-                    timeAxis);
-            int endTimeIndex = GISUtils.getIndexOfClosestTimeTo(new DateTime(year, 12, 1, 0, 0),
-                    timeAxis);
-            int frameNo = 0;
-            RunningAverageDiffFeatureCatalogue diffFc = new RunningAverageDiffFeatureCatalogue(
-                    SST_VAR, 10, featureCatalogue,
-                    cciSst.getDataset().getVariableMetadata(SST_VAR).getTemporalDomain());
-            EvolvingWindPlotter windPlotter = new EvolvingWindPlotter(imageGrid, 0.05, 24,
-                    new Color(0f, 0f, 0f, 0.3f), 20);
-
-            for (int i = startTimeIndex; i < endTimeIndex; i++) {
-                DateTime time = timeAxis.getCoordinateValue(i);
-                System.out.println("Generating frame for " + time);
-
-                PlottingDomainParams params = new PlottingDomainParams(imageGrid.getXSize(),
-                        imageGrid.getYSize(), imageGrid.getBoundingBox(), null, null, null, null,
-                        time);
-
-                FeaturesAndMemberName xF = xWind.getFeaturesForLayer(WIND_X_VAR, params);
-                FeaturesAndMemberName yF = yWind.getFeaturesForLayer(WIND_Y_VAR, params);
-                MapFeature xMapFeature = (MapFeature) xF.getFeatures().iterator().next();
-                MapFeature yMapFeature = (MapFeature) yF.getFeatures().iterator().next();
-                Array2D<Number> xCompVals = xMapFeature.getValues(WIND_X_VAR);
-                Array2D<Number> yCompVals = yMapFeature.getValues(WIND_Y_VAR);
-
-                windPlotter.evolve(xCompVals, yCompVals);
-                BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
-                BufferedImage sst = compositeImage.drawImage(params, diffFc);
-                BufferedImage winds = windPlotter.plot();
-                Graphics2D g = frame.createGraphics();
-
-                if (font == null) {
-                    /*
-                     * Calculate a font which should take up at most
-                     * targetFontHeight vertically (but will be at least font
-                     * size 6)
-                     */
-                    int fontSize = 6;
-                    font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-                    int fontHeight = 0;
-                    while (fontHeight < HEIGHT / 15) {
-                        font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize++);
-                        fontHeight = g.getFontMetrics(font).getHeight();
-                    }
-                    font = new Font(Font.MONOSPACED, Font.PLAIN, fontSize - 1);
-                }
-                g.setFont(font);
-
-                /*
-                 * Draw background with lighter layer on top
-                 */
-                g.drawImage(backgroundSub, 0, 0, WIDTH, HEIGHT, null);
-                g.setColor(new Color(1.0f, 1.0f, 1.0f, 0.5f));
-                g.fillRect(0, 0, WIDTH, HEIGHT);
-
-                /*
-                 * Draw date
-                 */
-                g.setColor(Color.black);
-                g.drawString(dateFormatter.print(time), WIDTH / 40, font.getSize() + HEIGHT / 20);
-
-                /*
-                 * Draw data layers
-                 */
-                g.drawImage(sst, 0, 0, null);
-                g.drawImage(winds, 0, 0, null);
-
-                /*
-                 * Label storms
-                 */
-                g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 26));
-                List<PosAndName> stormPositionsForTime = ibtracs.getStormPositionsForTime(time);
-                for (PosAndName posName : stormPositionsForTime) {
-                    GridCoordinates2D stormCentre = imageGrid.findIndexOf(posName.getPos());
-                    if (stormCentre != null) {
-                        int xPos = stormCentre.getX();
-                        int yPos = HEIGHT - 1 - stormCentre.getY();
-                        g.setColor(Color.white);
-                        g.drawString(posName.getName(), xPos + 9, yPos + 1);
-                        g.drawString(posName.getName(), xPos + 9, yPos - 1);
-                        g.drawString(posName.getName(), xPos + 11, yPos + 1);
-                        g.drawString(posName.getName(), xPos + 11, yPos - 1);
-                        g.fillOval(xPos - 6, yPos - 6, 12, 12);
-                        g.setColor(Color.black);
-                        g.drawString(posName.getName(), xPos + 10, yPos);
-                        g.fillOval(xPos - 5, yPos - 5, 10, 10);
-                    }
+        Font font = RenderUtils.getDateFont(HEIGHT);
+
+        int startTimeIndex = GISUtils.getIndexOfClosestTimeTo(startTime, timeAxis);
+        int endTimeIndex = GISUtils.getIndexOfClosestTimeTo(endTime, timeAxis);
+        int frameNo = 0;
+        RunningAverageDiffFeatureCatalogue diffFc = new RunningAverageDiffFeatureCatalogue(
+                SST_VAR, 10, featureCatalogue, sstTimeAxis, sstMask, quantiseHistory);
+        EvolvingWindPlotter windPlotter = new EvolvingWindPlotter(imageGrid, 0.05, 24,
+                new Color(0f, 0f, 0f, 0.3f), 20, trailMode);
+        windPlotter.setDeterministic(deterministic);
+
+        for (int i = startTimeIndex; i < endTimeIndex; i++) {
+            DateTime time = timeAxis.getCoordinateValue(i);
+            System.out.println("Generating frame for " + time);
+
+            PlottingDomainParams params = new PlottingDomainParams(imageGrid.getXSize(),
+                    imageGrid.getYSize(), imageGrid.getBoundingBox(), null, null, null, null,
+                    time);
+
+            /*
+             * Read the winds on their native grid. They only get sampled
+             * at the wind line positions, so there's no need to regrid
+             * them onto the image
+             */
+            WindField windField = WindField.read(xWindDataset, WIND_X_VAR, yWindDataset,
+                    WIND_Y_VAR, time);
+
+            windPlotter.evolve(windField);
+            BufferedImage frame = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_ARGB);
+            BufferedImage sst = compositeImage.drawImage(params, diffFc);
+            BufferedImage winds = windPlotter.plot();
+            Graphics2D g = frame.createGraphics();
+
+            g.setFont(font);
+
+            /*
+             * Draw background with lighter layer on top
+             */
+            g.drawImage(backgroundSub, 0, 0, WIDTH, HEIGHT, null);
+            g.setColor(new Color(1.0f, 1.0f, 1.0f, 0.5f));
+            g.fillRect(0, 0, WIDTH, HEIGHT);
+
+            /*
+             * Draw date
+             */
+            g.setColor(Color.black);
+            g.drawString(dateFormatter.print(time), WIDTH / 40, font.getSize() + HEIGHT / 20);
+
+            /*
+             * Draw data layers
+             */
+            g.drawImage(sst, 0, 0, null);
+            g.drawImage(winds, 0, 0, null);
+
+            /*
+             * Label storms
+             */
+            g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 26));
+            List<PosAndName> stormPositionsForTime = ibtracs.getStormPositionsForTime(time,
+                    imageGrid.getBoundingBox());
+            for (PosAndName posName : stormPositionsForTime) {
+                GridCoordinates2D stormCentre = imageGrid.findIndexOf(posName.getPos());
+                if (stormCentre != null) {
+                    int xPos = stormCentre.getX();
+                    int yPos = HEIGHT - 1 - stormCentre.getY();
+                    g.setColor(Color.white);
+                    g.drawString(posName.getName(), xPos + 9, yPos + 1);
+                    g.drawString(posName.getName(), xPos + 9, yPos - 1);
+                    g.drawString(posName.getName(), xPos + 11, yPos + 1);
+                    g.drawString(posName.getName(), xPos + 11, yPos - 1);
+                    g.fillOval(xPos - 6, yPos - 6, 12, 12);
+                    g.setColor(Color.black);
+                    g.drawString(posName.getName(), xPos + 10, yPos);
+                    g.fillOval(xPos - 5, yPos - 5, 10, 10);
                 }
-                ImageIO.write(frame, "png", new File(
-                        yearOutPath + "/frame-" + frameNoFormat.format(frameNo++) + ".png"));
             }
-
-            System.out.println("Finished writing frames.  Now run:\nffmpeg -r 25 -i '" + yearOutPath
-                    + "/frame-%04d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
+            ImageIO.write(frame, "png", new File(
+                    segmentOutPath + "/frame-" + frameNoFormat.format(frameNo++) + ".png"));
         }
+
+        System.out.println("Finished writing frames.  Now run:\nffmpeg -r 25 -i '" + segmentOutPath
+                + "/frame-%04d.png' -crf 18 -c:v libx264 -pix_fmt yuv420p output.mp4");
     }
 }
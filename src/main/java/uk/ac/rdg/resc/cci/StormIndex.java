@@ -0,0 +1,251 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import uk.ac.rdg.resc.edal.geometry.BoundingBox;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * A spatio-temporal index over the storms in a {@link StormTracks}, for
+ * quickly finding which storms are active (and visible) at a given time.
+ * 
+ * Storm lifetimes are held in a static, array-based interval tree: storms are
+ * sorted by start time and treated as an implicit balanced binary tree, with
+ * each node storing the latest end time in its subtree. A query for the
+ * storms active at a time then takes O(log n + k) time, where k is the number
+ * of active storms.
+ * 
+ * Each storm also has the bounding box of its entire track, which is used as
+ * a coarse spatial filter before the position at the query time is checked.
+ * 
+ * @author Guy Griffiths
+ */
+public class StormIndex {
+    private final StormTracks tracks;
+
+    /*
+     * Storm indices sorted by start time, and their start times
+     */
+    private final int[] sortedStorms;
+    private final long[] startTimes;
+    /*
+     * For each node of the implicit tree (the subarray [lo, hi) with midpoint
+     * (lo+hi)/2), the latest end time of any storm in that subarray, stored at
+     * the midpoint
+     */
+    private final long[] maxEndTimes;
+
+    /*
+     * Track bounding boxes, indexed by storm
+     */
+    private final float[] minLons;
+    private final float[] maxLons;
+    private final float[] minLats;
+    private final float[] maxLats;
+
+    public StormIndex(StormTracks tracks) {
+        this.tracks = tracks;
+        int nStorms = tracks.getNumStorms();
+
+        /*
+         * Sort the storms by start time. This is only done once, so boxing
+         * the indices is not a concern
+         */
+        Integer[] order = new Integer[nStorms];
+        for (int s = 0; s < nStorms; s++) {
+            order[s] = s;
+        }
+        final StormTracks t = tracks;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer s1, Integer s2) {
+                return Long.compare(t.getStartTime(s1), t.getStartTime(s2));
+            }
+        });
+        sortedStorms = new int[nStorms];
+        startTimes = new long[nStorms];
+        for (int i = 0; i < nStorms; i++) {
+            sortedStorms[i] = order[i];
+            startTimes[i] = tracks.getStartTime(order[i]);
+        }
+        maxEndTimes = new long[nStorms];
+        buildMaxEnds(0, nStorms);
+
+        minLons = new float[nStorms];
+        maxLons = new float[nStorms];
+        minLats = new float[nStorms];
+        maxLats = new float[nStorms];
+        for (int s = 0; s < nStorms; s++) {
+            float minLon = Float.MAX_VALUE;
+            float maxLon = -Float.MAX_VALUE;
+            float minLat = Float.MAX_VALUE;
+            float maxLat = -Float.MAX_VALUE;
+            for (int p = tracks.getFirstPoint(s); p < tracks.getEndPoint(s); p++) {
+                minLon = Math.min(minLon, tracks.getLon(p));
+                maxLon = Math.max(maxLon, tracks.getLon(p));
+                minLat = Math.min(minLat, tracks.getLat(p));
+                maxLat = Math.max(maxLat, tracks.getLat(p));
+            }
+            minLons[s] = minLon;
+            maxLons[s] = maxLon;
+            minLats[s] = minLat;
+            maxLats[s] = maxLat;
+        }
+    }
+
+    /**
+     * Recursively populates the maximum end times for the subtree covering
+     * [lo, hi)
+     * 
+     * @return The maximum end time in the subtree
+     */
+    private long buildMaxEnds(int lo, int hi) {
+        if (lo >= hi) {
+            return Long.MIN_VALUE;
+        }
+        int mid = (lo + hi) >>> 1;
+        long maxEnd = Math.max(tracks.getEndTime(sortedStorms[mid]),
+                Math.max(buildMaxEnds(lo, mid), buildMaxEnds(mid + 1, hi)));
+        maxEndTimes[mid] = maxEnd;
+        return maxEnd;
+    }
+
+    public StormTracks getTracks() {
+        return tracks;
+    }
+
+    /**
+     * Finds all storms which are active at the given time and whose position
+     * at that time is within the given bounding box.
+     * 
+     * @param time
+     *            The time, in milliseconds since the epoch
+     * @param bbox
+     *            The {@link BoundingBox} to find storms in. If this is
+     *            <code>null</code>, all active storms are returned
+     * @return The indices of the matching storms, in order of start time
+     */
+    public int[] findActiveStorms(long time, BoundingBox bbox) {
+        IntList active = new IntList();
+        findActive(0, sortedStorms.length, time, active);
+        if (bbox == null) {
+            return active.toArray();
+        }
+        if (!GISUtils.isWgs84LonLat(bbox.getCoordinateReferenceSystem())) {
+            bbox = GISUtils.toWGS84BoundingBox(bbox);
+        }
+        double minX = bbox.getMinX();
+        double maxX = bbox.getMaxX();
+        double minY = bbox.getMinY();
+        double maxY = bbox.getMaxY();
+        double centreX = 0.5 * (minX + maxX);
+
+        IntList visible = new IntList();
+        for (int i = 0; i < active.size; i++) {
+            int storm = active.values[i];
+            /*
+             * Coarse filter on the track bounds
+             */
+            if (maxLats[storm] < minY || minLats[storm] > maxY
+                    || !lonRangesOverlap(minLons[storm], maxLons[storm], minX, maxX)) {
+                continue;
+            }
+            /*
+             * Exact test on the position at this time
+             */
+            int point = tracks.findClosestPoint(storm, time);
+            double lat = tracks.getLat(point);
+            double lon = GISUtils.getNearestEquivalentLongitude(centreX, tracks.getLon(point));
+            if (lat >= minY && lat <= maxY && lon >= minX && lon <= maxX) {
+                visible.add(storm);
+            }
+        }
+        return visible.toArray();
+    }
+
+    private void findActive(int lo, int hi, long time, IntList active) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        if (maxEndTimes[mid] < time) {
+            /*
+             * Everything in this subtree has ended
+             */
+            return;
+        }
+        findActive(lo, mid, time, active);
+        if (startTimes[mid] <= time) {
+            if (tracks.getEndTime(sortedStorms[mid]) >= time) {
+                active.add(sortedStorms[mid]);
+            }
+            /*
+             * Only storms to the right can have started after this one, so
+             * only search there if this one has started
+             */
+            findActive(mid + 1, hi, time, active);
+        }
+    }
+
+    /**
+     * Tests whether two longitude ranges overlap, allowing for the second to
+     * be in a different longitude convention (e.g. 0-360 vs -180-180)
+     */
+    private static boolean lonRangesOverlap(double min1, double max1, double min2, double max2) {
+        for (double shift = -360; shift <= 360; shift += 360) {
+            if (min1 + shift <= max2 && max1 + shift >= min2) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A minimal growable list of primitive ints
+     */
+    private static class IntList {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Reads and writes {@link StormTracks} to a compact binary cache file, so that
+ * the (slow) parsing of the source track data only needs to be done once.
+ * 
+ * The cache is tied to its source file by recording the source's size and
+ * modification time. If either of these change, the cache is considered
+ * stale and will not be read.
+ * 
+ * The cache format is (big-endian):
+ * 
+ * <pre>
+ * int      magic number (0x53544b43, "STKC")
+ * int      format version
+ * long     source file modification time
+ * long     source file size
+ * int      number of storms (S)
+ * int      number of track points (P)
+ * int[S+1] track point offsets
+ * long[P]  times
+ * float[P] longitudes
+ * float[P] latitudes
+ * byte[P]  natures
+ * then, for each storm, a short (length in bytes) followed by the UTF-8 name
+ * </pre>
+ * 
+ * @author Guy Griffiths
+ */
+public class StormTrackCache {
+    private static final int MAGIC = 0x53544b43;
+    private static final int VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Gets the location of the cache file for a given source file
+     */
+    public static File getCacheFile(File source) {
+        return new File(source.getParentFile(), source.getName() + ".tracks");
+    }
+
+    /**
+     * Reads {@link StormTracks} from a cache file
+     * 
+     * @param cacheFile
+     *            The cache file to read
+     * @param source
+     *            The source file the cache was generated from
+     * @return The cached {@link StormTracks}, or <code>null</code> if the cache
+     *         does not exist, is stale, or is not readable
+     * @throws IOException
+     *             If there is a problem reading the cache file
+     */
+    public static StormTracks read(File cacheFile, File source) throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "r");
+                FileChannel channel = file.getChannel()) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            try {
+                if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                        || buffer.getLong() != source.lastModified()
+                        || buffer.getLong() != source.length()) {
+                    return null;
+                }
+                int nStorms = buffer.getInt();
+                int nPoints = buffer.getInt();
+                /*
+                 * Check the counts against the size of the file before
+                 * allocating anything, so that a corrupt header can't ask for
+                 * huge (or negative) arrays. Each storm needs at least an
+                 * offset and a name length, and each point a time, position
+                 * and nature
+                 */
+                if (nStorms < 0 || nPoints < 0
+                        || 4L * (nStorms + 1L) + 2L * nStorms + 17L * nPoints > buffer
+                                .remaining()) {
+                    return null;
+                }
+
+                int[] offsets = new int[nStorms + 1];
+                buffer.asIntBuffer().get(offsets);
+                buffer.position(buffer.position() + 4 * offsets.length);
+
+                long[] times = new long[nPoints];
+                buffer.asLongBuffer().get(times);
+                buffer.position(buffer.position() + 8 * nPoints);
+
+                float[] lons = new float[nPoints];
+                buffer.asFloatBuffer().get(lons);
+                buffer.position(buffer.position() + 4 * nPoints);
+
+                float[] lats = new float[nPoints];
+                buffer.asFloatBuffer().get(lats);
+                buffer.position(buffer.position() + 4 * nPoints);
+
+                byte[] natures = new byte[nPoints];
+                buffer.get(natures);
+
+                String[] names = new String[nStorms];
+                for (int s = 0; s < nStorms; s++) {
+                    byte[] nameBytes = new byte[buffer.getShort() & 0xffff];
+                    buffer.get(nameBytes);
+                    names[s] = new String(nameBytes, UTF8);
+                }
+                return new StormTracks(names, offsets, times, lons, lats, natures);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                /*
+                 * Truncated or otherwise corrupt cache
+                 */
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Writes {@link StormTracks} to a cache file. The file is written to a
+     * temporary location first and then moved into place, so that a partially
+     * written cache is never read.
+     * 
+     * @param tracks
+     *            The {@link StormTracks} to write
+     * @param cacheFile
+     *            The cache file to write
+     * @param source
+     *            The source file the tracks were read from
+     * @throws IOException
+     *             If there is a problem writing the cache
+     */
+    public static void write(StormTracks tracks, File cacheFile, File source) throws IOException {
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(source.lastModified());
+            out.writeLong(source.length());
+            int nStorms = tracks.getNumStorms();
+            int nPoints = tracks.getNumPoints();
+            out.writeInt(nStorms);
+            out.writeInt(nPoints);
+            for (int s = 0; s < nStorms; s++) {
+                out.writeInt(tracks.getFirstPoint(s));
+            }
+            out.writeInt(nPoints);
+            for (int p = 0; p < nPoints; p++) {
+                out.writeLong(tracks.getTime(p));
+            }
+            for (int p = 0; p < nPoints; p++) {
+                out.writeFloat(tracks.getLon(p));
+            }
+            for (int p = 0; p < nPoints; p++) {
+                out.writeFloat(tracks.getLat(p));
+            }
+            for (int p = 0; p < nPoints; p++) {
+                out.writeByte(tracks.getNature(p));
+            }
+            for (int s = 0; s < nStorms; s++) {
+                byte[] nameBytes = tracks.getName(s).getBytes(UTF8);
+                out.writeShort(nameBytes.length);
+                out.write(nameBytes);
+            }
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
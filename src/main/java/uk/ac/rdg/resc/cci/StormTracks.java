@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.util.Arrays;
+
+/**
+ * An in-memory columnar store of storm tracks. Each storm has a name and a
+ * contiguous run of track points, each of which has a time (in milliseconds
+ * since 1970-01-01T00:00Z), a position, and a nature code. All track points
+ * are held in flat primitive arrays, with the points of storm <i>s</i>
+ * occupying the indices <code>offsets[s]</code> (inclusive) to
+ * <code>offsets[s+1]</code> (exclusive).
+ * 
+ * Track points within a storm must be in time order.
+ * 
+ * @author Guy Griffiths
+ */
+public class StormTracks {
+    private final String[] names;
+    private final int[] offsets;
+    private final long[] times;
+    private final float[] lons;
+    private final float[] lats;
+    private final byte[] natures;
+
+    /**
+     * Creates a new {@link StormTracks}. The arrays are used directly, not
+     * copied.
+     * 
+     * @param names
+     *            The name of each storm
+     * @param offsets
+     *            The index of the first track point of each storm. This has
+     *            one more element than the number of storms, the last being
+     *            the total number of track points
+     * @param times
+     *            The time of each track point, in milliseconds since the epoch
+     * @param lons
+     *            The longitude of each track point
+     * @param lats
+     *            The latitude of each track point
+     * @param natures
+     *            The nature code of each track point
+     */
+    public StormTracks(String[] names, int[] offsets, long[] times, float[] lons, float[] lats,
+            byte[] natures) {
+        if (offsets.length != names.length + 1) {
+            throw new IllegalArgumentException("There must be one more offset than storm names");
+        }
+        int nPoints = offsets[names.length];
+        if (times.length != nPoints || lons.length != nPoints || lats.length != nPoints
+                || natures.length != nPoints) {
+            throw new IllegalArgumentException("All track point arrays must have " + nPoints
+                    + " elements");
+        }
+        this.names = names;
+        this.offsets = offsets;
+        this.times = times;
+        this.lons = lons;
+        this.lats = lats;
+        this.natures = natures;
+    }
+
+    public int getNumStorms() {
+        return names.length;
+    }
+
+    public int getNumPoints() {
+        return times.length;
+    }
+
+    public String getName(int storm) {
+        return names[storm];
+    }
+
+    public int getFirstPoint(int storm) {
+        return offsets[storm];
+    }
+
+    /**
+     * @return The index of the track point after the last one in the given
+     *         storm
+     */
+    public int getEndPoint(int storm) {
+        return offsets[storm + 1];
+    }
+
+    public long getStartTime(int storm) {
+        return times[offsets[storm]];
+    }
+
+    public long getEndTime(int storm) {
+        return times[offsets[storm + 1] - 1];
+    }
+
+    public long getTime(int point) {
+        return times[point];
+    }
+
+    public float getLon(int point) {
+        return lons[point];
+    }
+
+    public float getLat(int point) {
+        return lats[point];
+    }
+
+    public byte getNature(int point) {
+        return natures[point];
+    }
+
+    /**
+     * Finds the track point of a storm which is closest in time to the given
+     * time.
+     * 
+     * @param storm
+     *            The index of the storm
+     * @param time
+     *            The time, in milliseconds since the epoch
+     * @return The index of the closest track point, or -1 if the given time
+     *         is outside the lifetime of the storm
+     */
+    public int findClosestPoint(int storm, long time) {
+        int first = offsets[storm];
+        int end = offsets[storm + 1];
+        if (first == end || time < times[first] || time > times[end - 1]) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(times, first, end, time);
+        if (index >= 0) {
+            return index;
+        }
+        /*
+         * Not an exact match. Choose whichever of the neighbouring points is
+         * closest (both exist since we have already checked the bounds)
+         */
+        int after = -index - 1;
+        int before = after - 1;
+        if (time - times[before] <= times[after] - time) {
+            return before;
+        } else {
+            return after;
+        }
+    }
+
+    /**
+     * Creates a {@link StormTracks} containing only those storms which are
+     * active at some point within the given time range
+     * 
+     * @param startTime
+     *            The start of the time range, in milliseconds since the epoch
+     * @param endTime
+     *            The end of the time range, in milliseconds since the epoch
+     * @return A new {@link StormTracks}. This does not share any arrays with
+     *         this one.
+     */
+    public StormTracks subset(long startTime, long endTime) {
+        int nStorms = 0;
+        int nPoints = 0;
+        for (int s = 0; s < names.length; s++) {
+            if (getStartTime(s) <= endTime && getEndTime(s) >= startTime) {
+                nStorms++;
+                nPoints += offsets[s + 1] - offsets[s];
+            }
+        }
+        String[] subNames = new String[nStorms];
+        int[] subOffsets = new int[nStorms + 1];
+        long[] subTimes = new long[nPoints];
+        float[] subLons = new float[nPoints];
+        float[] subLats = new float[nPoints];
+        byte[] subNatures = new byte[nPoints];
+        int storm = 0;
+        int point = 0;
+        for (int s = 0; s < names.length; s++) {
+            if (getStartTime(s) <= endTime && getEndTime(s) >= startTime) {
+                int length = offsets[s + 1] - offsets[s];
+                subNames[storm] = names[s];
+                subOffsets[storm] = point;
+                System.arraycopy(times, offsets[s], subTimes, point, length);
+                System.arraycopy(lons, offsets[s], subLons, point, length);
+                System.arraycopy(lats, offsets[s], subLats, point, length);
+                System.arraycopy(natures, offsets[s], subNatures, point, length);
+                storm++;
+                point += length;
+            }
+        }
+        subOffsets[nStorms] = nPoints;
+        return new StormTracks(subNames, subOffsets, subTimes, subLons, subLats, subNatures);
+    }
+}
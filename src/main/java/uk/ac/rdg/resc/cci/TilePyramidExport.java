@@ -0,0 +1,441 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.GISUtils;
+
+/**
+ * Exports latitude-dependent SST (as rendered by {@link SSTRender}) as a
+ * pyramid of XYZ web-map tiles, in either Web Mercator (EPSG:3857) or
+ * EPSG:4326.
+ * 
+ * Each timestep is read once, and every tile of every zoom level is then
+ * rendered directly from the native fields in parallel (using a
+ * {@link TileRenderer}), rather than rendering large frames and cutting them
+ * up.
+ * 
+ * Many tiles are identical - e.g. tiles which are all land appear at every
+ * zoom level and every timestep. Each distinct tile is therefore stored once,
+ * named by the SHA-1 hash of its pixels, in the "blobs" directory. The tiles
+ * in the pyramid ([time]/[z]/[x]/[y].png) are hard links to these (or copies
+ * on file systems without hard links).
+ * 
+ * The options are given in the properties file (tile_pyramid.properties).
+ * 
+ * @author Guy Griffiths
+ */
+public class TilePyramidExport {
+    private static final Logger log = LoggerFactory.getLogger(TilePyramidExport.class);
+
+    /** Half the width of the Web Mercator projection, in metres */
+    private static final double MERCATOR_EXTENT = 20037508.342789244;
+    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern(
+            "yyyyMMddHHmmss").withZone(DateTimeZone.UTC);
+
+    private static volatile boolean linksSupported = true;
+
+    public static void main(String[] args) throws IOException, EdalException {
+        /*
+         * Load a properties file to determine what to plot.
+         */
+        Properties properties = RenderUtils.loadProperties("tile_pyramid.properties");
+
+        String outputPath = properties.getProperty("outputPath");
+        String dataPath = properties.getProperty("dataPath");
+        if (outputPath == null || dataPath == null) {
+            log.error("You must provide at least the output path and the path to the SST data");
+            System.exit(1);
+        }
+
+        String crsCode = properties.getProperty("crs", "EPSG:3857");
+        boolean mercator;
+        if ("EPSG:3857".equalsIgnoreCase(crsCode)) {
+            mercator = true;
+        } else if ("EPSG:4326".equalsIgnoreCase(crsCode)) {
+            mercator = false;
+        } else {
+            log.error("The tile CRS must be either EPSG:3857 or EPSG:4326");
+            System.exit(1);
+            return;
+        }
+        int minZoom = Integer.parseInt(properties.getProperty("minZoom", "0"));
+        int maxZoom = Integer.parseInt(properties.getProperty("maxZoom", "4"));
+        int tileSize = Integer.parseInt(properties.getProperty("tileSize", "256"));
+        long preparedTileMemory = Long.parseLong(properties.getProperty("preparedTileMemory",
+                "256"));
+        String palette = properties.getProperty("palette", "default");
+        double rangeMultiplier = Double.parseDouble(properties.getProperty("rangeMultiplier",
+                "1.0"));
+        int smoothingSpan = Integer.parseInt(properties.getProperty("smoothingSpan", "1"));
+        String sstVar = properties.getProperty("sstVar", "analysed_sst");
+        String iceVar = properties.getProperty("iceVar", "sea_ice_fraction");
+        boolean includeIce = Boolean.parseBoolean(properties.getProperty("includeIce", "true"));
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
+
+        LatitudeDependentSST latitudeDependentSST = new LatitudeDependentSST(dataPath, sstVar,
+                RenderUtils.getAveragingGrid(properties));
+        RenderUtils.configureCaches(latitudeDependentSST, properties);
+        TimeAxis timeAxis = latitudeDependentSST.getTimeAxis();
+
+        int[] frameRange = RenderUtils.getFrameRange(properties, timeAxis);
+        int firstFrame = frameRange[0];
+        int lastFrame = frameRange[1];
+        if (includeIce && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
+        }
+
+        List<DateTime> useInAverage = RenderUtils.getAverageTimes(properties, timeAxis);
+        /*
+         * The range multiplier is applied by the tile renderer
+         */
+        latitudeDependentSST.generateSSTLayer(useInAverage, 1.0, smoothingSpan, palette);
+        final TileRenderer tileRenderer = new TileRenderer(latitudeDependentSST, palette,
+                rangeMultiplier);
+
+        /*
+         * The blue marble background, as a global field of colours
+         */
+        BufferedImage bluemarble = ImageIO.read(TilePyramidExport.class
+                .getResource("/bluemarble_bg.png"));
+        int bgWidth = bluemarble.getWidth();
+        int bgHeight = bluemarble.getHeight();
+        final int[] background = new int[bgWidth * bgHeight];
+        for (int y = 0; y < bgHeight; y++) {
+            /*
+             * Grid rows start at the bottom, image rows at the top
+             */
+            bluemarble.getRGB(0, bgHeight - 1 - y, bgWidth, 1, background, y * bgWidth, bgWidth);
+        }
+        final RegularGrid backgroundGrid = new RegularGridImpl(-180, -90, 180, 90,
+                DefaultGeographicCRS.WGS84, bgWidth, bgHeight);
+
+        /*
+         * The tiles are the same for every timestep
+         */
+        CoordinateReferenceSystem crs = mercator ? GISUtils.getCrs("EPSG:3857")
+                : DefaultGeographicCRS.WGS84;
+        final List<Tile> tiles = new ArrayList<>();
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int nRows = 1 << z;
+            int nColumns = mercator ? nRows : 2 * nRows;
+            double span = mercator ? 2 * MERCATOR_EXTENT / nRows : 180.0 / nRows;
+            double xMin = mercator ? -MERCATOR_EXTENT : -180.0;
+            double yMax = mercator ? MERCATOR_EXTENT : 90.0;
+            for (int x = 0; x < nColumns; x++) {
+                for (int y = 0; y < nRows; y++) {
+                    tiles.add(new Tile(z, x, y, new RegularGridImpl(xMin + x * span, yMax
+                            - (y + 1) * span, xMin + (x + 1) * span, yMax - y * span, crs,
+                            tileSize, tileSize)));
+                }
+            }
+        }
+        /*
+         * Work out where each tile lies on the data and background grids, and
+         * composite its background, once rather than for every timestep. This
+         * takes 12 bytes per tile pixel, so only the tiles which fit in the
+         * given memory (the lowest zoom levels first) are kept like this. The
+         * rest are prepared again for every timestep.
+         */
+        long bytesPerTile = 12L * tileSize * tileSize;
+        int nPrepared = (int) Math.min(tiles.size(), preparedTileMemory * 1024L * 1024L
+                / bytesPerTile);
+        ParallelUtils.forEachRange(nPrepared, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int t = from; t < to; t++) {
+                    tiles.get(t).prepare(tileRenderer, backgroundGrid, background);
+                }
+            }
+        });
+        log.info("Exporting " + tiles.size() + " tiles per timestep, " + nPrepared
+                + " of them prepared in advance");
+
+        final File blobDir = new File(outputPath, "blobs");
+        for (DateTime time : timeAxis.getCoordinateValues().subList(firstFrame, lastFrame + 1)) {
+            log.info("Generating tiles for time " + time);
+            final FloatArray2D sst = latitudeDependentSST.getCatalogue().readNativeField(sstVar,
+                    time);
+            final FloatArray2D ice = includeIce ? latitudeDependentSST.getCatalogue()
+                    .readNativeField(iceVar, time) : null;
+            final File timeDir = new File(outputPath, TIME_FORMATTER.print(time));
+            final AtomicInteger newBlobs = new AtomicInteger();
+            final IOException[] error = new IOException[1];
+            ParallelUtils.forEachRange(tiles.size(), 1, new ParallelUtils.RangeTask() {
+                @Override
+                public void process(int from, int to) {
+                    for (int t = from; t < to; t++) {
+                        Tile tile = tiles.get(t);
+                        try {
+                            TileRenderer.PreparedTile prepared = tile.prepared;
+                            int[] tileBackground = tile.background;
+                            if (prepared == null) {
+                                prepared = tileRenderer.prepare(tile.grid);
+                                tileBackground = getTileBackground(tile.grid, backgroundGrid,
+                                        background);
+                            }
+                            BufferedImage image = tileRenderer.render(prepared, sst, ice);
+                            composite(image, tileBackground);
+                            if (writeTile(image, blobDir, new File(timeDir, tile.z + "/"
+                                    + tile.x + "/" + tile.y + ".png"))) {
+                                newBlobs.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            synchronized (error) {
+                                if (error[0] == null) {
+                                    error[0] = e;
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            log.info("Stored " + newBlobs.get() + " new distinct tiles for time " + time);
+        }
+    }
+
+    /**
+     * Draws the layers of a tile over its background
+     * 
+     * @param image
+     *            The rendered layers of the tile, which get replaced by the
+     *            composited tile
+     * @param background
+     *            The opaque background colours, in image order
+     */
+    private static void composite(BufferedImage image, int[] background) {
+        int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = TileRenderer.over(argb[i], background[i]);
+        }
+    }
+
+    /**
+     * Stores a tile, unless an identical tile has already been stored, and
+     * links to it from the pyramid
+     * 
+     * @return <code>true</code> if the tile had not been stored before
+     */
+    private static boolean writeTile(BufferedImage image, File blobDir, File tileFile)
+            throws IOException {
+        int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        ByteBuffer bytes = ByteBuffer.allocate(argb.length * 4);
+        bytes.asIntBuffer().put(argb);
+        String hash;
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes.array())) {
+                hex.append(String.format("%02x", b));
+            }
+            hash = hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            /*
+             * Every Java platform is required to support SHA-1
+             */
+            throw new IllegalStateException(e);
+        }
+
+        /*
+         * Spread the blobs over subdirectories, to keep directory sizes
+         * reasonable
+         */
+        File blob = new File(new File(blobDir, hash.substring(0, 2)), hash + ".png");
+        boolean newBlob = false;
+        if (!blob.exists()) {
+            mkdirs(blob.getParentFile());
+            File tempFile = File.createTempFile(hash, ".tmp", blob.getParentFile());
+            try {
+                ImageIO.write(image, "png", tempFile);
+                Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tempFile.delete();
+            }
+            newBlob = true;
+        }
+
+        mkdirs(tileFile.getParentFile());
+        Files.deleteIfExists(tileFile.toPath());
+        if (linksSupported) {
+            try {
+                try {
+                    Files.createLink(tileFile.toPath(), blob.toPath());
+                    return newBlob;
+                } catch (IOException e) {
+                    /*
+                     * Most likely the blob has reached the file system's limit
+                     * on links (e.g. an empty tile shared by every timestep).
+                     * Existing links keep the old file, so replace the blob
+                     * with a fresh copy and link to that
+                     */
+                    renewBlob(blob);
+                    Files.createLink(tileFile.toPath(), blob.toPath());
+                    return newBlob;
+                }
+            } catch (UnsupportedOperationException e) {
+                log.warn("Cannot create hard links to tiles (" + e.getMessage()
+                        + ").  Tiles will be copied instead");
+                linksSupported = false;
+            } catch (IOException e) {
+                log.warn("Cannot link " + tileFile + " to " + blob + " (" + e.getMessage()
+                        + ").  Copying it instead");
+            }
+        }
+        Files.copy(blob.toPath(), tileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return newBlob;
+    }
+
+    /**
+     * Replaces a blob with a new copy of itself, which has no other links
+     */
+    private static void renewBlob(File blob) throws IOException {
+        File tempFile = File.createTempFile(blob.getName(), ".tmp", blob.getParentFile());
+        try {
+            Files.copy(blob.toPath(), tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Files.move(tempFile.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static void mkdirs(File dir) throws IOException {
+        /*
+         * Another thread may create the directory at the same time, so check
+         * whether it exists rather than whether we created it
+         */
+        if (!dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+    }
+
+    /**
+     * Gets the background of a tile
+     * 
+     * @param grid
+     *            The grid of the tile
+     * @param backgroundGrid
+     *            The grid of the background image
+     * @param backgroundColours
+     *            The background image colours, in grid order (i.e. starting
+     *            from the bottom row)
+     * @return The background colours over black, in image order
+     */
+    private static int[] getTileBackground(RegularGrid grid, RegularGrid backgroundGrid,
+            int[] backgroundColours) {
+        int[] resampled = new GridResampler(backgroundGrid, grid).resample(backgroundColours);
+        int width = grid.getXSize();
+        int height = grid.getYSize();
+        int[] background = new int[width * height];
+        for (int row = 0; row < height; row++) {
+            /*
+             * Grid rows start at the bottom, image rows at the top.
+             * Transparent areas become black
+             */
+            int gridRowStart = (height - 1 - row) * width;
+            for (int col = 0; col < width; col++) {
+                background[row * width + col] = TileRenderer.over(resampled[gridRowStart + col],
+                        0xff000000);
+            }
+        }
+        return background;
+    }
+
+    /**
+     * A tile in the pyramid, along with (if it is kept between timesteps)
+     * everything needed to render it which is the same for every timestep
+     */
+    private static class Tile {
+        private final int z;
+        private final int x;
+        private final int y;
+        private final RegularGrid grid;
+        private TileRenderer.PreparedTile prepared = null;
+        /*
+         * The background colours over black, in image order
+         */
+        private int[] background = null;
+
+        public Tile(int z, int x, int y, RegularGrid grid) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.grid = grid;
+        }
+
+        /**
+         * Calculates and keeps the mappings from the data to this tile, and
+         * its background
+         * 
+         * @param tileRenderer
+         *            The {@link TileRenderer} which will render the tile
+         * @param backgroundGrid
+         *            The grid of the background image
+         * @param backgroundColours
+         *            The background image colours, in grid order (i.e.
+         *            starting from the bottom row)
+         */
+        public void prepare(TileRenderer tileRenderer, RegularGrid backgroundGrid,
+                int[] backgroundColours) {
+            prepared = tileRenderer.prepare(grid);
+            background = getTileBackground(grid, backgroundGrid, backgroundColours);
+        }
+    }
+}
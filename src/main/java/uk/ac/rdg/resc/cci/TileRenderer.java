@@ -0,0 +1,231 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import uk.ac.rdg.resc.edal.graphics.style.ScaleRange;
+import uk.ac.rdg.resc.edal.graphics.style.SegmentColourScheme;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+
+/**
+ * Renders the latitude-dependent SST and ice layers of small grids (i.e.
+ * tiles of a much larger image) straight from fields on the native grid.
+ * 
+ * Rendering a tile through EDAL needs a full set of intermediate images and
+ * per-grid latitude / mask features, which is too much to hold for the
+ * hundreds of tiles making up a very large frame. Instead, each tile is
+ * resampled from the native fields and coloured with lookup tables (see
+ * {@link LatitudeBins}), giving the same colours as
+ * {@link LatitudeDependentSST#getSSTLayer()} to within the resolution of the
+ * bins.
+ * 
+ * Nothing is cached per tile, so memory use depends on the tile size rather
+ * than the total image size. Tiles can be rendered concurrently. Callers
+ * which render the same tiles for many timesteps can keep the mappings from
+ * the native grid for each tile with {@link #prepare(RegularGrid)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class TileRenderer {
+    private final RegularGrid nativeGrid;
+    private final LatitudeDependentSST latitudeDependentSST;
+    private final float[] means;
+    private final float maxRange;
+    private final float binRange;
+    private final int[] sstLut;
+    private final int[] iceLut;
+
+    /**
+     * @param latitudeDependentSST
+     *            The {@link LatitudeDependentSST}, on which
+     *            {@link LatitudeDependentSST#generateSSTLayer} has been called
+     *            with a range multiplier of 1
+     * @param palette
+     *            The palette to colour SST with
+     * @param rangeMultiplier
+     *            The range multiplier to colour SST with
+     */
+    public TileRenderer(LatitudeDependentSST latitudeDependentSST, String palette,
+            double rangeMultiplier) {
+        this.latitudeDependentSST = latitudeDependentSST;
+        nativeGrid = latitudeDependentSST.getCatalogue().getNativeGrid();
+        means = latitudeDependentSST.getMeans();
+        maxRange = latitudeDependentSST.getScaleRange();
+        /*
+         * Values outside the colour scale are clamped, so the bins only need
+         * to cover it
+         */
+        binRange = (float) (rangeMultiplier / 2);
+        sstLut = LatitudeBins.buildLut(palette, rangeMultiplier, binRange);
+
+        /*
+         * The same colour scheme as the ice layers of SSTRender, sampled at
+         * 256 ice fractions
+         */
+        SegmentColourScheme iceColourScheme = new SegmentColourScheme(new ScaleRange(0f, 1.0f,
+                false), new Color(0, true), null, new Color(0, true), "#00ffffff,#ffffff", 100);
+        iceLut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            iceLut[i] = iceColourScheme.getColor((i + 0.5f) / 256).getRGB();
+        }
+    }
+
+    /**
+     * @return The grid which fields passed to {@link #render} must be on
+     */
+    public RegularGrid getNativeGrid() {
+        return nativeGrid;
+    }
+
+    /**
+     * Calculates the parts of rendering a tile which do not depend on the
+     * data - i.e. where each of its cells lies on the native and averaging
+     * grids
+     * 
+     * @param grid
+     *            The grid of the tile
+     * @return A {@link PreparedTile} to pass to
+     *         {@link #render(PreparedTile, FloatArray2D, FloatArray2D)}
+     */
+    public PreparedTile prepare(RegularGrid grid) {
+        return new PreparedTile(new GridResampler(nativeGrid, grid),
+                latitudeDependentSST.getLatitudeIndices(grid));
+    }
+
+    /**
+     * Renders the SST and ice layers of a tile
+     * 
+     * @param grid
+     *            The grid of the tile
+     * @param sst
+     *            The SST field on the native grid
+     * @param ice
+     *            The ice fraction field on the native grid, or
+     *            <code>null</code> to not plot ice
+     * @return A {@link BufferedImage} of type
+     *         {@link BufferedImage#TYPE_INT_ARGB}, which is transparent
+     *         wherever there is no data
+     */
+    public BufferedImage render(RegularGrid grid, FloatArray2D sst, FloatArray2D ice) {
+        return render(prepare(grid), sst, ice);
+    }
+
+    /**
+     * Renders the SST and ice layers of a tile which has already been
+     * prepared
+     * 
+     * @param tile
+     *            The {@link PreparedTile}, from {@link #prepare(RegularGrid)}
+     * @param sst
+     *            The SST field on the native grid
+     * @param ice
+     *            The ice fraction field on the native grid, or
+     *            <code>null</code> to not plot ice
+     * @return A {@link BufferedImage} of type
+     *         {@link BufferedImage#TYPE_INT_ARGB}, which is transparent
+     *         wherever there is no data
+     */
+    public BufferedImage render(PreparedTile tile, FloatArray2D sst, FloatArray2D ice) {
+        GridResampler resampler = tile.resampler;
+        final int width = resampler.getTargetGrid().getXSize();
+        final int height = resampler.getTargetGrid().getYSize();
+
+        byte[] bins = LatitudeBins.computeBins(resampler.resample(sst), tile.latIndices, means,
+                maxRange, binRange, null);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        final int[] argb = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        LatitudeBins.applyLut(bins, sstLut, argb);
+
+        if (ice != null) {
+            final FloatArray2D tileIce = resampler.resample(ice);
+            ParallelUtils.forEachRange(height, 16, new ParallelUtils.RangeTask() {
+                @Override
+                public void process(int from, int to) {
+                    for (int y = from; y < to; y++) {
+                        /*
+                         * Grid rows start at the bottom, image rows at the top
+                         */
+                        int rowStart = (height - 1 - y) * width;
+                        for (int x = 0; x < width; x++) {
+                            float value = tileIce.getFloat(y, x);
+                            if (Float.isNaN(value) || value < 0f) {
+                                continue;
+                            }
+                            int colour = iceLut[Math.min(255, (int) (value * 256))];
+                            argb[rowStart + x] = over(colour, argb[rowStart + x]);
+                        }
+                    }
+                }
+            });
+        }
+        return image;
+    }
+
+    /**
+     * Composites one non-premultiplied ARGB colour over another
+     */
+    static int over(int top, int bottom) {
+        int topAlpha = top >>> 24;
+        if (topAlpha == 255) {
+            return top;
+        } else if (topAlpha == 0) {
+            return bottom;
+        }
+        int bottomAlpha = bottom >>> 24;
+        int bottomWeight = bottomAlpha * (255 - topAlpha) / 255;
+        int alpha = topAlpha + bottomWeight;
+        if (alpha == 0) {
+            return 0;
+        }
+        int result = alpha << 24;
+        for (int shift = 0; shift <= 16; shift += 8) {
+            int channel = (((top >> shift) & 0xff) * topAlpha + ((bottom >> shift) & 0xff)
+                    * bottomWeight) / alpha;
+            result |= channel << shift;
+        }
+        return result;
+    }
+
+    /**
+     * The mappings from the native and averaging grids to the grid of a tile
+     */
+    public static class PreparedTile {
+        private final GridResampler resampler;
+        private final int[] latIndices;
+
+        private PreparedTile(GridResampler resampler, int[] latIndices) {
+            this.resampler = resampler;
+            this.latIndices = latIndices;
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.geotoolkit.referencing.crs.DefaultGeographicCRS;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeFormatterBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import uk.ac.rdg.resc.edal.exceptions.EdalException;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.grid.TimeAxis;
+import uk.ac.rdg.resc.edal.util.TimeUtils;
+
+/**
+ * Renders latitude-dependent SST frames (as {@link SSTRender} does) at very
+ * high resolutions, e.g. 16384x8192 for domes and video walls.
+ * 
+ * Each frame is split into a band of tiles at a time. The tiles in a band are
+ * rendered and composited in parallel (using a {@link TileRenderer}), and the
+ * band is then streamed to a PNG or raw RGB file while the next band is
+ * rendered. The whole frame is never held in memory, so the memory used
+ * depends on the tile size rather than the frame size.
+ * 
+ * The options are given in the properties file (tiled_render.properties).
+ * 
+ * @author Guy Griffiths
+ */
+public class TiledSSTRender {
+    private static final Logger log = LoggerFactory.getLogger(TiledSSTRender.class);
+
+    public static void main(String[] args) throws IOException, EdalException,
+            InterruptedException {
+        /*
+         * Load a properties file to determine what to plot.
+         */
+        Properties properties = RenderUtils.loadProperties("tiled_render.properties");
+
+        String outputPath = properties.getProperty("outputPath");
+        String dataPath = properties.getProperty("dataPath");
+        if (outputPath == null || dataPath == null) {
+            log.error("You must provide at least the output path and the path to the SST data");
+            System.exit(1);
+        }
+
+        final int width = Integer.parseInt(properties.getProperty("imageWidth", "16384"));
+        final int height = Integer.parseInt(properties.getProperty("imageHeight", "8192"));
+        final int tileWidth = Integer.parseInt(properties.getProperty("tileWidth", "1024"));
+        final int tileHeight = Integer.parseInt(properties.getProperty("tileHeight", "512"));
+        long preparedTileMemory = Long.parseLong(properties.getProperty("preparedTileMemory",
+                "512"));
+        final double lonMin = Double.parseDouble(properties.getProperty("lonMin", "-180"));
+        final double latMin = Double.parseDouble(properties.getProperty("latMin", "-90"));
+        final double lonMax = Double.parseDouble(properties.getProperty("lonMax", "180"));
+        final double latMax = Double.parseDouble(properties.getProperty("latMax", "90"));
+        boolean raw = "raw".equalsIgnoreCase(properties.getProperty("format", "png"));
+        int compressionLevel = Integer.parseInt(properties.getProperty("pngCompression",
+                Integer.toString(Deflater.DEFAULT_COMPRESSION)));
+        String palette = properties.getProperty("palette", "default");
+        double rangeMultiplier = Double.parseDouble(properties.getProperty("rangeMultiplier",
+                "1.0"));
+        int smoothingSpan = Integer.parseInt(properties.getProperty("smoothingSpan", "1"));
+        final boolean includeDate = Boolean.parseBoolean(properties.getProperty("includeDate",
+                "true"));
+        String sstVar = properties.getProperty("sstVar", "analysed_sst");
+        String iceVar = properties.getProperty("iceVar", "sea_ice_fraction");
+        boolean includeIce = Boolean.parseBoolean(properties.getProperty("includeIce", "true"));
+        String iceBandStr = properties.getProperty("iceLatitudeBand");
+
+        /*
+         * The latitude averaging is done on a much coarser grid than the
+         * frames - averaging at the frame resolution would mean caching
+         * several frames' worth of data
+         */
+        LatitudeDependentSST latitudeDependentSST = new LatitudeDependentSST(dataPath, sstVar,
+                RenderUtils.getAveragingGrid(properties));
+        RenderUtils.configureCaches(latitudeDependentSST, properties);
+        TimeAxis timeAxis = latitudeDependentSST.getTimeAxis();
+
+        int[] frameRange = RenderUtils.getFrameRange(properties, timeAxis);
+        int firstFrame = frameRange[0];
+        int lastFrame = frameRange[1];
+        if (includeIce && iceBandStr != null) {
+            RenderUtils.configureLatitudeBand(latitudeDependentSST, iceVar, iceBandStr,
+                    firstFrame, lastFrame);
+        }
+
+        List<DateTime> useInAverage = RenderUtils.getAverageTimes(properties, timeAxis);
+        /*
+         * The range multiplier is applied by the tile renderer
+         */
+        latitudeDependentSST.generateSSTLayer(useInAverage, 1.0, smoothingSpan, palette);
+        final TileRenderer tileRenderer = new TileRenderer(latitudeDependentSST, palette,
+                rangeMultiplier);
+
+        final BufferedImage background = RenderUtils.getBackground(lonMin, latMin, lonMax,
+                latMax);
+        final Font font = RenderUtils.getDateFont(height);
+        final DateTimeFormatter dateFormatter = (new DateTimeFormatterBuilder())
+                .appendDayOfMonth(2).appendLiteral("-").appendMonthOfYear(2).appendLiteral("-")
+                .appendYear(4, 4).toFormatter();
+
+        final double xSpacing = (lonMax - lonMin) / width;
+        final double ySpacing = (latMax - latMin) / height;
+        final int nTilesX = (width + tileWidth - 1) / tileWidth;
+        int nBands = (height + tileHeight - 1) / tileHeight;
+        /*
+         * The tiles are the same for every frame, in band order
+         */
+        final RegularGrid[] tileGrids = new RegularGrid[nBands * nTilesX];
+        for (int b = 0; b < nBands; b++) {
+            int y0 = b * tileHeight;
+            int rows = Math.min(tileHeight, height - y0);
+            for (int t = 0; t < nTilesX; t++) {
+                int x0 = t * tileWidth;
+                int columns = Math.min(tileWidth, width - x0);
+                tileGrids[b * nTilesX + t] = new RegularGridImpl(lonMin + x0 * xSpacing, latMax
+                        - (y0 + rows) * ySpacing, lonMin + (x0 + columns) * xSpacing, latMax - y0
+                        * ySpacing, DefaultGeographicCRS.WGS84, columns, rows);
+            }
+        }
+        /*
+         * Work out where each tile lies on the data once rather than for
+         * every frame. This takes 8 bytes per pixel, so only the tiles which
+         * fit in the given memory are kept like this. The rest are prepared
+         * again for every frame.
+         */
+        final TileRenderer.PreparedTile[] preparedTiles =
+                new TileRenderer.PreparedTile[tileGrids.length];
+        int nPrepared = (int) Math.min(tileGrids.length, preparedTileMemory * 1024L * 1024L
+                / (8L * tileWidth * tileHeight));
+        ParallelUtils.forEachRange(nPrepared, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    preparedTiles[i] = tileRenderer.prepare(tileGrids[i]);
+                }
+            }
+        });
+        log.info(nPrepared + " of " + tileGrids.length + " tiles prepared in advance");
+        /*
+         * Two bands, so that one can be written while the other is rendered
+         */
+        int[][] bands = new int[][] { new int[width * tileHeight], new int[width * tileHeight] };
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor();
+        try {
+            for (DateTime time : timeAxis.getCoordinateValues().subList(firstFrame,
+                    lastFrame + 1)) {
+                log.info("Generating frame for time " + time);
+                final FloatArray2D sst = latitudeDependentSST.getCatalogue().readNativeField(
+                        sstVar, time);
+                final FloatArray2D ice = includeIce ? latitudeDependentSST.getCatalogue()
+                        .readNativeField(iceVar, time) : null;
+                final String dateStr = includeDate ? dateFormatter.print(time) : null;
+
+                String fileName = "frame-" + TimeUtils.dateTimeToISO8601(time);
+                final FrameWriter writer = raw ? new RawFrameWriter(new File(outputPath,
+                        fileName + ".rgb"), width) : new PngFrameWriter(new File(outputPath,
+                        fileName + ".png"), width, height, compressionLevel);
+                Future<Void> pendingWrite = null;
+                try {
+                    for (int bandY = 0, b = 0; bandY < height; bandY += tileHeight, b++) {
+                        final int[] band = bands[b % 2];
+                        final int firstTile = b * nTilesX;
+                        final int y0 = bandY;
+                        final int rows = Math.min(tileHeight, height - bandY);
+                        ParallelUtils.forEachRange(nTilesX, 1, new ParallelUtils.RangeTask() {
+                            @Override
+                            public void process(int from, int to) {
+                                for (int t = from; t < to; t++) {
+                                    int x0 = t * tileWidth;
+                                    int columns = Math.min(tileWidth, width - x0);
+                                    TileRenderer.PreparedTile prepared =
+                                            preparedTiles[firstTile + t];
+                                    if (prepared == null) {
+                                        prepared = tileRenderer.prepare(tileGrids[firstTile
+                                                + t]);
+                                    }
+                                    BufferedImage tile = new BufferedImage(columns, rows,
+                                            BufferedImage.TYPE_INT_RGB);
+                                    Graphics2D g = tile.createGraphics();
+                                    g.setColor(Color.black);
+                                    g.fillRect(0, 0, columns, rows);
+                                    /*
+                                     * Draw in frame coordinates, so that the
+                                     * background and date line up across
+                                     * tiles
+                                     */
+                                    g.translate(-x0, -y0);
+                                    g.drawImage(background, 0, 0, width, height, null);
+                                    g.drawImage(tileRenderer.render(prepared, sst, ice), x0, y0,
+                                            null);
+                                    if (dateStr != null) {
+                                        g.setFont(font);
+                                        g.drawString(dateStr, (int) (width * 0.4), height - 10);
+                                    }
+                                    g.dispose();
+                                    int[] pixels = ((DataBufferInt) tile.getRaster()
+                                            .getDataBuffer()).getData();
+                                    for (int y = 0; y < rows; y++) {
+                                        System.arraycopy(pixels, y * columns, band, y * width
+                                                + x0, columns);
+                                    }
+                                }
+                            }
+                        });
+                        waitFor(pendingWrite);
+                        pendingWrite = writerExecutor.submit(new Callable<Void>() {
+                            @Override
+                            public Void call() throws IOException {
+                                writer.writeRows(band, rows);
+                                return null;
+                            }
+                        });
+                    }
+                    waitFor(pendingWrite);
+                } finally {
+                    /*
+                     * The writer thread may still be writing the last band if
+                     * rendering failed, so let it finish before closing
+                     */
+                    finishQuietly(pendingWrite);
+                    writer.close();
+                }
+            }
+        } finally {
+            writerExecutor.shutdown();
+        }
+        if (raw) {
+            log.info("Finished writing frames.  Now run:\ncat " + outputPath
+                    + "/frame-*.rgb | ffmpeg -f rawvideo -pix_fmt rgb24 -s " + width + "x"
+                    + height + " -r 25 -i - -c:v libx264 -pix_fmt yuv420p output.mp4");
+        } else {
+            log.info("Finished writing frames.  Now run:\nffmpeg -r 25 -pattern_type glob  -i '"
+                    + outputPath + "/frame-*.png' -c:v libx264 -pix_fmt yuv420p output.mp4");
+        }
+    }
+
+    private static void waitFor(Future<Void> write) throws IOException, InterruptedException {
+        if (write == null) {
+            return;
+        }
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Waits for a write to finish, ignoring any failure - either it has
+     * already been thrown by {@link #waitFor(Future)}, or another exception is
+     * being thrown instead
+     */
+    private static void finishQuietly(Future<Void> write) {
+        if (write == null) {
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                write.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a frame a band of rows at a time
+     */
+    private interface FrameWriter {
+        /**
+         * @param rgb
+         *            The RGB pixels of the rows, with the alpha byte ignored
+         * @param nRows
+         *            The number of rows to write
+         */
+        public void writeRows(int[] rgb, int nRows) throws IOException;
+
+        public void close() throws IOException;
+    }
+
+    /**
+     * Writes frames as 8-bit RGB PNGs, compressing the rows as they arrive
+     */
+    private static class PngFrameWriter implements FrameWriter {
+        private static final byte[] SIGNATURE = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r',
+                '\n', 0x1a, '\n' };
+        /** The PNG "Sub" filter, which stores each byte relative to the pixel to its left */
+        private static final byte FILTER_SUB = 1;
+
+        private final DataOutputStream out;
+        private final int width;
+        private final Deflater deflater;
+        private final byte[] row;
+        private final byte[] buffer = new byte[1 << 16];
+        private int buffered = 0;
+        private final CRC32 crc = new CRC32();
+
+        public PngFrameWriter(File file, int width, int height, int compressionLevel)
+                throws IOException {
+            this.width = width;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    1 << 16));
+            deflater = new Deflater(compressionLevel);
+            row = new byte[1 + 3 * width];
+            row[0] = FILTER_SUB;
+
+            out.write(SIGNATURE);
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(width);
+            headerOut.writeInt(height);
+            /*
+             * 8 bits per sample, RGB, default compression / filtering, no
+             * interlacing
+             */
+            headerOut.write(new byte[] { 8, 2, 0, 0, 0 });
+            writeChunk("IHDR", header.toByteArray(), header.size());
+        }
+
+        @Override
+        public void writeRows(int[] rgb, int nRows) throws IOException {
+            for (int y = 0; y < nRows; y++) {
+                int previous = 0;
+                for (int x = 0, i = y * width, j = 1; x < width; x++, i++, j += 3) {
+                    int pixel = rgb[i];
+                    row[j] = (byte) ((pixel >> 16) - (previous >> 16));
+                    row[j + 1] = (byte) ((pixel >> 8) - (previous >> 8));
+                    row[j + 2] = (byte) (pixel - previous);
+                    previous = pixel;
+                }
+                deflater.setInput(row);
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
+            }
+        }
+
+        private void deflate() throws IOException {
+            buffered += deflater.deflate(buffer, buffered, buffer.length - buffered);
+            if (buffered == buffer.length) {
+                writeChunk("IDAT", buffer, buffered);
+                buffered = 0;
+            }
+        }
+
+        private void writeChunk(String type, byte[] data, int length) throws IOException {
+            byte[] typeBytes = type.getBytes("US-ASCII");
+            crc.reset();
+            crc.update(typeBytes);
+            crc.update(data, 0, length);
+            out.writeInt(length);
+            out.write(typeBytes);
+            out.write(data, 0, length);
+            out.writeInt((int) crc.getValue());
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate();
+                }
+                if (buffered > 0) {
+                    writeChunk("IDAT", buffer, buffered);
+                }
+                writeChunk("IEND", buffer, 0);
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Writes frames as raw 8-bit RGB, with no header
+     */
+    private static class RawFrameWriter implements FrameWriter {
+        private final BufferedOutputStream out;
+        private final int width;
+        private final byte[] row;
+
+        public RawFrameWriter(File file, int width) throws IOException {
+            this.width = width;
+            out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+            row = new byte[3 * width];
+        }
+
+        @Override
+        public void writeRows(int[] rgb, int nRows) throws IOException {
+            for (int y = 0; y < nRows; y++) {
+                for (int x = 0, i = y * width, j = 0; x < width; x++, i++, j += 3) {
+                    int pixel = rgb[i];
+                    row[j] = (byte) (pixel >> 16);
+                    row[j + 1] = (byte) (pixel >> 8);
+                    row[j + 2] = (byte) pixel;
+                }
+                out.write(row);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
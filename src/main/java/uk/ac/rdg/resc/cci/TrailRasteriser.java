@@ -0,0 +1,382 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+
+/**
+ * Rasterises large numbers of short line segments and points (e.g. particle
+ * trails) directly into the pixel buffer of a single, re-used image.
+ * 
+ * Segments are queued with {@link #addSegment(int, int, int, int, int, int)}
+ * and {@link #addPoint(int, int, int, int)}, and then drawn with integer line
+ * drawing and alpha blending when {@link #render()} is called. The image
+ * is divided into bands of rows which are drawn in parallel. Within each band,
+ * segments are drawn in the order they were added, so the output is
+ * deterministic.
+ * 
+ * All colours are premultiplied ARGB values, as returned by
+ * {@link #premultiply(Color, int)}.
+ * 
+ * @author Guy Griffiths
+ */
+public class TrailRasteriser {
+    /** The number of rows of the image in each band */
+    private static final int BAND_HEIGHT = 32;
+
+    private final int width;
+    private final int height;
+    private final BufferedImage image;
+    private final int[] pixels;
+
+    private final int nBands;
+    private final int[] bandStarts;
+
+    /*
+     * The queued segments. Points are stored as zero-length segments.
+     */
+    private int nSegments = 0;
+    private int[] x1s = new int[1024];
+    private int[] y1s = new int[1024];
+    private int[] x2s = new int[1024];
+    private int[] y2s = new int[1024];
+    private int[] colours = new int[1024];
+    private byte[] sizes = new byte[1024];
+    private boolean[] points = new boolean[1024];
+    /** Segment indices, sorted by band */
+    private int[] bandSegments = new int[1024];
+
+    public TrailRasteriser(int width, int height) {
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        nBands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        bandStarts = new int[nBands + 1];
+    }
+
+    /**
+     * @return The image which this rasteriser draws into. This is the same
+     *         object on every call.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Removes all queued segments and points
+     */
+    public void reset() {
+        nSegments = 0;
+    }
+
+    /**
+     * Queues a line segment to be drawn
+     * 
+     * @param x1
+     *            The x-pixel co-ordinate of the start of the segment
+     * @param y1
+     *            The y-pixel co-ordinate of the start of the segment
+     * @param x2
+     *            The x-pixel co-ordinate of the end of the segment
+     * @param y2
+     *            The y-pixel co-ordinate of the end of the segment
+     * @param colour
+     *            The premultiplied ARGB colour of the segment
+     * @param thickness
+     *            The thickness of the line, in pixels (1 or 2)
+     */
+    public void addSegment(int x1, int y1, int x2, int y2, int colour, int thickness) {
+        add(x1, y1, x2, y2, colour, thickness, false);
+    }
+
+    /**
+     * Queues a square point to be drawn
+     * 
+     * @param x
+     *            The x-pixel co-ordinate of the top-left of the point
+     * @param y
+     *            The y-pixel co-ordinate of the top-left of the point
+     * @param colour
+     *            The premultiplied ARGB colour of the point
+     * @param size
+     *            The width/height of the point, in pixels
+     */
+    public void addPoint(int x, int y, int colour, int size) {
+        add(x, y, x, y, colour, size, true);
+    }
+
+    private void add(int x1, int y1, int x2, int y2, int colour, int size, boolean point) {
+        if ((colour >>> 24) == 0) {
+            return;
+        }
+        if (nSegments == x1s.length) {
+            int newLength = 2 * x1s.length;
+            x1s = Arrays.copyOf(x1s, newLength);
+            y1s = Arrays.copyOf(y1s, newLength);
+            x2s = Arrays.copyOf(x2s, newLength);
+            y2s = Arrays.copyOf(y2s, newLength);
+            colours = Arrays.copyOf(colours, newLength);
+            sizes = Arrays.copyOf(sizes, newLength);
+            points = Arrays.copyOf(points, newLength);
+        }
+        x1s[nSegments] = x1;
+        y1s[nSegments] = y1;
+        x2s[nSegments] = x2;
+        y2s[nSegments] = y2;
+        colours[nSegments] = colour;
+        sizes[nSegments] = (byte) size;
+        points[nSegments] = point;
+        nSegments++;
+    }
+
+    /**
+     * Clears the image and draws all of the queued segments and points into it.
+     * 
+     * @return The image
+     */
+    public BufferedImage render() {
+        return render(true);
+    }
+
+    /**
+     * Draws all of the queued segments and points into the image.
+     * 
+     * @param clear
+     *            Whether to clear the image to transparent before drawing. If
+     *            this is <code>false</code>, segments are drawn over whatever
+     *            is already in the image.
+     * @return The image
+     */
+    public BufferedImage render(final boolean clear) {
+        binSegments();
+        ParallelUtils.forEachRange(nBands, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                for (int band = from; band < to; band++) {
+                    int minY = band * BAND_HEIGHT;
+                    int maxY = Math.min(height, minY + BAND_HEIGHT);
+                    if (clear) {
+                        Arrays.fill(pixels, minY * width, maxY * width, 0);
+                    }
+                    for (int i = bandStarts[band]; i < bandStarts[band + 1]; i++) {
+                        int s = bandSegments[i];
+                        if (points[s]) {
+                            drawPoint(x1s[s], y1s[s], colours[s], sizes[s], minY, maxY);
+                        } else {
+                            drawSegment(x1s[s], y1s[s], x2s[s], y2s[s], colours[s], sizes[s],
+                                    minY, maxY);
+                        }
+                    }
+                }
+            }
+        });
+        return image;
+    }
+
+    /**
+     * Multiplies the alpha of every pixel in the image by a constant factor.
+     * This is done in parallel bands of rows.
+     * 
+     * @param factor
+     *            The factor to multiply by, between 0 and 1
+     */
+    public void fade(float factor) {
+        /*
+         * Since the buffer is premultiplied, all 4 channels get scaled by the
+         * same amount. Values are truncated, so faint pixels eventually fade
+         * out completely.
+         */
+        final int[] lut = new int[256];
+        for (int i = 0; i < 256; i++) {
+            lut[i] = (int) (i * factor);
+        }
+        ParallelUtils.forEachRange(nBands, 1, new ParallelUtils.RangeTask() {
+            @Override
+            public void process(int from, int to) {
+                int end = Math.min(height, to * BAND_HEIGHT) * width;
+                for (int p = from * BAND_HEIGHT * width; p < end; p++) {
+                    int argb = pixels[p];
+                    if (argb != 0) {
+                        pixels[p] = (lut[argb >>> 24] << 24) | (lut[(argb >> 16) & 0xff] << 16)
+                                | (lut[(argb >> 8) & 0xff] << 8) | lut[argb & 0xff];
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sorts the queued segments into the bands of rows which they touch.
+     * Segments which touch more than one band appear in each of them.
+     */
+    private void binSegments() {
+        Arrays.fill(bandStarts, 0);
+        int total = 0;
+        for (int s = 0; s < nSegments; s++) {
+            int firstBand = firstBand(s);
+            int lastBand = lastBand(s);
+            for (int band = firstBand; band <= lastBand; band++) {
+                bandStarts[band + 1]++;
+                total++;
+            }
+        }
+        for (int band = 0; band < nBands; band++) {
+            bandStarts[band + 1] += bandStarts[band];
+        }
+        if (bandSegments.length < total) {
+            bandSegments = new int[Math.max(total, 2 * bandSegments.length)];
+        }
+        int[] positions = Arrays.copyOf(bandStarts, nBands);
+        for (int s = 0; s < nSegments; s++) {
+            int firstBand = firstBand(s);
+            int lastBand = lastBand(s);
+            for (int band = firstBand; band <= lastBand; band++) {
+                bandSegments[positions[band]++] = s;
+            }
+        }
+    }
+
+    private int firstBand(int s) {
+        int minY = Math.min(y1s[s], y2s[s]);
+        return Math.max(0, minY / BAND_HEIGHT);
+    }
+
+    private int lastBand(int s) {
+        int maxY = Math.max(y1s[s], y2s[s]) + sizes[s] - 1;
+        if (maxY < 0) {
+            /*
+             * Entirely above the image. Returning -1 means that the segment
+             * won't be placed in any band
+             */
+            return -1;
+        }
+        return Math.min(nBands - 1, maxY / BAND_HEIGHT);
+    }
+
+    private void drawPoint(int x, int y, int colour, int size, int minY, int maxY) {
+        for (int j = Math.max(y, minY); j < Math.min(y + size, maxY); j++) {
+            for (int i = Math.max(x, 0); i < Math.min(x + size, width); i++) {
+                blend(j * width + i, colour);
+            }
+        }
+    }
+
+    /**
+     * Draws a line using Bresenham's algorithm, only plotting pixels in the
+     * given range of rows. Thick lines are drawn by plotting an extra pixel
+     * along the minor axis at each step
+     */
+    private void drawSegment(int x1, int y1, int x2, int y2, int colour, int thickness,
+            int minY, int maxY) {
+        int dx = Math.abs(x2 - x1);
+        int dy = -Math.abs(y2 - y1);
+        int sx = x1 < x2 ? 1 : -1;
+        int sy = y1 < y2 ? 1 : -1;
+        boolean steep = -dy > dx;
+        int err = dx + dy;
+        int x = x1;
+        int y = y1;
+        while (true) {
+            plot(x, y, colour, minY, maxY);
+            if (thickness > 1) {
+                if (steep) {
+                    plot(x + 1, y, colour, minY, maxY);
+                } else {
+                    plot(x, y + 1, colour, minY, maxY);
+                }
+            }
+            if (x == x2 && y == y2) {
+                break;
+            }
+            int e2 = 2 * err;
+            if (e2 >= dy) {
+                err += dy;
+                x += sx;
+            }
+            if (e2 <= dx) {
+                err += dx;
+                y += sy;
+            }
+        }
+    }
+
+    private void plot(int x, int y, int colour, int minY, int maxY) {
+        if (x >= 0 && x < width && y >= minY && y < maxY) {
+            blend(y * width + x, colour);
+        }
+    }
+
+    /**
+     * Composites a premultiplied colour over the given pixel (Porter-Duff
+     * source-over)
+     */
+    private void blend(int index, int colour) {
+        int sa = colour >>> 24;
+        if (sa == 255) {
+            pixels[index] = colour;
+            return;
+        }
+        int dst = pixels[index];
+        if (dst == 0) {
+            pixels[index] = colour;
+            return;
+        }
+        int inv = 255 - sa;
+        int a = sa + div255((dst >>> 24) * inv);
+        int r = ((colour >> 16) & 0xff) + div255(((dst >> 16) & 0xff) * inv);
+        int g = ((colour >> 8) & 0xff) + div255(((dst >> 8) & 0xff) * inv);
+        int b = (colour & 0xff) + div255((dst & 0xff) * inv);
+        pixels[index] = (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    private static int div255(int v) {
+        v += 128;
+        return (v + (v >> 8)) >> 8;
+    }
+
+    /**
+     * Calculates a premultiplied ARGB value
+     * 
+     * @param colour
+     *            The base colour. Its alpha is multiplied by the given alpha
+     * @param alpha
+     *            The alpha to use, between 0 and 255
+     * @return The premultiplied ARGB value
+     */
+    public static int premultiply(Color colour, int alpha) {
+        int a = div255(colour.getAlpha() * Math.max(0, Math.min(255, alpha)));
+        return (a << 24) | (div255(colour.getRed() * a) << 16)
+                | (div255(colour.getGreen() * a) << 8) | div255(colour.getBlue() * a);
+    }
+}
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (c) 2015 The University of Reading
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in the
+ *    documentation and/or other materials provided with the distribution.
+ * 3. Neither the name of the University of Reading, nor the names of the
+ *    authors or contributors may be used to endorse or promote products
+ *    derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT, INDIRECT,
+ * INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT
+ * NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF
+ * THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ ******************************************************************************/
+
+
+package uk.ac.rdg.resc.cci;
+
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import uk.ac.rdg.resc.edal.dataset.GriddedDataset;
+import uk.ac.rdg.resc.edal.domain.MapDomain;
+import uk.ac.rdg.resc.edal.exceptions.DataReadingException;
+import uk.ac.rdg.resc.edal.exceptions.VariableNotFoundException;
+import uk.ac.rdg.resc.edal.feature.DiscreteFeature;
+import uk.ac.rdg.resc.edal.feature.MapFeature;
+import uk.ac.rdg.resc.edal.grid.HorizontalGrid;
+import uk.ac.rdg.resc.edal.grid.RegularAxis;
+import uk.ac.rdg.resc.edal.grid.RegularGrid;
+import uk.ac.rdg.resc.edal.grid.RegularGridImpl;
+import uk.ac.rdg.resc.edal.util.Array2D;
+import uk.ac.rdg.resc.edal.util.CollectionUtils;
+
+/**
+ * A vector field (e.g. 10m wind) held on its native {@link RegularGrid} in
+ * primitive arrays. Vectors at arbitrary positions are calculated on demand by
+ * bilinear interpolation.
+ * 
+ * @author Guy Griffiths
+ */
+public class WindField {
+    private final FloatArray2D xComps;
+    private final FloatArray2D yComps;
+    private final CoordinateReferenceSystem crs;
+
+    private final int xSize;
+    private final int ySize;
+    private final double x0;
+    private final double xSpacing;
+    private final double y0;
+    private final double ySpacing;
+    /** Whether the x-axis is longitude, wrapping around the globe */
+    private final boolean xWraps;
+
+    /**
+     * Create a new {@link WindField}
+     * 
+     * @param grid
+     *            The {@link RegularGrid} on which the components are defined
+     * @param xComps
+     *            The x-components of the field
+     * @param yComps
+     *            The y-components of the field
+     */
+    public WindField(RegularGrid grid, FloatArray2D xComps, FloatArray2D yComps) {
+        this.xComps = xComps;
+        this.yComps = yComps;
+        crs = grid.getCoordinateReferenceSystem();
+        RegularAxis xAxis = grid.getXAxis();
+        RegularAxis yAxis = grid.getYAxis();
+        xSize = xAxis.size();
+        ySize = yAxis.size();
+        x0 = xAxis.getCoordinateValue(0);
+        xSpacing = xAxis.getCoordinateSpacing();
+        y0 = yAxis.getCoordinateValue(0);
+        ySpacing = yAxis.getCoordinateSpacing();
+        xWraps = xAxis.wraps();
+    }
+
+    /**
+     * Reads the components of a vector field on their native grid at a single
+     * time
+     * 
+     * @param xDataset
+     *            The {@link GriddedDataset} containing the x-component
+     * @param xVar
+     *            The ID of the x-component variable
+     * @param yDataset
+     *            The {@link GriddedDataset} containing the y-component
+     * @param yVar
+     *            The ID of the y-component variable
+     * @param time
+     *            The time at which to read the field
+     * @return The {@link WindField}
+     */
+    public static WindField read(GriddedDataset xDataset, String xVar, GriddedDataset yDataset,
+            String yVar, DateTime time) throws DataReadingException, VariableNotFoundException {
+        RegularGrid grid = getNativeGrid(xDataset, xVar);
+        return new WindField(grid, readNative(xDataset, xVar, grid, time), readNative(yDataset,
+                yVar, grid, time));
+    }
+
+    private static RegularGrid getNativeGrid(GriddedDataset dataset, String varId)
+            throws VariableNotFoundException {
+        HorizontalGrid hGrid = dataset.getVariableMetadata(varId).getHorizontalDomain();
+        if (hGrid instanceof RegularGrid) {
+            return (RegularGrid) hGrid;
+        }
+        /*
+         * Not a regular grid. Use a regular grid of the same size over the
+         * same area, which will be close enough for sampling winds.
+         */
+        return new RegularGridImpl(hGrid.getBoundingBox(), hGrid.getXSize(), hGrid.getYSize());
+    }
+
+    private static FloatArray2D readNative(GriddedDataset dataset, String varId,
+            RegularGrid grid, DateTime time) throws DataReadingException,
+            VariableNotFoundException {
+        /*
+         * Since this is the native grid of the variable, no regridding is
+         * needed
+         */
+        List<? extends DiscreteFeature<?, ?>> features = dataset.extractMapFeatures(
+                CollectionUtils.setOf(varId), new MapDomain(grid, null, time));
+        Array2D<Number> values = ((MapFeature) features.get(0)).getValues(varId);
+        return FloatArray2D.copyOf(values);
+    }
+
+    /**
+     * @return The {@link CoordinateReferenceSystem} of positions used to
+     *         sample this field
+     */
+    public CoordinateReferenceSystem getCoordinateReferenceSystem() {
+        return crs;
+    }
+
+    /**
+     * Calculates the vector at a given position by bilinear interpolation.
+     * This method is thread-safe.
+     * 
+     * @param x
+     *            The x-co-ordinate of the position
+     * @param y
+     *            The y-co-ordinate of the position
+     * @param vector
+     *            An array of length at least 2 which the x- and y-components
+     *            will be placed in
+     * @return <code>true</code> if the vector could be calculated,
+     *         <code>false</code> if the position is outside the field or
+     *         there is no data near it
+     */
+    public boolean sample(double x, double y, double[] vector) {
+        double fx = (x - x0) / xSpacing;
+        double fy = (y - y0) / ySpacing;
+        if (xWraps) {
+            fx = fx % xSize;
+            if (fx < 0) {
+                fx += xSize;
+            }
+        } else if (fx < -0.5 || fx > xSize - 0.5) {
+            return false;
+        }
+        if (fy < -0.5 || fy > ySize - 0.5) {
+            return false;
+        }
+        /*
+         * Clamp to the edges of the grid (except when wrapping in x)
+         */
+        fy = Math.max(0, Math.min(ySize - 1, fy));
+        if (!xWraps) {
+            fx = Math.max(0, Math.min(xSize - 1, fx));
+        }
+
+        int i0 = (int) fx;
+        int j0 = (int) fy;
+        int i1 = i0 + 1;
+        int j1 = Math.min(j0 + 1, ySize - 1);
+        if (i1 >= xSize) {
+            i1 = xWraps ? 0 : xSize - 1;
+        }
+        double wx = fx - i0;
+        double wy = fy - j0;
+
+        /*
+         * Weights of the 4 surrounding points. Missing values are left out and
+         * the remaining weights renormalised.
+         */
+        double xComp = 0.0;
+        double yComp = 0.0;
+        double totalWeight = 0.0;
+        for (int k = 0; k < 4; k++) {
+            int i = (k & 1) == 0 ? i0 : i1;
+            int j = k < 2 ? j0 : j1;
+            double weight = ((k & 1) == 0 ? 1 - wx : wx) * (k < 2 ? 1 - wy : wy);
+            if (weight == 0.0) {
+                continue;
+            }
+            float u = xComps.getFloat(j, i);
+            float v = yComps.getFloat(j, i);
+            if (!Float.isNaN(u) && !Float.isNaN(v)) {
+                xComp += weight * u;
+                yComp += weight * v;
+                totalWeight += weight;
+            }
+        }
+        if (totalWeight == 0.0) {
+            return false;
+        }
+        vector[0] = xComp / totalWeight;
+        vector[1] = yComp / totalWeight;
+        return true;
+    }
+}